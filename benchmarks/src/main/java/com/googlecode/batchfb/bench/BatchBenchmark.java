@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.googlecode.batchfb.FacebookBatcher;
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.bench.Payloads.Feed;
+import com.googlecode.batchfb.util.RequestBuilder.HttpMethod;
+import com.googlecode.batchfb.util.RequestBuilder.HttpResponse;
+import com.googlecode.batchfb.util.RequestDefinition;
+import com.googlecode.batchfb.util.RequestExecutor;
+import com.googlecode.batchfb.util.RequestSetup;
+import com.googlecode.batchfb.util.SharedMapper;
+
+/**
+ * <p>A whole batch through FacebookBatcher, end to end, with the network replaced by
+ * a canned response.  The request is still fully encoded (and thrown away).</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+	
+	/** Number of graph requests in the batch */
+	@Param({"1", "10", "50"})
+	int parts;
+	
+	/** Approximate size of the whole response; 1k, 100k, 5M */
+	@Param({"1024", "102400", "5242880"})
+	int bytes;
+	
+	/** */
+	RequestExecutor executor;
+	
+	/**
+	 * Answers every request with the same response.
+	 */
+	static class CannedRequestExecutor extends RequestExecutor {
+		byte[] response;
+		
+		CannedRequestExecutor(byte[] response) {
+			this.response = response;
+		}
+		
+		@Override
+		public HttpResponse execute(int retries, RequestSetup setup) throws IOException {
+			setup.setup(new RequestDefinition() {
+				OutputStream sink = new OutputStream() {
+					@Override
+					public void write(int b) {}
+					@Override
+					public void write(byte[] b, int off, int len) {}
+				};
+				
+				@Override
+				public void init(HttpMethod meth, String url) {}
+				@Override
+				public void setHeader(String name, String value) {}
+				@Override
+				public OutputStream getContentOutputStream() { return this.sink; }
+				@Override
+				public void setContent(byte[] content) {}
+				@Override
+				public void setTimeout(int millis) {}
+			});
+			
+			return new HttpResponse() {
+				@Override
+				public int getResponseCode() { return 200; }
+				@Override
+				public InputStream getContentStream() { return new ByteArrayInputStream(response); }
+			};
+		}
+	}
+	
+	/** */
+	@Setup
+	public void setup() throws IOException {
+		String response = Payloads.batchResponse(SharedMapper.instance().getMapper(), this.parts, this.bytes);
+		
+		this.executor = new CannedRequestExecutor(response.getBytes("utf-8"));
+	}
+	
+	/** */
+	@Benchmark
+	public void batch(Blackhole hole) {
+		FacebookBatcher batcher = new FacebookBatcher("CAAC3sample0token0ZBZCkXyZAbcDEFghIJklMNOpqRSTuvWXyz");
+		batcher.setExecutor(this.executor);
+		
+		List<Later<Feed>> feeds = new ArrayList<Later<Feed>>(this.parts);
+		for (int i=0; i<this.parts; i++)
+			feeds.add(batcher.graph((100000000L + i) + "/feed", Feed.class));
+		
+		for (Later<Feed> feed: feeds)
+			hole.consume(feed.get());
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.bench;
+
+import java.util.List;
+import java.util.Random;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * <p>Builds batch responses shaped like the ones the Graph API actually returns: an outer
+ * array of parts, each with a code, the usual headers, and a body which is itself a JSON
+ * document encoded as a string.  Each body is a page of feed posts.</p>
+ * 
+ * <p>Output is deterministic for a given part count and size so runs are comparable.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class Payloads {
+	
+	/** What we bind each part's body to */
+	public static class Feed {
+		List<Post> data;
+		Paging paging;
+	}
+	
+	/** */
+	public static class Post {
+		String id;
+		From from;
+		String message;
+		String type;
+		String createdTime;
+		String updatedTime;
+		Likes likes;
+	}
+	
+	/** */
+	public static class From {
+		String id;
+		String name;
+	}
+	
+	/** */
+	public static class Likes {
+		List<From> data;
+		long count;
+	}
+	
+	/** */
+	public static class Paging {
+		String previous;
+		String next;
+	}
+	
+	/** */
+	private static final String WORDS = "the quick brown fox jumps over lazy dog facebook graph batch request response lorem ipsum dolor sit amet";
+	
+	/**
+	 * Creates the body of a single part, roughly the specified number of bytes long (never less than one post).
+	 */
+	public static String body(ObjectMapper mapper, int seed, int bytes) {
+		Random rnd = new Random(seed);
+		JsonNodeFactory f = JsonNodeFactory.instance;
+		
+		ObjectNode feed = f.objectNode();
+		ArrayNode data = feed.putArray("data");
+		
+		int size = 0;
+		int n = 0;
+		do {
+			ObjectNode post = data.addObject();
+			String id = (100000000L + seed) + "_" + (1000000000L + n);
+			post.put("id", id);
+			
+			ObjectNode from = post.putObject("from");
+			from.put("id", Long.toString(100000000L + rnd.nextInt(1000000)));
+			from.put("name", words(rnd, 2));
+			
+			post.put("message", words(rnd, 5 + rnd.nextInt(40)));
+			post.put("type", "status");
+			post.put("created_time", "2014-05-0" + (1 + n % 9) + "T12:34:56+0000");
+			post.put("updated_time", "2014-05-0" + (1 + n % 9) + "T12:35:56+0000");
+			
+			ObjectNode likes = post.putObject("likes");
+			ArrayNode likers = likes.putArray("data");
+			int likeCount = rnd.nextInt(4);
+			for (int i=0; i<likeCount; i++) {
+				ObjectNode liker = likers.addObject();
+				liker.put("id", Long.toString(100000000L + rnd.nextInt(1000000)));
+				liker.put("name", words(rnd, 2));
+			}
+			likes.put("count", likeCount);
+			
+			size += toJSON(mapper, post).length() + 1;
+			n++;
+		} while (size < bytes);
+		
+		ObjectNode paging = feed.putObject("paging");
+		paging.put("previous", "https://graph.facebook.com/v2.0/" + seed + "/feed?limit=" + n + "&since=1399000000");
+		paging.put("next", "https://graph.facebook.com/v2.0/" + seed + "/feed?limit=" + n + "&until=1398000000");
+		
+		return toJSON(mapper, feed);
+	}
+	
+	/**
+	 * Creates a whole batch response with the specified number of parts, the total being
+	 * roughly the specified number of bytes.
+	 */
+	public static String batchResponse(ObjectMapper mapper, int parts, int totalBytes) {
+		JsonNodeFactory f = JsonNodeFactory.instance;
+		ArrayNode batch = f.arrayNode();
+		
+		for (int i=0; i<parts; i++) {
+			ObjectNode part = batch.addObject();
+			part.put("code", 200);
+			
+			ArrayNode headers = part.putArray("headers");
+			header(headers, "Access-Control-Allow-Origin", "*");
+			header(headers, "Cache-Control", "private, no-cache, no-store, must-revalidate");
+			header(headers, "Content-Type", "text/javascript; charset=UTF-8");
+			header(headers, "ETag", "\"" + Integer.toHexString(31 * i + totalBytes) + "\"");
+			header(headers, "Expires", "Sat, 01 Jan 2000 00:00:00 GMT");
+			header(headers, "Pragma", "no-cache");
+			
+			part.put("body", body(mapper, i, totalBytes / parts));
+		}
+		
+		return toJSON(mapper, batch);
+	}
+	
+	/** */
+	private static void header(ArrayNode headers, String name, String value) {
+		ObjectNode header = headers.addObject();
+		header.put("name", name);
+		header.put("value", value);
+	}
+	
+	/** */
+	private static String words(Random rnd, int count) {
+		String[] all = WORDS.split(" ");
+		StringBuilder bld = new StringBuilder();
+		for (int i=0; i<count; i++) {
+			if (i > 0)
+				bld.append(' ');
+			bld.append(all[rnd.nextInt(all.length)]);
+		}
+		return bld.toString();
+	}
+	
+	/** */
+	private static String toJSON(ObjectMapper mapper, Object value) {
+		try {
+			return mapper.writeValueAsString(value);
+		} catch (JsonProcessingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
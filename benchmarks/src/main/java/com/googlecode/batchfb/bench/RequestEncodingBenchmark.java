@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.googlecode.batchfb.GraphRequest;
+import com.googlecode.batchfb.util.JSONUtils;
+import com.googlecode.batchfb.util.RequestBuilder;
+import com.googlecode.batchfb.util.RequestBuilder.HttpMethod;
+import com.googlecode.batchfb.util.SharedMapper;
+
+/**
+ * <p>The outbound side of a batch: building each part's relative url, encoding the
+ * batch as JSON, and url-encoding the whole thing into the POST body.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestEncodingBenchmark {
+	
+	/** Number of graph requests in the batch */
+	@Param({"1", "10", "50"})
+	int parts;
+	
+	/** */
+	ObjectMapper mapper;
+	List<GraphRequest<Object>> requests;
+	String batchValue;
+	
+	/** Exposes the query string encoding */
+	static class Builder extends RequestBuilder {
+		Builder(String url) { super(url, HttpMethod.POST); }
+		String queryString() { return this.createQueryString(); }
+	}
+	
+	/** */
+	@Setup
+	public void setup() {
+		this.mapper = SharedMapper.instance().getMapper();
+		this.requests = new ArrayList<GraphRequest<Object>>();
+		
+		for (int i=0; i<this.parts; i++) {
+			com.googlecode.batchfb.Param[] params = new com.googlecode.batchfb.Param[] {
+				new com.googlecode.batchfb.Param("fields", "id,from,message,type,created_time,updated_time,likes"),
+				new com.googlecode.batchfb.Param("limit", 25),
+				new com.googlecode.batchfb.Param("since", "2014-05-01 12:34:56")
+			};
+			
+			this.requests.add(new GraphRequest<Object>((100000000L + i) + "/feed", params, this.mapper, null));
+		}
+		
+		this.batchValue = JSONUtils.toJSON(this.requests, this.mapper);
+	}
+	
+	/** */
+	@Benchmark
+	public void relativeURL(Blackhole hole) {
+		for (GraphRequest<Object> req: this.requests)
+			hole.consume(req.getRelativeURL());
+	}
+	
+	/** */
+	@Benchmark
+	public String batchJSON() {
+		return JSONUtils.toJSON(this.requests, this.mapper);
+	}
+	
+	/** */
+	@Benchmark
+	public String queryString() {
+		Builder call = new Builder("https://graph.facebook.com/v2.0/");
+		call.addParam("access_token", "CAAC3sample0token0ZBZCkXyZAbcDEFghIJklMNOpqRSTuvWXyz");
+		call.addParam("batch", this.batchValue);
+		return call.queryString();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.googlecode.batchfb.bench.Payloads.Feed;
+import com.googlecode.batchfb.impl.ErrorDetectingWrapper;
+import com.googlecode.batchfb.impl.GraphNodeExtractor;
+import com.googlecode.batchfb.impl.MapperWrapper;
+import com.googlecode.batchfb.util.JSONUtils;
+import com.googlecode.batchfb.util.Now;
+import com.googlecode.batchfb.util.SharedMapper;
+
+/**
+ * <p>The inbound side of a batch, one stage at a time: parsing the outer response,
+ * demultiplexing it into parts and decoding each part's body, and binding bodies
+ * to user classes.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseDecodingBenchmark {
+	
+	/** Number of parts in the batch response */
+	@Param({"1", "10", "50"})
+	int parts;
+	
+	/** Approximate size of the whole response; 1k, 100k, 5M */
+	@Param({"1024", "102400", "5242880"})
+	int bytes;
+	
+	/** */
+	SharedMapper sharedMapper;
+	ObjectMapper mapper;
+	JavaType feedType;
+	
+	/** The raw response, as it comes off the wire */
+	String response;
+	
+	/** The response, already parsed */
+	JsonNode tree;
+	
+	/** Each part's body, still as text */
+	String[] bodies;
+	
+	/** Each part's body, already parsed */
+	JsonNode[] bodyNodes;
+	
+	/** */
+	@Setup
+	public void setup() {
+		this.sharedMapper = SharedMapper.instance();
+		this.mapper = this.sharedMapper.getMapper();
+		this.feedType = this.sharedMapper.constructType(Feed.class);
+		
+		this.response = Payloads.batchResponse(this.mapper, this.parts, this.bytes);
+		this.tree = JSONUtils.toNode(this.response, this.mapper);
+		
+		this.bodies = new String[this.parts];
+		this.bodyNodes = new JsonNode[this.parts];
+		for (int i=0; i<this.parts; i++) {
+			this.bodies[i] = this.tree.get(i).get("body").textValue();
+			this.bodyNodes[i] = JSONUtils.toNode(this.bodies[i], this.mapper);
+		}
+	}
+	
+	/** What Batch does with the http response */
+	@Benchmark
+	public JsonNode parseOuter() {
+		return JSONUtils.toNode(this.response, this.mapper);
+	}
+	
+	/** Error detection on the whole batch, then each part's body decoded into a tree */
+	@Benchmark
+	public void extractParts(Blackhole hole) {
+		ErrorDetectingWrapper batch = new ErrorDetectingWrapper(new Now<JsonNode>(this.tree));
+		for (int i=0; i<this.parts; i++)
+			hole.consume(new GraphNodeExtractor(i, this.mapper, batch).get());
+	}
+	
+	/** Binding already-parsed bodies to the user's class */
+	@Benchmark
+	public void bindTrees(Blackhole hole) {
+		for (int i=0; i<this.parts; i++)
+			hole.consume(new MapperWrapper<Feed>(this.feedType, this.sharedMapper, new Now<JsonNode>(this.bodyNodes[i])).get());
+	}
+	
+	/** Binding bodies to the user's class straight from the text, without an intermediate tree */
+	@Benchmark
+	public void bindText(Blackhole hole) throws IOException {
+		for (int i=0; i<this.parts; i++)
+			hole.consume(this.sharedMapper.reader(this.feedType).readValue(this.bodies[i]));
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One http call to the batch endpoint, from just before sending until the response has been
+ * parsed.  The network and parse fields break down where that time went.
+ * 
+ * @author Jeff Schnitzer
+ */
+@Name("batchfb.BatchCall")
+@Label("Batch Call")
+@Category("BatchFB")
+@Description("An http call to the Graph batch endpoint, through parsing of the response")
+@StackTrace(false)
+class BatchCallEvent extends jdk.jfr.Event {
+	@Label("Batch Id")
+	long batchId;
+	
+	@Label("Requests")
+	int requests;
+	
+	@Label("Endpoint")
+	String endpoint;
+	
+	@Label("Request Bytes")
+	@DataAmount
+	long requestBytes;
+	
+	@Label("Response Bytes")
+	@DataAmount
+	long responseBytes;
+	
+	@Label("Encode Time")
+	@Timespan
+	long encode;
+	
+	@Label("Network Time")
+	@Description("From sending the request until the response status arrived")
+	@Timespan
+	long network;
+	
+	@Label("Parse Time")
+	@Description("Reading and parsing the response body")
+	@Timespan
+	long parse;
+	
+	@Label("Http Status")
+	int httpStatus;
+	
+	@Label("Attempts")
+	int attempts;
+	
+	@Label("Error")
+	String errorType;
+}
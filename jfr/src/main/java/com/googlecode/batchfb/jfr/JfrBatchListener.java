@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.jfr;
+
+import com.googlecode.batchfb.util.BatchListener;
+
+/**
+ * <p>Emits Java Flight Recorder events for the lifecycle of every batch: creation, each
+ * request enqueued, the http call (with its encode, network and parse times), and each
+ * Later.get() of a graph request or FQL query, on whatever thread called it.  All events
+ * carry the batch id so a recording can tie a slow thread to the batch it was waiting on.</p>
+ * 
+ * <pre>
+ * batcher.setListener(new JfrBatchListener());
+ * </pre>
+ * 
+ * <p>Events cost next to nothing when they are not enabled in the recording.  One instance
+ * can be shared by any number of batchers.  To collect statistics as well, see
+ * HistogramListener; a listener which forwards to both is a few lines.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class JfrBatchListener implements BatchListener {
+	
+	/** */
+	@Override
+	public void batchCreated(long batchId) {
+		BatchCreatedEvent event = new BatchCreatedEvent();
+		if (event.isEnabled()) {
+			event.batchId = batchId;
+			event.commit();
+		}
+	}
+	
+	/** */
+	@Override
+	public void requestEnqueued(long batchId, int index, String object) {
+		RequestEnqueuedEvent event = new RequestEnqueuedEvent();
+		if (event.isEnabled()) {
+			event.batchId = batchId;
+			event.index = index;
+			event.object = object;
+			event.commit();
+		}
+	}
+	
+	/** Starts the clock on the call; it is committed in batchCompleted() */
+	@Override
+	public void batchSending(BatchStats stats) {
+		BatchCallEvent event = new BatchCallEvent();
+		if (event.isEnabled()) {
+			event.begin();
+			stats.attachment = event;
+		}
+	}
+	
+	/** */
+	@Override
+	public void batchCompleted(BatchStats stats) {
+		if (!(stats.attachment instanceof BatchCallEvent))
+			return;
+		
+		BatchCallEvent event = (BatchCallEvent)stats.attachment;
+		event.end();
+		
+		if (event.shouldCommit()) {
+			event.batchId = stats.batchId;
+			event.requests = stats.requests;
+			event.endpoint = stats.endpoint;
+			event.requestBytes = stats.requestBytes;
+			event.responseBytes = stats.responseBytes;
+			event.encode = stats.encodeNanos;
+			event.network = stats.networkNanos;
+			event.parse = stats.parseNanos;
+			event.httpStatus = stats.httpStatus;
+			event.attempts = stats.attempts;
+			event.errorType = stats.errorType;
+			event.commit();
+		}
+	}
+	
+	/** The get() which resolved the part is reported to laterGet() like any other */
+	@Override
+	public void partCompleted(PartStats stats) {
+	}
+	
+	/** */
+	@Override
+	public void laterGet(GetStats stats) {
+		LaterGetEvent event = new LaterGetEvent();
+		if (event.isEnabled()) {
+			event.batchId = stats.batchId;
+			event.index = stats.index;
+			event.object = stats.object;
+			event.time = stats.nanos;
+			event.errorType = stats.errorType;
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A thread called Later.get() on a graph request or FQL query.  The event belongs to that
+ * thread, so time shows how long it was held up by the batch rather than doing its own work.
+ * 
+ * @author Jeff Schnitzer
+ */
+@Name("batchfb.LaterGet")
+@Label("Later Get")
+@Category("BatchFB")
+@Description("Later.get() of a graph request or query; includes how long the thread was blocked waiting for its batch")
+@StackTrace(true)
+class LaterGetEvent extends jdk.jfr.Event {
+	@Label("Batch Id")
+	@Description("-1 if the query was answered from the cache")
+	long batchId;
+	
+	@Label("Index")
+	int index;
+	
+	@Label("Object")
+	@Description("The graph object or connection, or the FQL of a query")
+	String object;
+	
+	@Label("Get Time")
+	@Description("Time in get(), waiting for the batch (or another thread) and mapping the result")
+	@Timespan
+	long time;
+	
+	@Label("Error")
+	String errorType;
+}
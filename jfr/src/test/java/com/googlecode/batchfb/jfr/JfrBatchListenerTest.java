@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.jfr;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.googlecode.batchfb.FacebookBatcher;
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.util.QueryCache;
+import com.googlecode.batchfb.util.RequestBuilder.HttpMethod;
+import com.googlecode.batchfb.util.RequestBuilder.HttpResponse;
+import com.googlecode.batchfb.util.RequestDefinition;
+import com.googlecode.batchfb.util.RequestExecutor;
+import com.googlecode.batchfb.util.RequestSetup;
+
+/**
+ * Records a few batches with Flight Recorder and checks the events which come out.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class JfrBatchListenerTest
+{
+	/** */
+	private static final String FQL = "SELECT name FROM user WHERE uid = 3";
+	
+	/**
+	 * Answers every request with the same response, without any network.
+	 */
+	static class CannedRequestExecutor extends RequestExecutor {
+		byte[] response;
+		
+		CannedRequestExecutor(byte[] response) {
+			this.response = response;
+		}
+		
+		@Override
+		public HttpResponse execute(int retries, RequestSetup setup) throws IOException {
+			setup.setup(new RequestDefinition() {
+				OutputStream sink = OutputStream.nullOutputStream();
+				
+				@Override
+				public void init(HttpMethod meth, String url) {}
+				@Override
+				public void setHeader(String name, String value) {}
+				@Override
+				public OutputStream getContentOutputStream() { return this.sink; }
+				@Override
+				public void setContent(byte[] content) {}
+				@Override
+				public void setTimeout(int millis) {}
+			});
+			
+			return new HttpResponse() {
+				@Override
+				public int getResponseCode() { return 200; }
+				@Override
+				public InputStream getContentStream() { return new ByteArrayInputStream(response); }
+			};
+		}
+	}
+	
+	/** A batch of one graph request and a multiquery of one query */
+	private static byte[] response() throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		ArrayNode batch = mapper.createArrayNode();
+		batch.addObject().put("code", 200).put("body", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		batch.addObject().put("code", 200).put("body", "[{\"name\":\"__q0\",\"fql_result_set\":[{\"name\":\"Sue\"}]}]");
+		return mapper.writeValueAsBytes(batch);
+	}
+	
+	/** */
+	@Test
+	public void everyGetIsRecorded() throws Exception {
+		QueryCache cache = new QueryCache(1, TimeUnit.MINUTES);
+		
+		FacebookBatcher batcher = new FacebookBatcher("token");
+		batcher.setExecutor(new CannedRequestExecutor(response()));
+		batcher.setQueryCache(cache);
+		batcher.setListener(new JfrBatchListener());
+		
+		FacebookBatcher cached = new FacebookBatcher("token");
+		cached.setQueryCache(cache);
+		cached.setListener(new JfrBatchListener());
+		
+		Path file = Files.createTempFile("batchfb", ".jfr");
+		try {
+			try (Recording recording = new Recording()) {
+				recording.enable("batchfb.BatchCreated");
+				recording.enable("batchfb.BatchCall");
+				recording.enable("batchfb.LaterGet");
+				recording.start();
+				
+				Later<JsonNode> me = batcher.graph("me");
+				Later<ArrayNode> sue = batcher.query(FQL);
+				
+				assert me.get().path("name").asText().equals("Bob");
+				assert me.get().path("name").asText().equals("Bob");
+				assert sue.get().get(0).path("name").asText().equals("Sue");
+				
+				// Answered from the cache, so there is no batch
+				assert cached.queryFirst(FQL).get().path("name").asText().equals("Sue");
+				
+				recording.stop();
+				recording.dump(file);
+			}
+			
+			List<RecordedEvent> gets = new ArrayList<RecordedEvent>();
+			int created = 0;
+			int calls = 0;
+			for (RecordedEvent event: RecordingFile.readAllEvents(file)) {
+				String name = event.getEventType().getName();
+				if (name.equals("batchfb.BatchCreated"))
+					created++;
+				else if (name.equals("batchfb.BatchCall"))
+					calls++;
+				else if (name.equals("batchfb.LaterGet"))
+					gets.add(event);
+			}
+			
+			assert created == 1;
+			assert calls == 1;
+			assert gets.size() == 4;
+			
+			int uncached = 0;
+			for (RecordedEvent get: gets) {
+				if (get.getLong("batchId") == -1)
+					assert get.getString("object").equals(FQL);
+				else
+					uncached++;
+			}
+			assert uncached == 3;
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
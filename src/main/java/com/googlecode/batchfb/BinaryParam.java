@@ -22,11 +22,16 @@
 
 package com.googlecode.batchfb;
 
+import java.io.File;
 import java.io.InputStream;
 
 /**
  * <p>A parameter which includes a binary attachment. These can only be used with post() requests.</p>
  * 
+ * <p>Prefer the File constructor when you can; the file's length is known up front so the
+ * upload is streamed straight from disk, and it can be re-read if the request is retried.
+ * An InputStream can only be sent once and may be buffered in memory.</p>
+ * 
  * @author Jeff Schnitzer
  */
 public class BinaryParam extends Param {
@@ -40,6 +45,21 @@ public class BinaryParam extends Param {
 		this.contentType = contentType;
 	}
 	
+	/**
+	 * The file is not opened until the request is sent.
+	 */
+	public BinaryParam(String name, File value, String contentType) {
+		super(name, value);
+		this.contentType = contentType;
+	}
+	
+	/**
+	 * @return the name to give the uploaded file
+	 */
+	public String getFilename() {
+		return (this.value instanceof File) ? ((File)this.value).getName() : "irrelevant";
+	}
+	
 	/**
 	 * @see java.lang.Object#toString()
 	 */
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb;
+
+/**
+ * <p>A Later which can be given up on.  The requests the library hands out implement
+ * this; it is separate from Later so that your own implementations of Later don't
+ * have to.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public interface CancellableLater<T> extends TimedLater<T> {
+	
+	/**
+	 * <p>Gives up on the value.  A request which has not been sent yet is taken out of its
+	 * batch (or its multiquery) so Facebook never sees it; if the batch is already in flight,
+	 * the request's part of the result is dropped rather than mapped.  Afterwards get() throws
+	 * java.util.concurrent.CancellationException.</p>
+	 * 
+	 * @return false if the value was already available or this Later can't be cancelled
+	 */
+	boolean cancel();
+}
@@ -22,27 +22,36 @@
 
 package com.googlecode.batchfb;
 
-import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
-import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.PropertyNamingStrategy;
-import com.fasterxml.jackson.databind.introspect.VisibilityChecker.Std;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.googlecode.batchfb.err.IOFacebookException;
 import com.googlecode.batchfb.impl.Batch;
 import com.googlecode.batchfb.impl.ErrorDetectingWrapper;
+import com.googlecode.batchfb.type.LongList;
+import com.googlecode.batchfb.util.BatchListener;
+import com.googlecode.batchfb.util.Bulkhead;
 import com.googlecode.batchfb.util.CryptoUtils;
+import com.googlecode.batchfb.util.Deadline;
+import com.googlecode.batchfb.util.EndpointSelector;
+import com.googlecode.batchfb.util.FirstElementLater;
+import com.googlecode.batchfb.util.FirstNodeLater;
+import com.googlecode.batchfb.util.HedgePolicy;
 import com.googlecode.batchfb.util.Now;
+import com.googlecode.batchfb.util.QueryCache;
+import com.googlecode.batchfb.util.RateLimiter;
 import com.googlecode.batchfb.util.RequestBuilder;
 import com.googlecode.batchfb.util.RequestBuilder.HttpMethod;
 import com.googlecode.batchfb.util.RequestBuilder.HttpResponse;
+import com.googlecode.batchfb.util.RequestExecutor;
+import com.googlecode.batchfb.util.SharedMapper;
 import com.googlecode.batchfb.util.StringUtils;
 import com.googlecode.batchfb.util.URLParser;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -52,7 +61,7 @@ import java.util.logging.Logger;
  * 
  * @author Jeff Schnitzer
  */
-public class FacebookBatcher implements Batcher {
+public class FacebookBatcher implements StreamingBatcher {
 	
 	/** */
 	@SuppressWarnings("unused")
@@ -70,6 +79,13 @@ public class FacebookBatcher implements Batcher {
 		return getAccessToken(clientId, clientSecret, null, null);
 	}
 	
+	/**
+	 * Same as getAppAccessToken(clientId, clientSecret) but uses the specified executor.
+	 */
+	public static String getAppAccessToken(RequestExecutor executor, String clientId, String clientSecret) {
+		return getAccessToken(executor, GRAPH_ENDPOINT, clientId, clientSecret, null, null);
+	}
+	
 	/**
 	 * Get a user access token from Facebook.  Normally you obtain this from the client-side SDK (javascript, iphone, etc)
 	 * but if you are driving the OAuth flow manually, this method is the last step.
@@ -77,7 +93,29 @@ public class FacebookBatcher implements Batcher {
 	 * see https://developers.facebook.com/docs/authentication/
 	 */
 	public static String getAccessToken(String clientId, String clientSecret, String code, String redirectUri) {
-		RequestBuilder call = new RequestBuilder(GRAPH_ENDPOINT + "oauth/access_token", HttpMethod.GET);
+		return getAccessToken(GRAPH_ENDPOINT, clientId, clientSecret, code, redirectUri);
+	}
+	
+	/**
+	 * Same as getAccessToken(clientId, clientSecret, code, redirectUri) but asks the specified
+	 * endpoint (eg, a proxy) instead of graph.facebook.com.
+	 * 
+	 * @param graphEndpoint is the base url, including the trailing /
+	 */
+	public static String getAccessToken(String graphEndpoint, String clientId, String clientSecret, String code, String redirectUri) {
+		return getAccessToken(null, graphEndpoint, clientId, clientSecret, code, redirectUri);
+	}
+	
+	/**
+	 * Same as getAccessToken(clientId, clientSecret, code, redirectUri) but uses the specified
+	 * executor and endpoint.
+	 * 
+	 * @param executor can be null to use RequestExecutor.instance()
+	 * @param graphEndpoint is the base url, including the trailing /
+	 */
+	public static String getAccessToken(RequestExecutor executor, String graphEndpoint, String clientId, String clientSecret, String code, String redirectUri) {
+		RequestBuilder call = new RequestBuilder(graphEndpoint + "oauth/access_token", HttpMethod.GET);
+		call.setExecutor(executor);
 		call.setTimeout(10 * 1000);	// this is a somewhat crude hack but seems reasonable right now
 		call.addParam("client_id", clientId);
 		call.addParam("client_secret", clientSecret);
@@ -95,7 +133,14 @@ public class FacebookBatcher implements Batcher {
 			if (response.getResponseCode() == 200) {
 				return URLParser.parseQuery(StringUtils.read(response.getContentStream())).get("access_token");
 			} else {
-				Later<JsonNode> json = new Now<JsonNode>(new ObjectMapper().readTree(response.getContentStream()));
+				InputStream content = response.getContentStream();
+				Later<JsonNode> json;
+				try {
+					json = new Now<JsonNode>(SharedMapper.instance().getMapper().readTree(content));
+				} finally {
+					content.close();
+				}
+				
 				new ErrorDetectingWrapper(json).get();	// This should throw an exception
 				throw new IllegalStateException("Impossible, this should have been detected as an error: " + json);
 			}
@@ -115,6 +160,52 @@ public class FacebookBatcher implements Batcher {
 	 */
 	private String apiVersion;
 
+	/**
+	 * Chooses the base url of the Graph API; normally there is only GRAPH_ENDPOINT.
+	 */
+	private EndpointSelector endpoints = new EndpointSelector(GRAPH_ENDPOINT);
+	
+	/**
+	 * If not null, slow read-only batches are hedged.
+	 */
+	private HedgePolicy hedging;
+	
+	/**
+	 * Executes our http requests; null means use RequestExecutor.instance().
+	 */
+	private RequestExecutor executor;
+	
+	/**
+	 * Batch request bodies at least this big are gzipped; 0 for never.
+	 */
+	private int gzipThreshold;
+	
+	/**
+	 * If not null, told what every batch and part cost.
+	 */
+	private BatchListener listener;
+	
+	/**
+	 * Admits batches according to call budgets; null for no limits.
+	 */
+	private RateLimiter rateLimiter;
+	private String appId;
+	
+	/**
+	 * Bounds what this batcher (and any others in its group) can have outstanding; null for no bounds.
+	 */
+	private Bulkhead bulkhead;
+	
+	/**
+	 * Applies to everything this batcher sends; null for no deadline.
+	 */
+	private Deadline deadline;
+	
+	/**
+	 * Answers repeated FQL queries; null for no caching.
+	 */
+	private QueryCache queryCache;
+
 	/**
 	 * The proof that can be passed to FB; null means don't pass it. It is calculated
 	 * per https://developers.facebook.com/docs/graph-api/securing-requests
@@ -123,9 +214,10 @@ public class FacebookBatcher implements Batcher {
 	private String appSecretProof;
 	
 	/**
-	 * Jackson mapper used to translate all JSON to java classes.
+	 * Jackson mapper used to translate all JSON to java classes.  Shared with every other
+	 * batcher until someone asks for it via getMapper().
 	 */
-	private ObjectMapper mapper = new ObjectMapper();
+	private SharedMapper mapper = SharedMapper.instance();
 	
 	/**
 	 * Connection and read timeout for http connections, 0 for no timeout
@@ -142,6 +234,11 @@ public class FacebookBatcher implements Batcher {
 	 */
 	private int maxBatchSize = 50;
 	
+	/**
+	 * Maximum number of queries in a single multiquery, 0 for no limit.
+	 */
+	private int maxMultiquerySize = 50;
+	
 	/**
 	 * Active batches
 	 */
@@ -195,26 +292,239 @@ public class FacebookBatcher implements Batcher {
 
 		if (appSecret != null)
 			this.appSecretProof = CryptoUtils.makeAppSecretProof(appSecret, accessToken);
-		
-		// This allows us to deserialize private fields
-		this.mapper.setVisibilityChecker(Std.defaultInstance().withFieldVisibility(Visibility.NON_PRIVATE));
-		
-		// Shouldn't force users to create classes with all fields
-		this.mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		
-		// We don't want to send null values to FB for things like omit_response_on_success
-		this.mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-
-		// Facebook uses underscores, not camelcase
-		this.mapper.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
 	}
 	
 	/**
 	 * Get the Jackson mapper which will be used to transform all JSON responses into objects.
 	 * You can change the configuration of this mapper to alter the mapping.
+	 * 
+	 * <p>By default all batchers share a single, pre-configured mapper.  Calling this method
+	 * gives this batcher its own private copy (so your changes don't leak into other batchers),
+	 * at the cost of Jackson's warm caches.  Changes only affect batches created afterwards.
+	 * If you want custom configuration for many batchers, create one SharedMapper and pass
+	 * it to setMapper() instead.</p>
 	 */
 	public ObjectMapper getMapper() {
-		return this.mapper;
+		if (this.mapper == SharedMapper.instance())
+			this.mapper = new SharedMapper(this.mapper.getMapper().copy());
+		
+		return this.mapper.getMapper();
+	}
+	
+	/**
+	 * Sets the mapper used by this batcher.  Use this to share a custom mapper configuration
+	 * among many batchers without paying Jackson's warmup cost for each one.
+	 */
+	public void setMapper(SharedMapper value) {
+		if (!this.batches.isEmpty())
+			throw new IllegalStateException("Can't set mapper after batches have been created");
+		
+		this.mapper = value;
+	}
+	
+	/**
+	 * Sends this batcher's requests somewhere other than graph.facebook.com, eg a proxy
+	 * or an in-process fake server for offline and load testing.  The api version (if any)
+	 * is appended to this.
+	 * 
+	 * @param url is the base url, including the trailing /.  Default is GRAPH_ENDPOINT.
+	 */
+	public void setGraphEndpoint(String url) {
+		this.setGraphEndpoints(new EndpointSelector(url));
+	}
+	
+	/**
+	 * Spreads this batcher's requests over several equivalent endpoints, choosing by
+	 * observed latency and error rate and failing over when one can't be reached.
+	 * Share one selector among all your batchers so they learn from each other.
+	 */
+	public void setGraphEndpoints(EndpointSelector value) {
+		if (!this.batches.isEmpty())
+			throw new IllegalStateException("Can't set graph endpoint after batches have been created");
+		
+		this.endpoints = value;
+	}
+	
+	/**
+	 * Gets the selector which chooses the base url of the Graph API for this batcher.
+	 */
+	public EndpointSelector getGraphEndpoints() {
+		return this.endpoints;
+	}
+	
+	/**
+	 * <p>Gives this batcher its own executor, and thus its own connections and threads, instead of
+	 * the global default.  For example, interactive traffic can have an executor that batch jobs
+	 * can't starve.</p>
+	 * 
+	 * <p>The batcher does not close the executor; you should when you are done with it.</p>
+	 * 
+	 * @param value can be null to use RequestExecutor.instance(), which is the default.
+	 */
+	public void setExecutor(RequestExecutor value) {
+		if (!this.batches.isEmpty())
+			throw new IllegalStateException("Can't set executor after batches have been created");
+		
+		this.executor = value;
+	}
+	
+	/**
+	 * Gets this batcher's executor, or null if it uses the global default.
+	 */
+	public RequestExecutor getExecutor() {
+		return this.executor;
+	}
+	
+	/**
+	 * <p>Compresses batch request bodies of at least the specified size with gzip (Content-Encoding).
+	 * Large batches of requests are very repetitive and compress well.  Responses are always
+	 * compressed if the server is willing.</p>
+	 * 
+	 * @param bytes is the smallest body to compress, or 0 to never compress, which is the default.
+	 */
+	public void setGzipThreshold(int bytes) {
+		if (!this.batches.isEmpty())
+			throw new IllegalStateException("Can't set gzip threshold after batches have been created");
+		
+		this.gzipThreshold = bytes;
+	}
+	
+	/**
+	 * <p>Turns on hedging for batches which contain only reads (graph GETs and FQL).  If such
+	 * a batch is slower than most, a duplicate is sent and the first response is used.  The
+	 * policy limits how many extra requests this can cost; share one policy among all your
+	 * batchers to make it a global limit.</p>
+	 * 
+	 * <p>This has no effect unless the RequestExecutor can cancel requests.</p>
+	 * 
+	 * @param policy can be null to turn hedging off, which is the default.
+	 */
+	public void setHedging(HedgePolicy policy) {
+		if (!this.batches.isEmpty())
+			throw new IllegalStateException("Can't set hedging after batches have been created");
+		
+		this.hedging = policy;
+	}
+	
+	/**
+	 * Gets the hedging policy, or null if hedging is off.
+	 */
+	public HedgePolicy getHedging() {
+		return this.hedging;
+	}
+	
+	/**
+	 * <p>Reports sizes, timings, status codes and errors for every batch call and every graph
+	 * request.  HistogramListener keeps statistics; share one among batchers to see totals.</p>
+	 * 
+	 * @param value can be null, which is the default; then nothing is measured.
+	 */
+	public void setListener(BatchListener value) {
+		if (!this.batches.isEmpty())
+			throw new IllegalStateException("Can't set listener after batches have been created");
+		
+		this.listener = value;
+	}
+	
+	/**
+	 * Gets the listener, or null if there isn't one.
+	 */
+	public BatchListener getListener() {
+		return this.listener;
+	}
+	
+	/**
+	 * <p>Makes every batch spend from the app's and the token's call budgets before it is sent,
+	 * one permit per graph request.  Share one limiter among all your batchers (or give it a
+	 * shared Store) to make the budgets global.  Batches which can't be admitted wait, or
+	 * throw RateLimitedException, depending on how the limiter is configured.</p>
+	 * 
+	 * @param limiter can be null to send without limits, which is the default.
+	 * @param appId identifies the app's bucket; can be null to apply only the token limit.
+	 */
+	public void setRateLimiter(RateLimiter limiter, String appId) {
+		if (!this.batches.isEmpty())
+			throw new IllegalStateException("Can't set rate limiter after batches have been created");
+		
+		this.rateLimiter = limiter;
+		this.appId = appId;
+	}
+	
+	/**
+	 * Gets the rate limiter, or null if there isn't one.
+	 */
+	public RateLimiter getRateLimiter() {
+		return this.rateLimiter;
+	}
+	
+	/**
+	 * <p>Puts this batcher in a compartment which bounds how many batches can be in flight
+	 * and how many requests can be queued.  Batchers which share a bulkhead share its bounds;
+	 * give different workloads different bulkheads.  If a new request doesn't fit in the
+	 * queue, this batcher sends what it has before waiting (or failing with
+	 * BulkheadFullException) for room.</p>
+	 * 
+	 * @param value can be null for no bounds, which is the default.
+	 */
+	public void setBulkhead(Bulkhead value) {
+		if (!this.batches.isEmpty())
+			throw new IllegalStateException("Can't set bulkhead after batches have been created");
+		
+		this.bulkhead = value;
+	}
+	
+	/**
+	 * Gets the bulkhead, or null if there isn't one.
+	 */
+	public Bulkhead getBulkhead() {
+		return this.bulkhead;
+	}
+	
+	/**
+	 * <p>Sets a deadline for everything this batcher sends, say the time budget of the web
+	 * request you are handling.  Requests still waiting to be sent when it passes are left
+	 * out of their batch and throw DeadlineExceededException; batches which are sent get
+	 * http timeouts (including retries) no longer than the time remaining.  Individual
+	 * requests can have earlier deadlines of their own; see Request.setDeadline().</p>
+	 * 
+	 * <p>Unlike most settings, this can be changed at any time; it applies to all batches
+	 * which have not yet been sent.</p>
+	 * 
+	 * @param value can be null for no deadline, which is the default.
+	 */
+	public void setDeadline(Deadline value) {
+		this.deadline = value;
+		
+		for (Batch batch: this.batches)
+			batch.setDeadline(value);
+	}
+	
+	/**
+	 * Gets the deadline, or null if there isn't one.
+	 */
+	public Deadline getDeadline() {
+		return this.deadline;
+	}
+	
+	/**
+	 * Answers FQL queries from the cache when it has a fresh result for this batcher's access
+	 * token, and remembers the results of the ones which are sent.  Share one cache among all
+	 * your batchers.
+	 * 
+	 * @param value can be null for no caching, which is the default.
+	 */
+	public void setQueryCache(QueryCache value) {
+		if (!this.batches.isEmpty())
+			throw new IllegalStateException("Can't set query cache after batches have been created");
+		
+		this.queryCache = value;
+	}
+	
+	/**
+	 * Gets the query cache, or null if there isn't one.
+	 */
+	public QueryCache getQueryCache() {
+		return this.queryCache;
 	}
 	
 	/**
@@ -267,6 +577,20 @@ public class FacebookBatcher implements Batcher {
 		this.maxBatchSize = max;
 	}
 	
+	/**
+	 * <p>Maximum number of FQL queries to put in a single multiquery.  Past this, queries
+	 * go into another multiquery, which takes another slot in the batch (or the next batch,
+	 * if this one is full).  A multiquery with thousands of queries in it tends to time out.</p>
+	 * 
+	 * <p>Default value is 50.  0 puts every query of a batch into one multiquery.</p>
+	 */
+	public void setMaxMultiquerySize(int max) {
+		if (!this.batches.isEmpty())
+			throw new IllegalStateException("Can't set max multiquery size after batches have been created");
+		
+		this.maxMultiquerySize = max;
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.googlecode.batchfb.Batcher#graph(java.lang.String, java.lang.Class, com.googlecode.batchfb.Param[])
 	 */
@@ -305,7 +629,7 @@ public class FacebookBatcher implements Batcher {
 	@Override
 	public <T> QueryRequest<List<T>> query(String fql, Class<T> type)
 	{
-		return this.getBatchForQuery().query(fql, type);
+		return this.query(fql, this.mapper.getMapper().getTypeFactory().constructCollectionType(ArrayList.class, type));
 	}
 
 	/* (non-Javadoc)
@@ -314,32 +638,65 @@ public class FacebookBatcher implements Batcher {
 	@Override
 	public QueryRequest<ArrayNode> query(String fql)
 	{
-		return this.getBatchForQuery().query(fql);
+		return this.query(fql, this.mapper.constructType(ArrayNode.class));
 	}
 
 	/* (non-Javadoc)
 	 * @see com.googlecode.batchfb.Batcher#queryFirst(java.lang.String, java.lang.Class)
 	 */
 	@Override
-	public <T> Later<T> queryFirst(String fql, Class<T> type)
+	public <T> CancellableLater<T> queryFirst(String fql, Class<T> type)
 	{
-		return this.getBatchForQuery().queryFirst(fql, type);
+		Later<List<T>> q = this.query(fql, type);
+		return new FirstElementLater<T>(q);
 	}
 
 	/* (non-Javadoc)
 	 * @see com.googlecode.batchfb.Batcher#queryFirst(java.lang.String)
 	 */
 	@Override
-	public Later<JsonNode> queryFirst(String fql)
+	public CancellableLater<JsonNode> queryFirst(String fql)
+	{
+		Later<ArrayNode> q = this.query(fql);
+		return new FirstNodeLater(q);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.StreamingBatcher#queryIds(java.lang.String)
+	 */
+	@Override
+	public Request<LongList> queryIds(String fql)
+	{
+		return this.getBatchForGraph().queryIds(fql);
+	}
+	
+	/**
+	 * Answers the query from the cache if we can, which needs no batch; otherwise it joins
+	 * the multiquery of an appropriate batch.
+	 */
+	private <T> QueryRequest<T> query(String fql, JavaType type)
+	{
+		JsonNode cached = (this.queryCache == null) ? null : this.queryCache.get(this.accessToken, fql);
+		if (cached != null)
+			return Batch.answer(fql, type, this.mapper, cached, this.listener);
+		else
+			return this.getBatchForQuery(fql).joinMultiquery(fql, type);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.StreamingBatcher#queryStream(java.lang.String, java.lang.Class, com.googlecode.batchfb.RowHandler)
+	 */
+	@Override
+	public <T> Request<Integer> queryStream(String fql, Class<T> type, RowHandler<T> handler)
 	{
-		return this.getBatchForQuery().queryFirst(fql);
+		return this.getBatchForGraph().queryStream(fql, type, handler);
 	}
 
 	/* (non-Javadoc)
 	 * @see com.googlecode.batchfb.Batcher#delete(java.lang.String)
 	 */
 	@Override
-	public Later<Boolean> delete(String object)
+	public CancellableLater<Boolean> delete(String object)
 	{
 		return this.getBatchForGraph().delete(object);
 	}
@@ -348,7 +705,7 @@ public class FacebookBatcher implements Batcher {
 	 * @see com.googlecode.batchfb.Batcher#post(java.lang.String, com.googlecode.batchfb.Param[])
 	 */
 	@Override
-	public Later<String> post(String object, Param... params)
+	public CancellableLater<String> post(String object, Param... params)
 	{
 		return this.getBatchForGraph().post(object, params);
 	}
@@ -388,24 +745,68 @@ public class FacebookBatcher implements Batcher {
 	 * if all existing batches are full.
 	 */
 	private Batch getBatchForGraph() {
+		if (this.bulkhead == null)
+			return this.findBatchForGraph();
+		
+		this.enqueue();
+		
+		Batch batch = this.findBatchForGraph();
+		batch.addQueued(1);
+		return batch;
+	}
+	
+	/**
+	 * Takes a place in the bulkhead's queue for a new request.
+	 */
+	private void enqueue() {
+		// If the queue is full, the requests we're holding may be the reason
+		if (!this.bulkhead.tryEnqueue(1)) {
+			this.execute();
+			this.bulkhead.enqueue(1);
+		}
+	}
+	
+	/**
+	 * Finds the last batch if it has room, otherwise constructs a new one.  A batch sent by a
+	 * get(timeout, unit) is still on our list but can't take any more.
+	 */
+	private Batch findBatchForGraph() {
 		Batch lastValidBatch = this.batches.isEmpty() ? null : this.batches.get(this.batches.size()-1);
 		
-		if (lastValidBatch != null && lastValidBatch.graphSize() < this.maxBatchSize)
+		if (lastValidBatch != null && !lastValidBatch.isExecuted() && lastValidBatch.graphSize() < this.maxBatchSize)
 			return lastValidBatch;
 		else {
-			Batch next = new Batch(this, this.mapper, this.accessToken, this.apiVersion, this.timeout, this.retries);
+			Batch next = new Batch(this, this.mapper, this.endpoints, this.accessToken, this.apiVersion, this.timeout, this.retries);
+			next.setHedging(this.hedging);
+			next.setExecutor(this.executor);
+			next.setGzipThreshold(this.gzipThreshold);
+			next.setListener(this.listener);
+			next.setRateLimiter(this.rateLimiter, this.appId);
+			next.setBulkhead(this.bulkhead);
+			next.setDeadline(this.deadline);
+			next.setMaxMultiquerySize(this.maxMultiquerySize);
+			next.setQueryCache(this.queryCache);
 			this.batches.add(next);
 			return next;
 		}
 	}
 
 	/**
-	 * Get an appropriate Batch for issuing a new FQL call.  Will construct a new one
-	 * if all existing batches are full. Note that all query() calls occur on the same batch.
-	 */
-	private Batch getBatchForQuery() {
-		if (this.queryBatch == null)
-			this.queryBatch = this.getBatchForGraph();
+	 * Get an appropriate Batch for issuing a new FQL call.  Queries join the multiquery of the
+	 * same batch until it is full; the next one takes a graph slot like any other request.
+	 * Each query takes its own place in the bulkhead's queue, whether or not it starts a
+	 * multiquery.
+	 */
+	private Batch getBatchForQuery(String fql) {
+		// Sending what we hold to make room also forgets the query batch
+		if (this.bulkhead != null)
+			this.enqueue();
+		
+		if (this.queryBatch == null || !this.queryBatch.canJoinMultiquery(fql))
+			this.queryBatch = this.findBatchForGraph();
+		
+		if (this.bulkhead != null)
+			this.queryBatch.addQueued(1);
 		
 		return this.queryBatch;
 	}
@@ -1,5 +1,9 @@
 package com.googlecode.batchfb;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -10,7 +14,10 @@ import com.googlecode.batchfb.util.StringUtils;
  * <p>Common behavior for the requests that get batched at the top level.</p>
  * 
  * <p>A little trick: This object is also serialized out to JSON as the array of batch parameters
- * to the Facebook call.  Its getters return the appropriate data.
+ * to the Facebook call.  Its getters return the appropriate data.</p>
+ * 
+ * <p>Binary params can't go in the relative url; they travel as parts of the multipart batch
+ * request and are referred to by name in attached_files.</p>
  */
 abstract public class GraphRequestBase<T> extends Request<T> {
 	private String object;
@@ -19,6 +26,9 @@ abstract public class GraphRequestBase<T> extends Request<T> {
 	/** This is an oddity because if missing it is by default true */
 	private Boolean omitResponseOnSuccess;
 	
+	/** Comma-separated names of the batch request parts holding our binary params, if any */
+	private String attachedFiles;
+	
 	@JsonIgnore
 	protected ObjectMapper mapper;
 	
@@ -48,6 +58,45 @@ abstract public class GraphRequestBase<T> extends Request<T> {
 		return this.omitResponseOnSuccess;
 	}
 	
+	/**
+	 * @return the binary params, which are left out of the relative url; empty if none
+	 */
+	@JsonIgnore
+	public List<BinaryParam> getBinaryParams() {
+		Param[] params = this.getParams();
+		if (params == null)
+			return Collections.emptyList();
+		
+		List<BinaryParam> binaries = null;
+		for (Param param: params) {
+			if (param instanceof BinaryParam) {
+				if (binaries == null)
+					binaries = new ArrayList<BinaryParam>();
+				
+				binaries.add((BinaryParam)param);
+			}
+		}
+		
+		return binaries == null ? Collections.<BinaryParam>emptyList() : binaries;
+	}
+	
+	/** Set by the batch when it assigns part names to our binary params */
+	public void setAttachedFiles(String value) {
+		this.attachedFiles = value;
+	}
+	
+	/** Null (and therefore left out of the batch) if there are no binary params */
+	@JsonProperty("attached_files")
+	public String getAttachedFiles() {
+		return this.attachedFiles;
+	}
+	
+	/** The graph object or connection, without any params */
+	@JsonIgnore
+	public String getObject() {
+		return this.object;
+	}
+	
 	/** Jackson does the right thing with this */
 	public HttpMethod getMethod() {
 		return this.method;
@@ -66,21 +115,24 @@ abstract public class GraphRequestBase<T> extends Request<T> {
 			boolean afterFirst = false;
 			
 			for (Param param: params) {
+				// These go in attached_files instead
+				if (param instanceof BinaryParam)
+					continue;
+				
 				if (afterFirst)
 					bld.append('&');
 				else
 					afterFirst = true;
 				
-				if (param instanceof BinaryParam) {
-					//call.addParam(param.name, (InputStream)param.value, ((BinaryParam)param).contentType, "irrelevant");
-					throw new UnsupportedOperationException("Not quite sure what to do with BinaryParam yet");
-				} else {
-					String paramValue = StringUtils.stringifyValue(param, this.mapper);
-					bld.append(StringUtils.urlEncode(param.name));
-					bld.append('=');
-					bld.append(StringUtils.urlEncode(paramValue));
-				}
+				String paramValue = StringUtils.stringifyValue(param, this.mapper);
+				bld.append(StringUtils.urlEncode(param.name));
+				bld.append('=');
+				bld.append(StringUtils.urlEncode(paramValue));
 			}
+			
+			// All the params might have been binary
+			if (!afterFirst)
+				bld.setLength(bld.length() - 1);
 		}
 		
 		return bld.toString();
@@ -1,5 +1,7 @@
 package com.googlecode.batchfb;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.googlecode.batchfb.util.Deadline;
 import com.googlecode.batchfb.util.LaterWrapper;
 
 /** 
@@ -9,6 +11,12 @@ public class Request<T> extends LaterWrapper<T, T> {
 	
 	private String name;
 	
+	/** Null for no deadline of our own */
+	private volatile Deadline deadline;
+	
+	/** Set when the response arrives */
+	private volatile ResponseInfo responseInfo;
+	
 	public Request(Later<T> source) {
 		super(source);
 	}
@@ -31,4 +39,43 @@ public class Request<T> extends LaterWrapper<T, T> {
 		this.name = value;
 		return this;
 	}
+	
+	/**
+	 * The deadline of this request, if it has one of its own.
+	 */
+	@JsonIgnore
+	public Deadline getDeadline() {
+		return this.deadline;
+	}
+	
+	/**
+	 * Sets a deadline for this request.  If it has passed by the time the batch is sent,
+	 * the request is left out and get() throws DeadlineExceededException; otherwise the
+	 * batch's http timeouts are bounded by it (along with every other request's).  FQL
+	 * queries are sent together, so they are only left out if all of them have expired.
+	 * 
+	 * This method can be chained.
+	 * 
+	 * @param value can be null for no deadline of its own (the batcher's still applies)
+	 */
+	public Request<T> setDeadline(Deadline value) {
+		this.deadline = value;
+		return this;
+	}
+	
+	/**
+	 * The http code, headers, and size of this request's response, and the timings of the batch
+	 * it came back in.  Null until the request has been resolved (ie, get() has been called).
+	 */
+	@JsonIgnore
+	public ResponseInfo getResponseInfo() {
+		return this.responseInfo;
+	}
+	
+	/**
+	 * Called by the batch machinery when the response is extracted.
+	 */
+	public void setResponseInfo(ResponseInfo value) {
+		this.responseInfo = value;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.googlecode.batchfb.util.StringUtils;
+
+/**
+ * <p>What came back for one request: the http code and headers of its part of the batch,
+ * the size of its body, and the network and parse times of the batch it arrived in.
+ * Available from Request.getResponseInfo() once the request has been resolved.</p>
+ * 
+ * <p>FQL queries share the information of the multiquery they were part of.  Timings and
+ * sizes which could not be measured are -1.  The size of the body is only worked out the
+ * first time it is asked for; until then the info holds on to the body's text.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class ResponseInfo {
+	
+	/** */
+	private int code;
+	
+	/** The part's array of {name, value}; parsed only on demand */
+	private JsonNode headers;
+	
+	/** The body's text until its size has been worked out, then null */
+	private volatile String body;
+	private volatile long bodyBytes;
+	
+	/** */
+	private long batchId;
+	private long batchNetworkNanos;
+	private long batchParseNanos;
+	private long batchResponseBytes;
+	
+	/**
+	 * @param headers should be the array of {"name":..., "value":...} from a batch part, or null
+	 */
+	public ResponseInfo(int code, JsonNode headers, long bodyBytes, long batchId, long batchNetworkNanos, long batchParseNanos, long batchResponseBytes) {
+		this.code = code;
+		this.headers = headers;
+		this.bodyBytes = bodyBytes;
+		this.batchId = batchId;
+		this.batchNetworkNanos = batchNetworkNanos;
+		this.batchParseNanos = batchParseNanos;
+		this.batchResponseBytes = batchResponseBytes;
+	}
+	
+	/**
+	 * @param body is the text of the part's body, whose size will be worked out when asked for
+	 */
+	public ResponseInfo(int code, JsonNode headers, String body, long batchId, long batchNetworkNanos, long batchParseNanos, long batchResponseBytes) {
+		this(code, headers, 0, batchId, batchNetworkNanos, batchParseNanos, batchResponseBytes);
+		this.body = body;
+	}
+	
+	/** The http code Facebook gave this request's part of the batch */
+	public int getCode() {
+		return this.code;
+	}
+	
+	/** @return true if the code was 2XX */
+	public boolean isSuccess() {
+		return this.code >= 200 && this.code < 300;
+	}
+	
+	/**
+	 * @return the value of the header, ignoring case, or null if there isn't one
+	 */
+	public String getHeader(String name) {
+		if (this.headers == null)
+			return null;
+		
+		for (JsonNode header: this.headers)
+			if (name.equalsIgnoreCase(header.path("name").textValue()))
+				return header.path("value").textValue();
+		
+		return null;
+	}
+	
+	/**
+	 * @return all the headers of the part, in order
+	 */
+	public Map<String, String> getHeaders() {
+		if (this.headers == null)
+			return Collections.emptyMap();
+		
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		for (JsonNode header: this.headers)
+			result.put(header.path("name").textValue(), header.path("value").textValue());
+		
+		return result;
+	}
+	
+	/** Shortcut for the ETag header, which can be sent back as If-None-Match */
+	public String getETag() {
+		return this.getHeader("ETag");
+	}
+	
+	/** Shortcut for the X-App-Usage header, Facebook's report of how close the app is to being throttled */
+	public String getAppUsage() {
+		return this.getHeader("X-App-Usage");
+	}
+	
+	/** Shortcut for the x-fb-trace-id header, which Facebook support will ask for */
+	public String getTraceId() {
+		return this.getHeader("x-fb-trace-id");
+	}
+	
+	/** Size of this request's body in UTF-8 */
+	public long getBodyBytes() {
+		String text = this.body;
+		if (text != null) {
+			// The size must be visible before the text is let go of
+			this.bodyBytes = StringUtils.utf8Length(text);
+			this.body = null;
+		}
+		
+		return this.bodyBytes;
+	}
+	
+	/** See Batch.getId(); 0 if not known */
+	public long getBatchId() {
+		return this.batchId;
+	}
+	
+	/** Time from sending the batch until its response status arrived */
+	public long getBatchNetworkNanos() {
+		return this.batchNetworkNanos;
+	}
+	
+	/** Time spent reading and parsing the whole batch response */
+	public long getBatchParseNanos() {
+		return this.batchParseNanos;
+	}
+	
+	/** Size of the whole batch response body */
+	public long getBatchResponseBytes() {
+		return this.batchResponseBytes;
+	}
+	
+	/** */
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName() + "{code=" + this.code + ", bodyBytes=" + this.getBodyBytes() + ", batchId=" + this.batchId + "}";
+	}
+}
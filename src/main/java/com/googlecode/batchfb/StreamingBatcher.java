@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb;
+
+import com.googlecode.batchfb.type.LongList;
+
+/**
+ * <p>The Batcher methods which hand back FQL results without mapping them into lists
+ * of objects.  FacebookBatcher implements this; it is separate from Batcher so that
+ * existing implementations of Batcher don't have to.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public interface StreamingBatcher extends Batcher {
+	
+	/**
+	 * Enqueue a FQL call which selects a single column of numeric ids, eg
+	 * "SELECT uid2 FROM friend WHERE uid1 = me()".  The ids are collected into a
+	 * LongList rather than a list of objects, straight from the response text.  The
+	 * query takes its own slot in the batch instead of joining the multiquery, so it
+	 * can't refer to other queries' results and doesn't use the QueryCache.
+	 * 
+	 * @param fql is the query to run
+	 */
+	public Request<LongList> queryIds(String fql);
+	
+	/**
+	 * <p>Enqueue a FQL call whose rows are mapped and handed to the handler one at a time as
+	 * the response is parsed, rather than collected into a list.  Use this for result sets
+	 * too large to hold in memory more than once.</p>
+	 * 
+	 * <p>The query is not part of a multiquery, so it can't refer to other queries by name and
+	 * takes a graph slot of its own.  It is neither shared with identical queries nor cached.
+	 * Rows are delivered when get() is first called, on the calling thread.</p>
+	 * 
+	 * @param fql is the query to run
+	 * @param type is what each row will be mapped to
+	 * @return a request whose value is the number of rows handled
+	 */
+	public <T> Request<Integer> queryStream(String fql, Class<T> type, RowHandler<T> handler);
+}
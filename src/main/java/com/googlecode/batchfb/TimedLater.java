@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb;
+
+import java.util.concurrent.TimeUnit;
+
+import com.googlecode.batchfb.err.DeadlineExceededException;
+import com.googlecode.batchfb.err.FacebookException;
+
+/**
+ * <p>A Later which can be asked for its value with a time limit.  Every Later the library
+ * hands out implements this; it is separate from Later so that your own implementations
+ * of Later don't have to.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public interface TimedLater<T> extends Later<T> {
+	
+	/**
+	 * <p>Like get(), but waits no longer than the timeout.  If the value is already available,
+	 * this returns it immediately.  Everything happens on the calling thread.  If the batch
+	 * hasn't been sent yet, it is sent (alone; other pending batches wait for the next get())
+	 * with the timeout as its deadline, and if that passes the batch is sent again by the next
+	 * get().  If another thread is already waiting for the batch, this only stops waiting;
+	 * the batch carries on, and a later get() sees its result.</p>
+	 * 
+	 * @throws DeadlineExceededException if the time ran out
+	 * @throws FacebookException if anything else went wrong with the Facebook interaction
+	 */
+	T get(long timeout, TimeUnit unit) throws FacebookException;
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.googlecode.batchfb.err.ErrorFacebookException;
+import com.googlecode.batchfb.err.FacebookException;
+import com.googlecode.batchfb.err.IOFacebookException;
+import com.googlecode.batchfb.impl.ErrorDetectingWrapper;
+import com.googlecode.batchfb.util.Now;
+import com.googlecode.batchfb.util.RequestBuilder;
+import com.googlecode.batchfb.util.RequestBuilder.HttpMethod;
+import com.googlecode.batchfb.util.RequestBuilder.HttpResponse;
+import com.googlecode.batchfb.util.RequestExecutor;
+import com.googlecode.batchfb.util.SharedMapper;
+import com.googlecode.batchfb.util.StringUtils;
+
+/**
+ * <p>Uploads a large video with the Graph API's resumable protocol: a start phase which
+ * opens an upload session, transfer phases which each send one chunk at an offset, and a
+ * finish phase which publishes the video.</p>
+ * 
+ * <pre>
+ * VideoUploader uploader = new VideoUploader(accessToken, "me", new File("big.mp4"));
+ * uploader.setApiVersion("v2.3");
+ * uploader.addParam(new Param("title", "My vacation"));
+ * String videoId = uploader.upload();
+ * </pre>
+ * 
+ * <p>Each chunk is a memory-mapped region of the file, so nothing is copied onto the heap
+ * (except by executors which must buffer the body, like the App Engine one).  Transient
+ * failures are retried per chunk.  If upload() still fails, the uploader remembers the last
+ * acknowledged offset and calling upload() again picks up from there; to resume in another
+ * process, save getUploadSessionId(), getVideoId() and getOffset() and pass them to resume().</p>
+ * 
+ * <p>Facebook normally expects chunks in order, each at the offset it asked for.  Where it
+ * accepts them out of order, setParallelism() sends several chunks at once; the acknowledged
+ * offset is then the end of the contiguous run of completed chunks.</p>
+ * 
+ * <p>Not thread-safe; use one uploader per video.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class VideoUploader {
+	/** */
+	private static final Logger log = Logger.getLogger(VideoUploader.class.getName());
+	
+	/** Used when the server doesn't suggest a chunk size, and as the minimum for parallel chunks */
+	public static final long DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	
+	/** Facebook error codes which mean "try again" */
+	private static final int ERROR_UNKNOWN = 1;
+	private static final int ERROR_SERVICE = 2;
+	private static final int ERROR_VIDEO_UPLOAD = 6000;
+	
+	/** */
+	private String accessToken;
+	private String target;
+	private File file;
+	
+	/** */
+	private String graphEndpoint = FacebookBatcher.GRAPH_ENDPOINT;
+	private String apiVersion;
+	private RequestExecutor executor;
+	private int timeout;
+	private int retries = 3;
+	private int parallelism = 1;
+	private long chunkSize;
+	
+	/** Sent with the finish phase, eg title and description */
+	private List<Param> params = new ArrayList<Param>();
+	
+	/** Progress so far; kept across failed calls to upload() */
+	private String uploadSessionId;
+	private String videoId;
+	private long offset;
+	
+	/** Where the server asked the next chunk to end; 0 if it hasn't said */
+	private long nextEnd;
+	
+	/**
+	 * @param target is the id of the user, page, or group the video is posted to; "me" works too.
+	 */
+	public VideoUploader(String accessToken, String target, File file) {
+		this.accessToken = accessToken;
+		this.target = target;
+		this.file = file;
+	}
+	
+	/** The base url, including the trailing /; default is FacebookBatcher.GRAPH_ENDPOINT */
+	public void setGraphEndpoint(String value) {
+		this.graphEndpoint = value;
+	}
+	
+	/** Facebook api version, eg "v2.3"; default is a versionless request */
+	public void setApiVersion(String value) {
+		this.apiVersion = value;
+	}
+	
+	/** @param value can be null to use RequestExecutor.instance() */
+	public void setExecutor(RequestExecutor value) {
+		this.executor = value;
+	}
+	
+	/** Connect and read timeout of each request in millis; default 0 for none */
+	public void setTimeout(int millis) {
+		this.timeout = millis;
+	}
+	
+	/** Number of times to retry each phase (or chunk) after a transient failure; default 3 */
+	public void setRetries(int value) {
+		this.retries = value;
+	}
+	
+	/** Number of chunks to transfer at once; default 1, which follows the server's offsets exactly */
+	public void setParallelism(int value) {
+		if (value < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		
+		this.parallelism = value;
+	}
+	
+	/** Size of chunks; default 0 means use what the server suggests */
+	public void setChunkSize(long bytes) {
+		this.chunkSize = bytes;
+	}
+	
+	/** Adds a param to the finish phase, eg title or description */
+	public void addParam(Param param) {
+		this.params.add(param);
+	}
+	
+	/** @return null until the upload session has started */
+	public String getUploadSessionId() {
+		return this.uploadSessionId;
+	}
+	
+	/** @return null until the upload session has started */
+	public String getVideoId() {
+		return this.videoId;
+	}
+	
+	/** @return the number of bytes the server has acknowledged */
+	public long getOffset() {
+		return this.offset;
+	}
+	
+	/**
+	 * Continues an upload session begun elsewhere, eg by an uploader in a process which died.
+	 * The next upload() skips the start phase and transfers from the offset.
+	 */
+	public void resume(String uploadSessionId, String videoId, long offset) {
+		this.uploadSessionId = uploadSessionId;
+		this.videoId = videoId;
+		this.offset = offset;
+		this.nextEnd = 0;
+	}
+	
+	/**
+	 * Uploads whatever hasn't been acknowledged yet and publishes the video.  If this throws,
+	 * it can be called again to resume.
+	 * 
+	 * @return the id of the video
+	 */
+	public String upload() throws FacebookException {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				long size = channel.size();
+				
+				if (this.uploadSessionId == null)
+					this.start(size);
+				
+				if (this.parallelism > 1)
+					this.transferParallel(channel, size);
+				else
+					this.transferSequential(channel, size);
+				
+				this.finish();
+				
+				String result = this.videoId;
+				this.uploadSessionId = null;
+				return result;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ex) {
+			throw new IOFacebookException(ex);
+		}
+	}
+	
+	/** */
+	private void start(long size) {
+		RequestBuilder call = this.createCall();
+		call.addParam("upload_phase", "start");
+		call.addParam("file_size", Long.toString(size));
+		
+		JsonNode result = this.executeWithRetries(call);
+		
+		this.uploadSessionId = result.path("upload_session_id").asText();
+		this.videoId = result.path("video_id").asText();
+		this.offset = result.path("start_offset").asLong();
+		this.nextEnd = result.path("end_offset").asLong();
+	}
+	
+	/**
+	 * Sends one chunk at a time, wherever the server says.
+	 */
+	private void transferSequential(FileChannel channel, long size) throws IOException {
+		while (this.offset < size) {
+			long end = (this.chunkSize == 0 && this.nextEnd > this.offset) ? this.nextEnd : this.offset + this.getChunkSize();
+			end = Math.min(end, size);
+			
+			JsonNode result = this.transfer(channel, this.offset, end);
+			
+			this.offset = result.path("start_offset").asLong(end);
+			this.nextEnd = result.path("end_offset").asLong(0);
+		}
+	}
+	
+	/**
+	 * Sends up to parallelism fixed-size chunks at once.  On failure, waits for the chunks in
+	 * flight so that as much progress as possible is kept.
+	 */
+	private void transferParallel(final FileChannel channel, long size) throws IOException {
+		final long chunk = this.getChunkSize();
+		
+		ExecutorService pool = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "batchfb-upload");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		try {
+			CompletionService<long[]> done = new ExecutorCompletionService<long[]>(pool);
+			
+			// Completed chunks which aren't contiguous with the offset yet, start -> end
+			SortedMap<Long, Long> completed = new TreeMap<Long, Long>();
+			
+			long next = this.offset;
+			int inFlight = 0;
+			Throwable failure = null;
+			
+			while (true) {
+				while (failure == null && inFlight < this.parallelism && next < size) {
+					final long start = next;
+					final long end = Math.min(next + chunk, size);
+					done.submit(new Callable<long[]>() {
+						@Override
+						public long[] call() throws IOException {
+							transfer(channel, start, end);
+							return new long[] { start, end };
+						}
+					});
+					
+					next = end;
+					inFlight++;
+				}
+				
+				if (inFlight == 0)
+					break;
+				
+				try {
+					long[] range = done.take().get();
+					completed.put(range[0], range[1]);
+					
+					while (completed.containsKey(this.offset))
+						this.offset = completed.remove(this.offset);
+				} catch (ExecutionException ex) {
+					if (failure == null)
+						failure = ex.getCause();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOFacebookException(ex);
+				}
+				
+				inFlight--;
+			}
+			
+			if (failure instanceof FacebookException)
+				throw (FacebookException)failure;
+			else if (failure instanceof IOException)
+				throw (IOException)failure;
+			else if (failure != null)
+				throw new IOFacebookException(failure);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Sends the bytes from start to end.
+	 * @return the server's response, which says where the next chunk should go
+	 */
+	private JsonNode transfer(FileChannel channel, long start, long end) throws IOException {
+		if (log.isLoggable(Level.FINER))
+			log.finer("Uploading " + this.file + " bytes " + start + " to " + end);
+		
+		MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		
+		RequestBuilder call = this.createCall();
+		call.addParam("upload_phase", "transfer");
+		call.addParam("upload_session_id", this.uploadSessionId);
+		call.addParam("start_offset", Long.toString(start));
+		call.addParam("video_file_chunk", chunk, "application/octet-stream", this.file.getName());
+		
+		return this.executeWithRetries(call);
+	}
+	
+	/** */
+	private void finish() {
+		RequestBuilder call = this.createCall();
+		call.addParam("upload_phase", "finish");
+		call.addParam("upload_session_id", this.uploadSessionId);
+		
+		for (Param param: this.params)
+			call.addParam(param.name, StringUtils.stringifyValue(param, SharedMapper.instance().getMapper()));
+		
+		this.executeWithRetries(call);
+	}
+	
+	/** */
+	private long getChunkSize() {
+		if (this.chunkSize > 0)
+			return this.chunkSize;
+		else if (this.nextEnd > this.offset)
+			return Math.max(this.nextEnd - this.offset, this.parallelism > 1 ? DEFAULT_CHUNK_SIZE : 1);
+		else
+			return DEFAULT_CHUNK_SIZE;
+	}
+	
+	/** */
+	private RequestBuilder createCall() {
+		String base = (this.apiVersion == null) ? this.graphEndpoint : this.graphEndpoint + this.apiVersion + "/";
+		
+		RequestBuilder call = new RequestBuilder(base + this.target + "/videos", HttpMethod.POST, this.timeout);
+		call.setExecutor(this.executor);
+		call.addParam("access_token", this.accessToken);
+		return call;
+	}
+	
+	/**
+	 * Executes the call, trying again after transient failures.
+	 * @return the json response, which is not an error
+	 */
+	private JsonNode executeWithRetries(RequestBuilder call) throws FacebookException {
+		for (int i=0; ; i++) {
+			try {
+				return this.execute(call);
+			} catch (FacebookException ex) {
+				if (i >= this.retries || !isTransient(ex))
+					throw ex;
+				
+				log.warning("Retrying after transient failure uploading " + this.file + ": " + ex);
+			}
+		}
+	}
+	
+	/** */
+	private JsonNode execute(RequestBuilder call) throws FacebookException {
+		try {
+			HttpResponse response = call.execute();
+			
+			JsonNode node;
+			InputStream content = response.getContentStream();
+			try {
+				node = SharedMapper.instance().getMapper().readTree(content);
+			} finally {
+				content.close();
+			}
+			
+			return new ErrorDetectingWrapper(new Now<JsonNode>(node)).get();
+		} catch (IOException ex) {
+			throw new IOFacebookException("Error calling " + call, ex);
+		}
+	}
+	
+	/** */
+	private static boolean isTransient(FacebookException ex) {
+		if (ex instanceof IOFacebookException)
+			return true;
+		
+		if (ex instanceof ErrorFacebookException) {
+			Integer code = ((ErrorFacebookException)ex).getCode();
+			return code != null && (code == ERROR_UNKNOWN || code == ERROR_SERVICE || code == ERROR_VIDEO_UPLOAD);
+		}
+		
+		return false;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.err;
+
+/**
+ * <p>Thrown immediately, without contacting facebook, while a CircuitBreaker is open because
+ * recent requests have been failing or slow.  It is an IOFacebookException, so code which
+ * already handles network errors handles this too.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class CircuitOpenException extends IOFacebookException {
+	private static final long serialVersionUID = 1L;
+	
+	/** */
+	private long retryAfterMillis;
+	
+	/** Make GWT happy */
+	CircuitOpenException() {}
+
+	/**
+	 * @param retryAfterMillis is how long until the breaker lets a probe request through
+	 */
+	public CircuitOpenException(String message, long retryAfterMillis) {
+		super(message);
+		this.retryAfterMillis = retryAfterMillis;
+	}
+	
+	/**
+	 * @return how long until the breaker would let a probe through, as of when this was thrown.
+	 */
+	public long getRetryAfterMillis() {
+		return this.retryAfterMillis;
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.err;
+
+/**
+ * <p>Thrown when a deadline passes before a request could be sent or before its response
+ * arrived.  Requests whose own deadline passed while they waited in a batch are never
+ * sent, and throw this from get().  It is an IOFacebookException, like any other timeout.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class DeadlineExceededException extends IOFacebookException {
+	private static final long serialVersionUID = 1L;
+	
+	/** Make GWT happy */
+	DeadlineExceededException() {}
+
+	public DeadlineExceededException(String message, Throwable cause) {
+		super(message, cause);
+	}
+	
+	public DeadlineExceededException(String message) {
+		super(message);
+	}
+}
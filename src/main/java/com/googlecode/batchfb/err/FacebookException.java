@@ -22,15 +22,40 @@
 
 package com.googlecode.batchfb.err;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * Root of the exception hierarchy for BatchFB.  A raw FacebookException will
  * be thrown when a more specific exception type cannot be determined.
  * 
+ * <p>Filling in a stack trace is the most expensive part of creating an exception.  For
+ * errors which are expected in high volume and whose stack trace tells you nothing (say,
+ * PermissionException or PageMigratedException), you can turn it off with setStackless().</p>
+ * 
  * @author Jeff Schnitzer
  */
 public class FacebookException extends RuntimeException {
 	
 	private static final long serialVersionUID = 1L;
+	
+	/** Exception classes which do not capture a stack trace; replaced wholesale on change */
+	private static volatile Set<Class<?>> stackless = Collections.emptySet();
+	
+	/**
+	 * Enables or disables stack trace capture for exactly this exception class (not subclasses).
+	 * Intended to be called at application startup.
+	 */
+	public static synchronized void setStackless(Class<? extends FacebookException> type, boolean value) {
+		Set<Class<?>> next = new HashSet<Class<?>>(stackless);
+		if (value)
+			next.add(type);
+		else
+			next.remove(type);
+		
+		stackless = next;
+	}
 
 	/** Make GWT happy */
 	FacebookException() {}
@@ -52,4 +77,13 @@ public class FacebookException extends RuntimeException {
 	public FacebookException(Throwable cause) {
 		super(cause);
 	}
+	
+	/** Skips the stack trace for classes registered with setStackless() */
+	@Override
+	public Throwable fillInStackTrace() {
+		if (stackless.contains(this.getClass()))
+			return this;
+		else
+			return super.fillInStackTrace();
+	}
 }
\ No newline at end of file
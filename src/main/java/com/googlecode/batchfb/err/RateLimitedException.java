@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.err;
+
+/**
+ * <p>Thrown when a RateLimiter will not admit a batch, either because it is set to fail fast
+ * or because admission would take longer than it is willing to wait.  Nothing was sent to
+ * facebook; the batch can be retried after getRetryAfterMillis().</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class RateLimitedException extends FacebookException {
+	private static final long serialVersionUID = 1L;
+	
+	/** */
+	private long retryAfterMillis;
+	
+	/** Make GWT happy */
+	RateLimitedException() {}
+
+	/**
+	 * @param retryAfterMillis is how long until the limiter expects to have room
+	 */
+	public RateLimitedException(String message, long retryAfterMillis) {
+		super(message);
+		this.retryAfterMillis = retryAfterMillis;
+	}
+	
+	/**
+	 * @return how long until the limiter expected to have room, as of when this was thrown.
+	 */
+	public long getRetryAfterMillis() {
+		return this.retryAfterMillis;
+	}
+}
@@ -29,32 +29,63 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.googlecode.batchfb.Batcher;
 import com.googlecode.batchfb.BinaryParam;
-import com.googlecode.batchfb.FacebookBatcher;
+import com.googlecode.batchfb.CancellableLater;
 import com.googlecode.batchfb.GraphRequest;
 import com.googlecode.batchfb.GraphRequestBase;
 import com.googlecode.batchfb.Later;
 import com.googlecode.batchfb.PagedLater;
 import com.googlecode.batchfb.Param;
 import com.googlecode.batchfb.QueryRequest;
+import com.googlecode.batchfb.Request;
+import com.googlecode.batchfb.ResponseInfo;
+import com.googlecode.batchfb.RowHandler;
+import com.googlecode.batchfb.StreamingBatcher;
+import com.googlecode.batchfb.TimedLater;
+import com.googlecode.batchfb.err.BulkheadFullException;
+import com.googlecode.batchfb.err.CircuitOpenException;
+import com.googlecode.batchfb.err.DeadlineExceededException;
 import com.googlecode.batchfb.err.FacebookException;
 import com.googlecode.batchfb.err.IOFacebookException;
+import com.googlecode.batchfb.err.RateLimitedException;
+import com.googlecode.batchfb.type.LongList;
 import com.googlecode.batchfb.type.Paged;
+import com.googlecode.batchfb.util.BatchListener;
+import com.googlecode.batchfb.util.BatchListener.BatchStats;
+import com.googlecode.batchfb.util.BatchListener.GetStats;
+import com.googlecode.batchfb.util.BatchListener.PartStats;
+import com.googlecode.batchfb.util.Bulkhead;
+import com.googlecode.batchfb.util.Deadline;
+import com.googlecode.batchfb.util.EndpointSelector;
 import com.googlecode.batchfb.util.FirstElementLater;
 import com.googlecode.batchfb.util.FirstNodeLater;
 import com.googlecode.batchfb.util.GraphRequestBuilder;
+import com.googlecode.batchfb.util.HedgePolicy;
 import com.googlecode.batchfb.util.JSONUtils;
 import com.googlecode.batchfb.util.LaterWrapper;
+import com.googlecode.batchfb.util.Now;
+import com.googlecode.batchfb.util.QueryCache;
+import com.googlecode.batchfb.util.RateLimiter;
 import com.googlecode.batchfb.util.RequestBuilder;
+import com.googlecode.batchfb.util.RequestExecutor;
 import com.googlecode.batchfb.util.RequestBuilder.HttpMethod;
 import com.googlecode.batchfb.util.RequestBuilder.HttpResponse;
+import com.googlecode.batchfb.util.SharedMapper;
 import com.googlecode.batchfb.util.StringUtils;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -68,13 +99,25 @@ import java.util.logging.Logger;
  * <li>It can have all the data available</li>
  * </ul>
  * 
+ * <p>Once the data is available, the raw result is split into one part per graph request.
+ * Each part is handed to its request exactly once; after that the batch no longer holds
+ * it, so keeping one small Later<?> around does not pin the whole batch response in memory.</p>
+ * 
  * @author Jeff Schnitzer
  */
-public class Batch implements Batcher, Later<JsonNode> {
+public class Batch implements StreamingBatcher, TimedLater<JsonNode> {
 	
 	/** */
 	private static final Logger log = Logger.getLogger(Batch.class.getName());
 	
+	/** */
+	private static final AtomicLong ids = new AtomicLong();
+	
+	/**
+	 * Identifies this batch to listeners; unique within the JVM.
+	 */
+	private final long id = ids.incrementAndGet();
+	
 	/**
 	 * Required facebook access token
 	 */
@@ -91,11 +134,66 @@ public class Batch implements Batcher, Later<JsonNode> {
 	 */
 	private String apiVersion;
 
+	/**
+	 * Chooses the base url of the Graph API, without the version.
+	 */
+	private EndpointSelector endpoints;
+	
+	/**
+	 * If not null, read-only batches are hedged.
+	 */
+	private HedgePolicy hedging;
+	
+	/**
+	 * If null, use the global default.
+	 */
+	private RequestExecutor executor;
+	
+	/**
+	 * Batch request bodies at least this big are gzipped; 0 for never.
+	 */
+	private int gzipThreshold;
+	
+	/**
+	 * Admits batches according to call budgets; null for no limits.
+	 */
+	private RateLimiter rateLimiter;
+	private String appId;
+	
+	/**
+	 * Bounds batches in flight; null for no bound.  Queued is how many of the bulkhead's
+	 * queue places our requests hold until we are sent.
+	 */
+	private Bulkhead bulkhead;
+	private int queued;
+	
+	/**
+	 * Applies to every request in the batch; null for no deadline.
+	 */
+	private Deadline deadline;
+	
+	/**
+	 * Measurements of the response, for ResponseInfo; -1 until known.
+	 */
+	private volatile long networkNanos = -1;
+	private volatile long parseNanos = -1;
+	private volatile long responseBytes = -1;
+	
+	/**
+	 * If not null, told about every call and part.
+	 */
+	private BatchListener listener;
+
 	/**
 	 * Jackson mapper used to translate all JSON to java classes.
 	 */
 	private ObjectMapper mapper;
 	
+	/**
+	 * Holds the mapper above along with cached readers for result types.
+	 */
+	private SharedMapper sharedMapper;
+	
 	/**
 	 * Executed whenever we execute so that the master knows to kick off other batches
 	 * and remove us from consideration for further work.  Also a place we can issue
@@ -104,9 +202,11 @@ public class Batch implements Batcher, Later<JsonNode> {
 	private Batcher master;
 	
 	/**
-	 * Holds (and groups properly) all the graph requests.
+	 * Holds (and groups properly) all the graph requests, in the order they were added.
+	 * A cancelled request leaves a null behind so that the indexes of the others stay put.
 	 */
-	private LinkedList<GraphRequestBase<?>> graphRequests = new LinkedList<GraphRequestBase<?>>();
+	private ArrayList<GraphRequestBase<?>> graphRequests = new ArrayList<GraphRequestBase<?>>();
+	private int cancelled;
 	
 	/**
 	 * Holds all queries to execute.  Will be null if there are none, and when created, this
@@ -114,6 +214,19 @@ public class Batch implements Batcher, Later<JsonNode> {
 	 */
 	private MultiqueryRequest multiqueryRequest;
 	
+	/** Where the multiquery sits among the graphRequests */
+	private int multiqueryIndex;
+	
+	/**
+	 * Maximum number of queries in one multiquery, 0 for no limit.
+	 */
+	private int maxMultiquerySize;
+	
+	/**
+	 * Answers repeated queries without sending them; null for no caching.
+	 */
+	private QueryCache queryCache;
+	
 	/**
 	 * When generating query names, use this as an index.
 	 */
@@ -129,21 +242,58 @@ public class Batch implements Batcher, Later<JsonNode> {
 	 */
 	private int retries = 0;
 	
+	/**
+	 * True once the batch has been sent; no more requests can be added.
+	 */
+	private volatile boolean executed;
+	
+	/**
+	 * Held while the batch is sent and its response read.  Our monitor only guards changes of
+	 * state and is never held on the network, so cancel() doesn't have to wait for it.
+	 */
+	private final ReentrantLock io = new ReentrantLock();
+	
 	/**
 	 * When the query is launched, this holds the entire result of the batch call.
-	 * If this batch is still pending, this will be null.
+	 * If this batch is still pending, or the result has been split into parts, this will be null.
 	 */
 	private Later<JsonNode> rawBatchResult;
 	
+	/**
+	 * The parts of the batch result, indexed like the graph requests.  Null until the raw
+	 * result has been split, and again after every part has been claimed.
+	 */
+	private JsonNode[] parts;
+	
+	/** Which parts have been handed out already */
+	private boolean[] claimed;
+	
+	/** Number of parts not yet claimed */
+	private int unclaimed;
+	
+	/**
+	 * Maps the index of each request to its slot in the batch as sent, or -1 if it was
+	 * left out because its deadline passed.  Null if nothing was left out.
+	 */
+	private int[] slots;
+	
+	/**
+	 * Indexes of requests cancelled after we were sent but before the result was split; null if none.
+	 */
+	private BitSet dropped;
+	
 	/**
 	 * Construct a batch with the specified facebook access token.
 	 * 
 	 * @param master is our parent batcher, probably the FacebookBatcher
+	 * @param endpoints chooses the base url of the graph api, normally just FacebookBatcher.GRAPH_ENDPOINT
 	 * @param accessToken can be null to make unauthenticated FB requests
 	 */
-	public Batch(Batcher master, ObjectMapper mapper, String accessToken, String apiVersion, int timeout, int retries) {
+	public Batch(Batcher master, SharedMapper mapper, EndpointSelector endpoints, String accessToken, String apiVersion, int timeout, int retries) {
 		this.master = master;
-		this.mapper = mapper;
+		this.endpoints = endpoints;
+		this.sharedMapper = mapper;
+		this.mapper = mapper.getMapper();
 		this.accessToken = accessToken;
 		this.apiVersion = apiVersion;
 		this.timeout = timeout;
@@ -151,10 +301,121 @@ public class Batch implements Batcher, Later<JsonNode> {
 	}
 	
 	/**
-	 * @return the number of graph calls currently enqueued.
+	 * Executes this batch with a particular executor.
+	 * @param value can be null to use RequestExecutor.instance()
+	 */
+	public void setExecutor(RequestExecutor value) {
+		this.executor = value;
+	}
+	
+	/**
+	 * Gzips the request body if it is at least this many bytes.
+	 * @param bytes can be 0 to never compress
+	 */
+	public void setGzipThreshold(int bytes) {
+		this.gzipThreshold = bytes;
+	}
+	
+	/**
+	 * Waits for (or refuses) admission before sending.
+	 * @param limiter can be null to send without limits
+	 * @param appId identifies the app's bucket; can be null to apply only the token limit
+	 */
+	public void setRateLimiter(RateLimiter limiter, String appId) {
+		this.rateLimiter = limiter;
+		this.appId = appId;
+	}
+	
+	/**
+	 * Bounds every request in this batch; requests may also have their own.  Can be changed
+	 * until the batch is sent.
+	 * @param value can be null for no deadline
+	 */
+	public void setDeadline(Deadline value) {
+		this.deadline = value;
+	}
+	
+	/**
+	 * Makes this batch wait for (or be refused) a place in flight.
+	 * @param value can be null for no bound
+	 */
+	public void setBulkhead(Bulkhead value) {
+		this.bulkhead = value;
+	}
+	
+	/**
+	 * Notes that places in the bulkhead's queue were taken on our behalf, one for each graph
+	 * request and each query in a multiquery; they are given back when this batch is sent.
+	 */
+	public synchronized void addQueued(int requests) {
+		this.queued += requests;
+	}
+	
+	/**
+	 * Caps the number of queries in one multiquery; once the current one is full, the next
+	 * query starts another, which takes another slot in the batch.
+	 * @param max is 0 for no limit
+	 */
+	public void setMaxMultiquerySize(int max) {
+		this.maxMultiquerySize = max;
+	}
+	
+	/**
+	 * Answers queries from the cache when it can, and remembers results when they arrive.
+	 * @param cache can be null for no caching
+	 */
+	public void setQueryCache(QueryCache cache) {
+		this.queryCache = cache;
+	}
+	
+	/**
+	 * @return true if the query won't take another graph slot: it shares FQL with a query
+	 * already in our multiquery, or that multiquery has room.
+	 */
+	public boolean canJoinMultiquery(String fql) {
+		if (this.multiqueryRequest == null || this.executed)
+			return false;
+		
+		return this.maxMultiquerySize <= 0
+			|| this.multiqueryRequest.getNameFor(fql) != null
+			|| this.multiqueryRequest.numDistinctQueries() < this.maxMultiquerySize;
+	}
+	
+	/**
+	 * Reports what each call and part of this batch cost.
+	 * @param value can be null to measure nothing
+	 */
+	public void setListener(BatchListener value) {
+		this.listener = value;
+	}
+	
+	/**
+	 * Allows this batch to be hedged if it turns out to contain only reads.
+	 * @param policy can be null to disable hedging
+	 */
+	public void setHedging(HedgePolicy policy) {
+		this.hedging = policy;
+	}
+	
+	/**
+	 * @return an id which is unique within the JVM, for correlating listener events.
 	 */
-	public int graphSize() {
-		return this.graphRequests.size();
+	public long getId() {
+		return this.id;
+	}
+	
+	/**
+	 * @return true once the batch has been sent (or is being sent), so no more requests can be added.
+	 */
+	public boolean isExecuted() {
+		return this.executed;
+	}
+	
+	/**
+	 * @return the number of graph calls currently enqueued, not counting cancelled ones.
+	 */
+	public synchronized int graphSize() {
+		return this.graphRequests.size() - this.cancelled;
 	}
 	
 	/* (non-Javadoc)
@@ -162,7 +423,7 @@ public class Batch implements Batcher, Later<JsonNode> {
 	 */
 	@Override
 	public <T> GraphRequest<T> graph(String object, Class<T> type, Param... params) {
-		return this.graph(object, mapper.getTypeFactory().constructType(type), params);
+		return this.graph(object, this.sharedMapper.constructType(type), params);
 	}
 	
 	/* (non-Javadoc)
@@ -187,11 +448,9 @@ public class Batch implements Batcher, Later<JsonNode> {
 	private <T> GraphRequest<T> graph(String object, JavaType type, Param... params) {
 		this.checkForBatchExecution();
 		
-		// The data is transformed through a chain of wrappers
-		GraphRequest<T> req =
-			new GraphRequest<T>(object, params, this.mapper, this.<T>createMappingChain(type));
+		GraphRequest<T> req = this.createRequest(object, HttpMethod.GET, params, type);
 		
-		this.graphRequests.add(req);
+		this.enqueue(req);
 		return req;
 	}
 
@@ -204,7 +463,7 @@ public class Batch implements Batcher, Later<JsonNode> {
 			throw new IllegalArgumentException("You can only use paged() for connection requests, eg me/friends");
 
 		// For example if type is User.class, this will produce Paged<User>
-		JavaType pagedType = mapper.getTypeFactory().constructParametricType(Paged.class, mapper.getTypeFactory().constructType(type));
+		JavaType pagedType = mapper.getTypeFactory().constructParametricType(Paged.class, this.sharedMapper.constructType(type));
 			
 		GraphRequest<Paged<T>> req = this.graph(object, pagedType, params);
 			
@@ -224,29 +483,57 @@ public class Batch implements Batcher, Later<JsonNode> {
 	 */
 	@Override
 	public QueryRequest<ArrayNode> query(String fql) {
-		return this.query(fql, mapper.getTypeFactory().constructType(ArrayNode.class));
+		return this.query(fql, this.sharedMapper.constructType(ArrayNode.class));
 	}
 	
 	/**
 	 * Implementation now that we have chosen a Jackson JavaType for the return value
 	 */
 	private <T> QueryRequest<T> query(String fql, JavaType type) {
+		JsonNode cached = (this.queryCache == null) ? null : this.queryCache.get(this.accessToken, fql);
+		if (cached != null)
+			return answer(fql, type, this.sharedMapper, cached, this.listener);
+		else
+			return this.joinMultiquery(fql, type);
+	}
+	
+	/**
+	 * @param listener is told about each get(); can be null
+	 * @return a query which is already answered by a cached result set, and needs no batch at all
+	 */
+	public static <T> QueryRequest<T> answer(String fql, JavaType type, SharedMapper mapper, JsonNode cached, BatchListener listener) {
+		return new BatchQueryRequest<T>(null, null, -1, fql, "__cached", new MapperWrapper<T>(type, mapper, new Now<JsonNode>(cached)), listener);
+	}
+	
+	/**
+	 * Adds the query to our multiquery, starting a new one if it can't join the current one.
+	 * The cache is not consulted; the caller should already have done that.
+	 */
+	public <T> QueryRequest<T> joinMultiquery(String fql, JavaType type) {
 		this.checkForBatchExecution();
 		
-		if (this.multiqueryRequest == null) {
-			this.multiqueryRequest = new MultiqueryRequest(mapper, this.createUnmappedChain());
-			this.graphRequests.add(this.multiqueryRequest);
+		if (!this.canJoinMultiquery(fql)) {
+			this.multiqueryIndex = this.graphRequests.size();
+			GraphNodeExtractor extractor = new GraphNodeExtractor(this.multiqueryIndex, this.mapper, this);
+			this.multiqueryRequest = new MultiqueryRequest(mapper, new ErrorDetectingWrapper(extractor));
+			this.multiqueryRequest.setCache(this.queryCache, this.accessToken);
+			extractor.setRequest(this.multiqueryRequest);
+			this.enqueue(this.multiqueryRequest);
 		}
 		
 		// There is a circular reference between the extractor and request, so construction of the chain
 		// is a little complicated
 		QueryNodeExtractor extractor = new QueryNodeExtractor(this.multiqueryRequest);
 		
-		String name = "__q" + this.generatedQueryNameIndex++;
+		// Identical FQL shares one query in the multiquery, so Facebook only runs it once
+		String name = this.multiqueryRequest.getNameFor(fql);
+		if (name == null)
+			name = "__q" + this.generatedQueryNameIndex++;
+
 		QueryRequest<T> q =
-			new QueryRequest<T>(fql, name,
-				new MapperWrapper<T>(type, this.mapper,
-						extractor));
+			new BatchQueryRequest<T>(this, this.multiqueryRequest, this.multiqueryIndex, fql, name,
+				new MapperWrapper<T>(type, this.sharedMapper,
+						extractor), this.listener);
 		
 		extractor.setRequest(q);
 		
@@ -258,7 +545,7 @@ public class Batch implements Batcher, Later<JsonNode> {
 	 * @see com.googlecode.batchfb.Batcher#queryFirst(java.lang.String, java.lang.Class)
 	 */
 	@Override
-	public <T> Later<T> queryFirst(String fql, Class<T> type) {
+	public <T> CancellableLater<T> queryFirst(String fql, Class<T> type) {
 		Later<List<T>> q = this.query(fql, type);
 		return new FirstElementLater<T>(q);
 	}
@@ -267,16 +554,40 @@ public class Batch implements Batcher, Later<JsonNode> {
 	 * @see com.googlecode.batchfb.Batcher#queryFirst(java.lang.String)
 	 */
 	@Override
-	public Later<JsonNode> queryFirst(String fql) {
+	public CancellableLater<JsonNode> queryFirst(String fql) {
 		Later<ArrayNode> q = this.query(fql);
 		return new FirstNodeLater(q);
 	}
 	
+	/**
+	 * Sent as its own fql.query rather than joining the multiquery, so that the ids are bound
+	 * straight from the response text.
+	 * @see com.googlecode.batchfb.StreamingBatcher#queryIds(java.lang.String)
+	 */
+	@Override
+	public Request<LongList> queryIds(String fql) {
+		return this.graph("method/fql.query", LongList.class, new Param("query", fql));
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.StreamingBatcher#queryStream(java.lang.String, java.lang.Class, com.googlecode.batchfb.RowHandler)
+	 */
+	@Override
+	public <T> Request<Integer> queryStream(String fql, Class<T> type, RowHandler<T> handler) {
+		this.checkForBatchExecution();
+		
+		StreamingQueryRequest<T> req =
+			new StreamingQueryRequest<T>(this, this.graphRequests.size(), fql, this.sharedMapper, this.sharedMapper.constructType(type), handler);
+		
+		this.enqueue(req);
+		return req;
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.googlecode.batchfb.Batcher#delete(java.lang.String)
 	 */
 	@Override
-	public Later<Boolean> delete(String object) {
+	public CancellableLater<Boolean> delete(String object) {
 		this.checkForBatchExecution();
 		
 		// Something is fucked up with java's ability to perform DELETE.  FB's servers always return
@@ -284,10 +595,10 @@ public class Batch implements Batcher, Later<JsonNode> {
 		//GraphRequest<Boolean> req = new GraphRequest<Boolean>(object, HttpMethod.DELETE, mapper.getTypeFactory().constructType(Boolean.class), new Param[0]);
 
 		GraphRequest<Boolean> req =
-			new GraphRequest<Boolean>(object, HttpMethod.POST, new Param[] { new Param("method", "DELETE") }, this.mapper,
-				this.<Boolean>createMappingChain(mapper.getTypeFactory().constructType(Boolean.class)));
+			this.createRequest(object, HttpMethod.POST, new Param[] { new Param("method", "DELETE") },
+				this.sharedMapper.constructType(Boolean.class));
 		
-		this.graphRequests.add(req);
+		this.enqueue(req);
 		return req;
 	}
 
@@ -295,19 +606,29 @@ public class Batch implements Batcher, Later<JsonNode> {
 	 * @see com.googlecode.batchfb.Batcher#post(java.lang.String, com.googlecode.batchfb.Param[])
 	 */
 	@Override
-	public Later<String> post(String object, Param... params) {
+	public CancellableLater<String> post(String object, Param... params) {
 		this.checkForBatchExecution();
 		
 		final GraphRequest<JsonNode> req =
-			new GraphRequest<JsonNode>(object, HttpMethod.POST, params, this.mapper, this.<JsonNode>createMappingChain(mapper.constructType(JsonNode.class)));
+			this.createRequest(object, HttpMethod.POST, params, this.sharedMapper.constructType(JsonNode.class));
 
-		this.graphRequests.add(req);
-		return new Later<String>() {
+		this.enqueue(req);
+		return new CancellableLater<String>() {
 			@Override
 			public String get() throws FacebookException
 			{
 				return req.get().path("id").asText();
 			}
+			
+			@Override
+			public String get(long timeout, TimeUnit unit) throws FacebookException {
+				return req.get(timeout, unit).path("id").asText();
+			}
+			
+			@Override
+			public boolean cancel() {
+				return req.cancel();
+			}
 		};
 	}
 	
@@ -318,40 +639,25 @@ public class Batch implements Batcher, Later<JsonNode> {
 	public <T> GraphRequest<T> post(String object, Class<T> type, Param... params) {
 		this.checkForBatchExecution();
 
-		// The data is transformed through a chain of wrappers
-		GraphRequest<T> req =
-			new GraphRequest<T>(object, HttpMethod.POST, params, this.mapper, this.<T>createMappingChain(mapper.getTypeFactory().constructType(type)));
+		GraphRequest<T> req = this.createRequest(object, HttpMethod.POST, params, this.sharedMapper.constructType(type));
 		
-		this.graphRequests.add(req);
+		this.enqueue(req);
 		return req;
 	}
 	
 	/**
-	 * Adds mapping to the basic unmapped chain.
+	 * Creates a request which will take the next slot in the batch and resolve itself
+	 * directly from it.  Does not add the request to the batch.
 	 */
-	private <T> MapperWrapper<T> createMappingChain(JavaType type) {
-		return new MapperWrapper<T>(type, this.mapper, this.createUnmappedChain());
-	}
-	
-	/**
-	 * Creates the common chain of wrappers that will select out one graph request
-	 * from the batch and error check it both at the batch level and at the individual
-	 * request level.  Result will be an unmapped JsonNode.
-	 */
-	private ErrorDetectingWrapper createUnmappedChain() {
-		int nextIndex = this.graphRequests.size();
-
-		return
-			new ErrorDetectingWrapper(
-				new GraphNodeExtractor(nextIndex, this.mapper,
-					new ErrorDetectingWrapper(this)));
+	private <T> GraphRequest<T> createRequest(String object, HttpMethod method, Param[] params, JavaType type) {
+		return new BatchGraphRequest<T>(this, this.graphRequests.size(), object, method, params, this.sharedMapper, type);
 	}
 	
 	/**
 	 * @throws IllegalStateException if the batch has already been executed
 	 */
 	private void checkForBatchExecution() {
-		if (this.rawBatchResult != null)
+		if (this.executed)
 			throw new IllegalStateException("You cannot add requests to a batch that has been executed");
 	}
 	
@@ -360,82 +666,869 @@ public class Batch implements Batcher, Later<JsonNode> {
 	 */
 	@Override
 	public void execute() {
-		if (!this.graphRequests.isEmpty())
-			this.getRawBatchResult();
+		if (this.graphSize() == 0) {
+			this.dequeue();
+			return;
+		}
+		
+		// If someone else holds the lock, they are already sending us
+		if (this.io.tryLock()) {
+			try {
+				this.getRawBatchResult(null);
+			} finally {
+				this.io.unlock();
+			}
+		}
 	}
 	
 	/**
-	 * Get the batch result, firing it off if necessary
+	 * Gives back our places in the bulkhead's queue.
 	 */
-	private Later<JsonNode> getRawBatchResult() {
-		if (this.rawBatchResult == null) {
+	private synchronized void dequeue() {
+		if (this.bulkhead != null) {
+			this.bulkhead.dequeue(this.queued);
+			this.queued = 0;
+		}
+	}
+	
+	/**
+	 * Gives back the place of a request taken out before we were sent.
+	 */
+	private synchronized void dequeueOne() {
+		if (this.bulkhead != null && this.queued > 0) {
+			this.bulkhead.dequeue(1);
+			this.queued--;
+		}
+	}
+	
+	/**
+	 * Get the batch result, firing it off if necessary.  The caller must hold the io lock.
+	 * @param wait is how long the caller will wait, or null for as long as it takes.  If not
+	 * null and we have to be sent, we are sent alone and the call is bounded by it; if the
+	 * time runs out, we are put back so that the next get() sends us again.
+	 */
+	private Later<JsonNode> getRawBatchResult(Deadline wait) {
+		List<GraphRequestBase<?>> sending;
+		synchronized (this) {
+			if (this.executed)
+				return this.rawBatchResult;
+			
+			// Our requests are leaving the queue, whether or not they make it out
+			this.dequeue();
+			
+			// From here on, cancel() drops parts instead of taking requests out
+			sending = this.leaveOutExpired();
+			this.executed = true;
+		}
+		
+		Later<JsonNode> fetcher;
+		try {
+			fetcher = this.createFetcher(sending, wait);
+		} catch (RuntimeException ex) {
+			this.unsend();
+			throw ex;
+		}
+		
+		synchronized (this) {
 			// Use LaterWrapper to cache the result so we don't fetch over and over
-			this.rawBatchResult = new LaterWrapper<JsonNode, JsonNode>(this.createFetcher());
+			this.rawBatchResult = new LaterWrapper<JsonNode, JsonNode>(fetcher);
 			
-			// Also let the master know it's time to kick off any other batches and
-			// remove us as a valid batch to add to.
-			// This must be called *after* the rawBatchResult is set otherwise we
-			// will have endless recursion when the master tries to execute us.
-			this.master.execute();
+			// The requests have been sent; each one is still referenced by its own Later<?>
+			// chain, but we no longer need to hold on to all of them.
+			this.graphRequests.clear();
+			this.cancelled = 0;
+			this.multiqueryRequest = null;
 		}
 		
+		// Also let the master know it's time to kick off any other batches and
+		// remove us as a valid batch to add to.
+		// This must be called *after* the rawBatchResult is set otherwise we
+		// will have endless recursion when the master tries to execute us.
+		// A caller with a time limit doesn't wait for the others to be sent; the
+		// master passes over us because we have been executed.
+		if (wait == null)
+			this.master.execute();
+		
 		return this.rawBatchResult;
 	}
 	
+	/**
+	 * Puts us back the way we were before a send which failed, so that the next get() can
+	 * try again.  Requests cancelled in the meantime are taken out.
+	 */
+	private synchronized void unsend() {
+		this.executed = false;
+		this.slots = null;
+		
+		if (this.dropped != null) {
+			for (int index = this.dropped.nextSetBit(0); index >= 0; index = this.dropped.nextSetBit(index + 1)) {
+				if (this.graphRequests.get(index) != null) {
+					this.graphRequests.set(index, null);
+					this.cancelled++;
+				}
+			}
+			
+			this.dropped = null;
+		}
+	}
+	
 	/**
 	 * The Batch itself is a Later<JsonNode> that will return the raw batch result.  We hide
-	 * the actual batching behind this method.
+	 * the actual batching behind this method.  Note that the raw result is only available
+	 * until it has been split into parts (see part()); after that this throws IllegalStateException.
 	 */
 	@Override
 	public JsonNode get() throws FacebookException {
-		return this.getRawBatchResult().get();
+		return this.get((Deadline)null);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.TimedLater#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public JsonNode get(long timeout, TimeUnit unit) throws FacebookException {
+		return this.get(Deadline.after(timeout, unit));
+	}
+	
+	/** */
+	private JsonNode get(Deadline wait) {
+		this.lockIo(wait);
+		try {
+			Later<JsonNode> raw = this.getRawBatchResult(wait);
+			if (raw == null)
+				throw new IllegalStateException("The raw batch result has already been split into parts");
+			
+			return raw.get();
+		} finally {
+			this.io.unlock();
+		}
+	}
+	
+	/**
+	 * Takes the io lock, waiting for whoever has it no longer than the caller is willing to.
+	 * @param wait can be null to wait as long as it takes
+	 * @throws DeadlineExceededException if the wait runs out first
+	 */
+	private void lockIo(Deadline wait) {
+		if (wait == null) {
+			this.io.lock();
+			return;
+		}
+		
+		try {
+			if (!this.io.tryLock(Math.max(wait.remainingMillis(), 0), TimeUnit.MILLISECONDS))
+				throw new DeadlineExceededException("Batch " + this.id + " is still in flight");
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new DeadlineExceededException("Interrupted while waiting for batch " + this.id, ex);
+		}
+	}
+	
+	/**
+	 * Gets a Later<JsonNode> for one part of the batch result, which looks something like:
+	 * <pre>
+	 * { "code": 200, "headers": [ ... ], "body":"{\"id\":\"asdf\"}" }
+	 * </pre>
+	 * Batch-level errors are detected before any part is handed out.  Each part can be
+	 * obtained exactly once; when all parts have been claimed, the batch lets go of the result.
+	 * 
+	 * @param index is the position of the graph request in this batch
+	 */
+	public Later<JsonNode> part(final int index) {
+		return new TimedLater<JsonNode>() {
+			boolean done;
+			JsonNode part;
+			
+			@Override
+			public JsonNode get() throws FacebookException {
+				return this.get(null);
+			}
+			
+			@Override
+			public JsonNode get(long timeout, TimeUnit unit) throws FacebookException {
+				return this.get(Deadline.after(timeout, unit));
+			}
+			
+			/** Whoever gets here first claims the part; the others wait as they would for the batch */
+			private JsonNode get(Deadline wait) {
+				lockIo(wait);
+				try {
+					if (!this.done) {
+						this.part = claim(index, wait);
+						this.done = true;
+					}
+					
+					return this.part;
+				} finally {
+					io.unlock();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Hands out a part of the result, executing the batch and splitting the raw result if necessary.
+	 * The waiting is done under the io lock; our monitor is only held to take the part.
+	 * @param wait bounds how long the caller waits, or null to wait as long as it takes
+	 * @return null if facebook didn't give us a part at that index
+	 * @throws IllegalStateException if the part has already been claimed
+	 * @throws DeadlineExceededException if the wait runs out first
+	 */
+	JsonNode claim(int index, Deadline wait) {
+		this.lockIo(wait);
+		try {
+			if (this.needsSplit(index))
+				this.split(wait);
+			
+			return this.take(index);
+		} finally {
+			this.io.unlock();
+		}
+	}
+	
+	/**
+	 * @return true if the batch has to be sent or its result split before the part can be taken
+	 * @throws IllegalStateException if every part has been claimed already
+	 */
+	private synchronized boolean needsSplit(int index) {
+		if (this.parts != null || this.isLeftOut(index))
+			return false;
+		
+		if (this.executed && this.rawBatchResult == null)
+			throw new IllegalStateException("All parts of this batch have already been claimed");
+		
+		return true;
+	}
+	
+	/**
+	 * Takes a part out of the split result.
+	 */
+	private synchronized JsonNode take(int index) {
+		// We only know what was left out once the batch has been sent
+		if (this.isLeftOut(index))
+			throw new DeadlineExceededException("Request " + index + " of batch " + this.id + " was not sent because its deadline had passed");
+		
+		int slot = this.slotOf(index);
+		
+		if (slot >= this.parts.length)
+			return null;
+		
+		if (this.claimed[slot])
+			throw new IllegalStateException("Part " + index + " of this batch has already been claimed");
+		
+		JsonNode part = this.parts[slot];
+		this.parts[slot] = null;
+		this.claimed[slot] = true;
+		
+		if (--this.unclaimed == 0) {
+			this.parts = null;
+			this.claimed = null;
+		}
+		
+		return part;
+	}
+	
+	/** */
+	private boolean isLeftOut(int index) {
+		return this.slots != null && index < this.slots.length && this.slots[index] < 0;
+	}
+	
+	/** @return where the request at the index sits in the batch as sent */
+	private int slotOf(int index) {
+		return (this.slots == null) ? index : this.slots[index];
+	}
+	
+	/**
+	 * Checks the raw result for batch-level errors and breaks it up into parts, then lets go of it.
+	 * The caller must hold the io lock.
+	 */
+	private void split(Deadline wait) {
+		JsonNode data = new ErrorDetectingWrapper(this.getRawBatchResult(wait)).get();
+		
+		if (!(data instanceof ArrayNode))
+			throw new IllegalStateException("Expected array node: " + data);
+		
+		synchronized (this) {
+			this.parts = new JsonNode[data.size()];
+			for (int i=0; i<this.parts.length; i++)
+				this.parts[i] = data.get(i);
+			
+			this.claimed = new boolean[this.parts.length];
+			this.unclaimed = this.parts.length;
+			this.rawBatchResult = null;
+			
+			// Parts of requests cancelled while we were in flight are of no interest
+			if (this.dropped != null) {
+				for (int index = this.dropped.nextSetBit(0); index >= 0; index = this.dropped.nextSetBit(index + 1))
+					if (!this.isLeftOut(index))
+						this.drop(this.slotOf(index));
+				
+				this.dropped = null;
+			}
+		}
+	}
+	
+	/**
+	 * Lets go of a part nobody is going to claim.
+	 */
+	private void drop(int slot) {
+		if (this.parts == null || slot >= this.parts.length || this.claimed[slot])
+			return;
+		
+		this.parts[slot] = null;
+		this.claimed[slot] = true;
+		
+		if (--this.unclaimed == 0) {
+			this.parts = null;
+			this.claimed = null;
+		}
+	}
+	
+	/**
+	 * Gives up on the graph request at the index.  If we haven't been sent, it is taken out
+	 * and the batch shrinks; otherwise its part of the result is dropped without being looked at.
+	 * Never waits for the network.
+	 */
+	synchronized void cancel(int index) {
+		if (!this.executed) {
+			if (index < this.graphRequests.size() && this.graphRequests.get(index) != null) {
+				this.graphRequests.set(index, null);
+				this.cancelled++;
+				this.dequeueOne();
+			}
+		} else if (!this.isLeftOut(index)) {
+			if (this.parts != null) {
+				this.drop(this.slotOf(index));
+			} else {
+				if (this.dropped == null)
+					this.dropped = new BitSet();
+				
+				this.dropped.set(index);
+			}
+		}
+	}
+	
+	/**
+	 * Takes a cancelled query out of its multiquery.  When none are left, the multiquery
+	 * itself is cancelled.
+	 * @param index is the multiquery's index in this batch
+	 */
+	synchronized void cancel(MultiqueryRequest multiquery, int index, QueryRequest<?> query) {
+		if (!multiquery.removeQuery(query))
+			return;
+		
+		if (multiquery.numQueries() == 0) {
+			// The last query's place in the bulkhead's queue goes with the multiquery
+			this.cancel(index);
+			
+			if (this.multiqueryRequest == multiquery)
+				this.multiqueryRequest = null;
+		} else if (!this.executed) {
+			this.dequeueOne();
+		}
 	}
 	
 	/**
 	 * Constructs the batch query and executes it, possibly asynchronously.
+	 * @param wait also bounds the call, if not null
 	 * @return an asynchronous handle to the raw batch result, whatever it may be.
 	 */
-	private Later<JsonNode> createFetcher() {
-		final RequestBuilder call = new GraphRequestBuilder(getGraphEndpoint(), HttpMethod.POST, this.timeout, this.retries);
+	private Later<JsonNode> createFetcher(List<GraphRequestBase<?>> sending, Deadline wait) {
+		if (sending.isEmpty())
+			return new Now<JsonNode>(this.mapper.createArrayNode());
+		
+		final Deadline callDeadline = Deadline.earliest(this.callDeadline(sending), wait);
+		if (callDeadline != null && callDeadline.isExpired())
+			throw new DeadlineExceededException("Deadline passed before batch " + this.id + " could be sent");
+		
+		// Each graph request spends from the budget, not each http call
+		if (this.rateLimiter != null) {
+			try {
+				this.rateLimiter.acquire(this.appId, this.accessToken, sending.size(), waitLeft(callDeadline));
+			} catch (RateLimitedException ex) {
+				if (callDeadline != null && callDeadline.remainingMillis() < ex.getRetryAfterMillis())
+					throw new DeadlineExceededException("Deadline would pass before batch " + this.id + " is admitted by the rate limiter", ex);
+				else
+					throw ex;
+			}
+		}
+		
+		// Measure nothing unless someone is listening
+		BatchStats stats = null;
+		long encodeStart = 0;
+		if (this.listener != null) {
+			stats = new BatchStats();
+			stats.batchId = this.id;
+			stats.requests = sending.size();
+			encodeStart = System.nanoTime();
+		}
+		
+		// Binary params become parts of the batch request itself, referred to by attached_files
+		List<Param> attachments = this.nameAttachments(sending);
 		
 		// This actually creates the correct JSON structure as an array
-		String batchValue = JSONUtils.toJSON(this.graphRequests, this.mapper);
+		String batchValue = JSONUtils.toJSON(sending, this.mapper);
 		if (log.isLoggable(Level.FINEST))
 			log.finest("Batch request is: " + batchValue);
+		
+		if (stats != null)
+			stats.encodeNanos = System.nanoTime() - encodeStart;
 
-		this.addParams(call, new Param[] { new Param("batch", batchValue) });
+		List<String> tried = null;
+		
+		while (true) {
+			final String endpoint = this.endpoints.select(tried == null ? Collections.<String>emptyList() : tried);
+			final RequestBuilder call = new GraphRequestBuilder(this.getGraphEndpoint(endpoint), HttpMethod.POST, this.timeout, this.retries);
+			this.addParams(call, new Param[] { new Param("batch", batchValue) });
+			this.addParams(call, attachments.toArray(new Param[attachments.size()]));
+			call.setExecutor(this.executor);
+			call.setGzipThreshold(this.gzipThreshold);
+			
+			call.setDeadline(callDeadline);
+			
+			if (this.hedging != null && this.isReadOnly(sending))
+				call.setHedging(this.hedging);
+			
+			if (stats != null && tried == null) {
+				stats.endpoint = endpoint;
+				this.report(stats, false);
+			}
+			
+			final HttpResponse response;
+			final long network;
+			try {
+				if (this.bulkhead != null)
+					this.bulkhead.startBatch(waitLeft(callDeadline));
+				
+				boolean answered = false;
+				try {
+					long start = System.nanoTime();
+					response = call.execute();
+					answered = true;
+					
+					// The status has arrived when execute() returns; the body may not be read until much later
+					network = System.nanoTime() - start;
+				} finally {
+					// With an answer, we stay in flight until the body has been read
+					if (this.bulkhead != null && !answered)
+						this.bulkhead.finishBatch();
+				}
+			} catch (IOException ex) {
+				this.endpoints.failure(endpoint);
+				
+				boolean late = callDeadline != null && callDeadline.isExpired();
+				
+				// If we never connected, nothing was sent, so it is safe to try somewhere else
+				if (!late && (ex instanceof ConnectException || ex instanceof UnknownHostException)) {
+					if (tried == null)
+						tried = new ArrayList<String>();
+					
+					tried.add(endpoint);
+					
+					if (tried.size() < this.endpoints.size()) {
+						log.warning("Could not connect to " + endpoint + ", failing over: " + ex);
+						continue;
+					}
+				}
+				
+				if (stats != null) {
+					stats.endpoint = endpoint;
+					stats.attempts = call.getAttempts();
+					stats.requestBytes = call.getContentLength();
+					stats.errorType = ex.getClass().getSimpleName();
+					this.report(stats, true);
+				}
+				
+				if (late)
+					throw new DeadlineExceededException("Deadline passed calling " + endpoint, ex);
+				else
+					throw new IOFacebookException(ex);
+			} catch (CircuitOpenException | BulkheadFullException ex) {
+				// Nothing was sent, and these cover every endpoint, so don't fail over
+				if (stats != null) {
+					stats.endpoint = endpoint;
+					stats.attempts = 0;
+					stats.errorType = ex.getClass().getSimpleName();
+					this.report(stats, true);
+				}
+				
+				if (ex instanceof BulkheadFullException && callDeadline != null && callDeadline.isExpired())
+					throw new DeadlineExceededException("Deadline passed waiting for room in the bulkhead", ex);
+				else
+					throw ex;
+			}
+			
+			this.networkNanos = network;
+			if (stats != null) {
+				stats.endpoint = endpoint;
+				stats.requestBytes = call.getContentLength();
+				stats.networkNanos = network;
+			}
+			
+			return this.createResponseLater(call, response, endpoint, network / 1000000, stats, callDeadline);
+		}
+	}
+	
+	/**
+	 * @return how long we may wait for admission before the deadline, which can be null for no limit
+	 */
+	private static long waitLeft(Deadline deadline) {
+		return (deadline == null) ? Long.MAX_VALUE : Math.max(deadline.remainingMillis(), 0);
+	}
+	
+	/**
+	 * Leaves out requests which were cancelled or whose deadline (or ours) has already passed, and notes which slot
+	 * each of the others will have in the batch as sent.
+	 * @return the requests to send
+	 */
+	private List<GraphRequestBase<?>> leaveOutExpired() {
+		this.slots = null;
+		
+		int expired = 0;
+		for (GraphRequestBase<?> req: this.graphRequests) {
+			if (req != null && this.isExpired(req))
+				expired++;
+		}
+		
+		if (expired == 0 && this.cancelled == 0)
+			return this.graphRequests;
+		
+		List<GraphRequestBase<?>> sending = new ArrayList<GraphRequestBase<?>>(this.graphSize() - expired);
+		this.slots = new int[this.graphRequests.size()];
+		
+		int index = 0;
+		for (GraphRequestBase<?> req: this.graphRequests) {
+			if (req == null || this.isExpired(req)) {
+				this.slots[index++] = -1;
+			} else {
+				this.slots[index++] = sending.size();
+				sending.add(req);
+			}
+		}
+		
+		if (expired > 0)
+			log.fine("Leaving " + expired + " requests whose deadline has passed out of batch " + this.id);
+		
+		return sending;
+	}
+	
+	/** */
+	private boolean isExpired(GraphRequestBase<?> req) {
+		Deadline deadline = Deadline.earliest(req.getDeadline(), this.deadline);
+		return deadline != null && deadline.isExpired();
+	}
+	
+	/**
+	 * The call has to last as long as the latest deadline among the requests in it.
+	 * @return null if some request has no deadline at all
+	 */
+	private Deadline callDeadline(List<GraphRequestBase<?>> sending) {
+		Deadline latest = null;
+		for (GraphRequestBase<?> req: sending) {
+			Deadline deadline = Deadline.earliest(req.getDeadline(), this.deadline);
+			if (deadline == null)
+				return null;
+			
+			latest = Deadline.latest(latest, deadline);
+		}
+		
+		return latest;
+	}
+	
+	/**
+	 * Describes a part of the response, along with the batch as a whole.  The size of the
+	 * body isn't measured unless someone asks for it.
+	 * @param part can be null if facebook didn't send one
+	 */
+	ResponseInfo describe(JsonNode part) {
+		if (part == null || part.isNull())
+			return new ResponseInfo(-1, null, -1, this.id, this.networkNanos, this.parseNanos, this.responseBytes);
+		
+		JsonNode body = part.get("body");
+		String text = (body == null || body.isNull()) ? null : body.textValue();
+		
+		return new ResponseInfo(part.path("code").asInt(-1), part.get("headers"), text, this.id, this.networkNanos, this.parseNanos, this.responseBytes);
+	}
+	
+	/**
+	 * Adds a request to the batch, telling any listener.
+	 */
+	private void enqueue(GraphRequestBase<?> req) {
+		int index;
+		synchronized (this) {
+			index = this.graphRequests.size();
+			this.graphRequests.add(req);
+		}
+		
+		if (this.listener != null) {
+			try {
+				if (index == 0)
+					this.listener.batchCreated(this.id);
+				
+				this.listener.requestEnqueued(this.id, index, req.getObject());
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "BatchListener failed", ex);
+			}
+		}
+	}
+	
+	/**
+	 * Hands stats to the listener; a broken listener must not break the batch.
+	 * @param completed is false if the batch is about to be sent, true if it is done
+	 */
+	private void report(BatchStats stats, boolean completed) {
+		try {
+			if (completed)
+				this.listener.batchCompleted(stats);
+			else
+				this.listener.batchSending(stats);
+		} catch (RuntimeException ex) {
+			log.log(Level.WARNING, "BatchListener failed", ex);
+		}
+	}
+	
+	/**
+	 * Called by graph requests as they resolve themselves.
+	 * @param part is what facebook sent for the request, possibly null
+	 * @param waitNanos is how long the resolving thread was blocked waiting for the batch
+	 * @param error is the exception the part resolved to, or null
+	 */
+	void partCompleted(int index, GraphRequestBase<?> req, JsonNode part, long waitNanos, long mapNanos, RuntimeException error) {
+		PartStats stats = new PartStats();
+		stats.batchId = this.id;
+		stats.index = index;
+		stats.object = req.getObject();
+		stats.code = (part == null) ? -1 : part.path("code").asInt(-1);
+		stats.waitNanos = waitNanos;
+		stats.mapNanos = mapNanos;
+		stats.errorType = (error == null) ? null : error.getClass().getSimpleName();
+		
+		try {
+			this.listener.partCompleted(stats);
+		} catch (RuntimeException ex) {
+			log.log(Level.WARNING, "BatchListener failed", ex);
+		}
+	}
+	
+	/**
+	 * Tells the listener about a get() of a request, on the thread which called it.
+	 * @param batchId is -1 if there was no batch
+	 * @param start is System.nanoTime() when get() was called
+	 * @param error is what get() threw, or null
+	 */
+	static void laterGet(BatchListener listener, long batchId, int index, String object, long start, RuntimeException error) {
+		GetStats stats = new GetStats();
+		stats.batchId = batchId;
+		stats.index = index;
+		stats.object = object;
+		stats.nanos = System.nanoTime() - start;
+		stats.errorType = (error == null) ? null : error.getClass().getSimpleName();
 		
-		final HttpResponse response;
 		try {
-			response = call.execute();
-		} catch (IOException ex) {
-			throw new IOFacebookException(ex);
+			listener.laterGet(stats);
+		} catch (RuntimeException ex) {
+			log.log(Level.WARNING, "BatchListener failed", ex);
+		}
+	}
+	
+	/** @return null if nobody is listening */
+	BatchListener getListener() {
+		return this.listener;
+	}
+	
+	/**
+	 * Counts the bytes read through it.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		long count;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				this.count++;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0)
+				this.count += read;
+			return read;
 		}
 		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			this.count += skipped;
+			return skipped;
+		}
+		
+		long getCount() {
+			return this.count;
+		}
+	}
+	
+	/**
+	 * Gives every binary param in the batch a unique part name and tells its request about it.
+	 * @return the binary params renamed with their part names; empty if there are none
+	 */
+	private List<Param> nameAttachments(List<GraphRequestBase<?>> sending) {
+		List<Param> attachments = null;
+		
+		for (GraphRequestBase<?> req: sending) {
+			List<BinaryParam> binaries = req.getBinaryParams();
+			if (binaries.isEmpty())
+				continue;
+			
+			if (attachments == null)
+				attachments = new ArrayList<Param>();
+			
+			StringBuilder names = new StringBuilder();
+			for (BinaryParam binary: binaries) {
+				String partName = "file" + attachments.size();
+				
+				if (names.length() > 0)
+					names.append(',');
+				names.append(partName);
+				
+				attachments.add(binary.value instanceof File
+						? new BinaryParam(partName, (File)binary.value, binary.contentType)
+						: new BinaryParam(partName, (InputStream)binary.value, binary.contentType));
+			}
+			
+			req.setAttachedFiles(names.toString());
+		}
+		
+		return attachments == null ? Collections.<Param>emptyList() : attachments;
+	}
+	
+	/**
+	 * @return true if every request in the batch is a GET, so it is safe to send twice.
+	 */
+	private boolean isReadOnly(List<GraphRequestBase<?>> sending) {
+		for (GraphRequestBase<?> req: sending)
+			if (req.getMethod() != HttpMethod.GET)
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Reads the response when asked, reporting how the endpoint did (and, if stats is not
+	 * null, what the call cost).  Our place in the bulkhead is given up once the body has
+	 * been read, or has failed to be.
+	 */
+	private Later<JsonNode> createResponseLater(final RequestBuilder call, final HttpResponse response, final String endpoint, final long latency,
+			final BatchStats stats, final Deadline deadline) {
 		return new Later<JsonNode>() {
+			boolean reported;
+			boolean finished;
+			
 			@Override
 			public JsonNode get() throws FacebookException
 			{
 				try {
-					if (response.getResponseCode() == HttpURLConnection.HTTP_OK
-							|| response.getResponseCode() == HttpURLConnection.HTTP_BAD_REQUEST
-							|| response.getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+					JsonNode result = this.read();
+					this.report(result, null);
+					return result;
+				} catch (RuntimeException ex) {
+					this.report(null, ex);
+					throw ex;
+				} finally {
+					this.finish();
+				}
+			}
+			
+			/** The body is only ever read once; get() is called under the io lock */
+			private void finish() {
+				if (bulkhead != null && !this.finished) {
+					this.finished = true;
+					bulkhead.finishBatch();
+				}
+			}
+			
+			/** Only the first attempt to read the response is interesting */
+			private void report(JsonNode result, RuntimeException ex) {
+				if (stats == null || this.reported)
+					return;
+				
+				this.reported = true;
+				stats.attempts = call.getAttempts();
+				
+				if (result instanceof ArrayNode) {
+					stats.partCodes = new int[result.size()];
+					for (int i=0; i<stats.partCodes.length; i++)
+						stats.partCodes[i] = result.get(i).path("code").asInt(-1);
+				}
+				
+				if (ex != null)
+					stats.errorType = (ex instanceof IOFacebookException && ex.getCause() != null)
+							? ex.getCause().getClass().getSimpleName() : ex.getClass().getSimpleName();
+				
+				Batch.this.report(stats, true);
+			}
+			
+			/** */
+			private JsonNode read() throws FacebookException
+			{
+				try {
+					int code = response.getResponseCode();
+					if (stats != null)
+						stats.httpStatus = code;
+					
+					long parseStart = System.nanoTime();
+					
+					if (code == HttpURLConnection.HTTP_OK
+							|| code == HttpURLConnection.HTTP_BAD_REQUEST
+							|| code == HttpURLConnection.HTTP_UNAUTHORIZED) {
 						
 						// If it was an error, we will recognize it in the content later.
 						// It's possible we should capture all 4XX codes here.
-						JsonNode result = mapper.readTree(response.getContentStream());
+						JsonNode result;
+						CountingInputStream content = new CountingInputStream(response.getContentStream());
+						try {
+							result = mapper.readTree(content);
+						} finally {
+							content.close();
+						}
+						
+						parseNanos = System.nanoTime() - parseStart;
+						responseBytes = content.getCount();
+						if (stats != null) {
+							stats.parseNanos = parseNanos;
+							stats.responseBytes = responseBytes;
+						}
+						
+						endpoints.success(endpoint, latency);
 						
 						if (log.isLoggable(Level.FINEST))
 							log.finest("Response is: " + result);
 						
 						return result;
 					} else {
+						// 5XX means the path to facebook is unhealthy; other codes are our problem
+						if (response.getResponseCode() >= 500)
+							endpoints.failure(endpoint);
+						else
+							endpoints.success(endpoint, latency);
+						
 						throw new IOFacebookException(
 								"Unrecognized error " + response.getResponseCode() + " from "
 								+ call + " :: " + StringUtils.read(response.getContentStream()));
 					}
 				} catch (IOException e) {
-					throw new IOFacebookException("Error calling " + call, e);
+					endpoints.failure(endpoint);
+					
+					if (deadline != null && deadline.isExpired())
+						throw new DeadlineExceededException("Deadline passed waiting for " + call, e);
+					else
+						throw new IOFacebookException("Error calling " + call, e);
 				}
 			}
 		};
@@ -460,7 +1553,11 @@ public class Batch implements Batcher, Later<JsonNode> {
 		if (params != null) {
 			for (Param param: params) {
 				if (param instanceof BinaryParam) {
-					call.addParam(param.name, (InputStream)param.value, ((BinaryParam)param).contentType, "irrelevant");
+					BinaryParam binary = (BinaryParam)param;
+					if (binary.value instanceof File)
+						call.addParam(binary.name, (File)binary.value, binary.contentType, binary.getFilename());
+					else
+						call.addParam(binary.name, (InputStream)binary.value, binary.contentType, binary.getFilename());
 				} else {
 					String paramValue = StringUtils.stringifyValue(param, this.mapper);
 					call.addParam(param.name, paramValue);
@@ -472,10 +1569,10 @@ public class Batch implements Batcher, Later<JsonNode> {
 	/**
 	 * @return the facebook graph endpoint base, with the optional api version.
 	 */
-	private String getGraphEndpoint() {
+	private String getGraphEndpoint(String endpoint) {
 		if (apiVersion == null)
-			return FacebookBatcher.GRAPH_ENDPOINT;
+			return endpoint;
 		else
-			return FacebookBatcher.GRAPH_ENDPOINT + apiVersion + "/";
+			return endpoint + apiVersion + "/";
 	}
 }
\ No newline at end of file
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.impl;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.googlecode.batchfb.GraphRequest;
+import com.googlecode.batchfb.Param;
+import com.googlecode.batchfb.err.BrokenFacebookException;
+import com.googlecode.batchfb.err.DeadlineExceededException;
+import com.googlecode.batchfb.err.FacebookException;
+import com.googlecode.batchfb.err.IOFacebookException;
+import com.googlecode.batchfb.util.BatchListener;
+import com.googlecode.batchfb.util.Deadline;
+import com.googlecode.batchfb.util.JSONUtils;
+import com.googlecode.batchfb.util.RequestBuilder.HttpMethod;
+import com.googlecode.batchfb.util.SharedMapper;
+
+/**
+ * <p>A graph request which resolves itself straight out of its slot in the Batch.  It does
+ * the work of the GraphNodeExtractor, ErrorDetectingWrapper, and MapperWrapper chain in one
+ * object and one step, which matters when you are creating a great many requests.  Those
+ * classes are still available for building custom chains.</p>
+ * 
+ * <p>Successful (2XX) bodies are bound straight from the text to the result type without
+ * building an intermediate tree.  Anything else goes through the full error detection.</p>
+ * 
+ * <p>Errors in our own part are cached like any other result.  Errors for the batch as a
+ * whole (say, a network failure) are not, so calling get() again will retry.</p>
+ * 
+ * <p>No lock is held while waiting for the batch, so cancel() never waits; a thread which
+ * calls get() while another is already resolving waits for that one instead.  Every get(),
+ * on whichever thread, is reported to the listener if there is one.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class BatchGraphRequest<T> extends GraphRequest<T> {
+	
+	/** Our states; we only move between them with compareAndSet */
+	private static final int PENDING = 0;
+	private static final int RESOLVING = 1;
+	private static final int RESOLVED = 2;
+	private static final int CANCELLED = 3;
+	
+	/** */
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<BatchGraphRequest> STATE = AtomicIntegerFieldUpdater.newUpdater(BatchGraphRequest.class, "state");
+	
+	/** One of the above; the result is visible once this is RESOLVED */
+	private volatile int state;
+	
+	/** Non-null until we are resolved or cancelled */
+	private volatile Batch batch;
+	
+	/** Our position in the batch */
+	private int index;
+	
+	/** Kept after the batch is let go of */
+	private long batchId;
+	
+	/** Null if nobody is listening */
+	private BatchListener listener;
+	
+	/** */
+	private JavaType type;
+	
+	/** */
+	private SharedMapper sharedMapper;
+	
+	/** Only one of these will be set */
+	private T result;
+	private RuntimeException error;
+	
+	/** Strips off any leading / from object */
+	public BatchGraphRequest(Batch batch, int index, String object, HttpMethod method, Param[] params, SharedMapper mapper, JavaType type) {
+		super(object, method, params, mapper.getMapper(), null);
+		
+		this.batch = batch;
+		this.index = index;
+		this.batchId = batch.getId();
+		this.listener = batch.getListener();
+		this.type = type;
+		this.sharedMapper = mapper;
+	}
+	
+	/** */
+	@Override
+	public T get() throws FacebookException {
+		return this.fetch(null);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.TimedLater#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public T get(long timeout, TimeUnit unit) throws FacebookException {
+		return this.fetch(Deadline.after(timeout, unit));
+	}
+	
+	/**
+	 * @param wait bounds how long we wait, or null to wait as long as it takes
+	 */
+	private T fetch(Deadline wait) {
+		long start = (this.listener != null) ? System.nanoTime() : 0;
+		RuntimeException error = null;
+		try {
+			if (this.state != RESOLVED)
+				this.resolve(wait);
+			
+			return this.value();
+		} catch (RuntimeException ex) {
+			error = ex;
+			throw ex;
+		} finally {
+			if (this.listener != null)
+				Batch.laterGet(this.listener, this.batchId, this.index, this.getObject(), start, error);
+		}
+	}
+	
+	/** */
+	private T value() {
+		if (this.error != null)
+			throw this.error;
+		else
+			return this.result;
+	}
+	
+	/**
+	 * Claims our part from the batch and converts it, or waits for the thread which is already
+	 * doing that.  If the batch itself failed, we go back to pending and the exception propagates.
+	 * @param wait bounds how long we wait, or null to wait as long as it takes
+	 * @throws CancellationException if we were cancelled, before or meanwhile
+	 */
+	private void resolve(Deadline wait) {
+		while (!STATE.compareAndSet(this, PENDING, RESOLVING)) {
+			int now = this.state;
+			if (now == RESOLVED)
+				return;
+			else if (now == CANCELLED)
+				throw new CancellationException();
+			else if (now == RESOLVING)
+				this.awaitResolution(wait);
+		}
+		
+		Batch b = this.batch;
+		boolean resolved = false;
+		try {
+			BatchListener listener = this.listener;
+			long waitStart = (listener != null) ? System.nanoTime() : 0;
+			
+			// This is where we block if the batch hasn't come back yet
+			JsonNode part = b.claim(this.index, wait);
+			this.setResponseInfo(b.describe(part));
+			
+			long mapStart = (listener != null) ? System.nanoTime() : 0;
+			
+			try {
+				this.result = this.convert(part);
+			} catch (RuntimeException ex) {
+				this.error = ex;
+			}
+			
+			if (listener != null)
+				b.partCompleted(this.index, this, part, mapStart - waitStart, System.nanoTime() - mapStart, this.error);
+			
+			resolved = true;
+		} catch (RuntimeException ex) {
+			// Cancelling while we wait can take our part away
+			if (this.state == CANCELLED)
+				throw new CancellationException();
+			else
+				throw ex;
+		} finally {
+			if (STATE.compareAndSet(this, RESOLVING, resolved ? RESOLVED : PENDING) && resolved)
+				this.batch = null;
+			
+			synchronized (this) {
+				this.notifyAll();
+			}
+		}
+		
+		if (this.state == CANCELLED)
+			throw new CancellationException();
+	}
+	
+	/**
+	 * Waits while another thread resolves us.  Our monitor is only held in here, never
+	 * while anyone is on the network.
+	 * @param wait can be null to wait as long as it takes
+	 * @throws DeadlineExceededException if the wait runs out first
+	 */
+	private synchronized void awaitResolution(Deadline wait) {
+		boolean interrupted = false;
+		try {
+			while (this.state == RESOLVING) {
+				long millis = 0;
+				if (wait != null) {
+					millis = wait.remainingMillis();
+					if (millis <= 0)
+						throw new DeadlineExceededException("Another thread is still waiting for batch part " + this.index);
+				}
+				
+				try {
+					this.wait(millis);
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Takes us out of the batch if it hasn't been sent yet, or has the batch drop our part
+	 * if it has.  Doesn't wait for a get() in progress; that get() throws CancellationException.
+	 */
+	@Override
+	public boolean cancel() {
+		int now = this.state;
+		while (now == PENDING || now == RESOLVING) {
+			if (STATE.compareAndSet(this, now, CANCELLED)) {
+				this.batch.cancel(this.index);
+				this.batch = null;
+				
+				synchronized (this) {
+					this.notifyAll();
+				}
+				return true;
+			}
+			
+			now = this.state;
+		}
+		
+		return false;
+	}
+	
+	/** */
+	@Override
+	public boolean isCancelled() {
+		return this.state == CANCELLED;
+	}
+	
+	/**
+	 * @throws BrokenFacebookException if facebook didn't give us a part
+	 */
+	protected void checkPart(JsonNode part) {
+		if (part == null || part.isNull())
+			throw new BrokenFacebookException("Facebook returned an invalid batch response. There should not be a null at index " + this.index);
+	}
+	
+	/**
+	 * @param part should be something like:
+	 * {
+	 *   "code": 200,
+	 *   "headers": [ { "name":"Content-Type", "value":"text/javascript; charset=UTF-8" } ],
+	 *   "body":"{\"id\":\"asdf\"}"
+	 * }
+	 */
+	protected T convert(JsonNode part) {
+		this.checkPart(part);
+		
+		JsonNode bodyNode = part.get("body");
+		if (bodyNode == null || bodyNode.isNull())
+			return null;
+		
+		String body = bodyNode.textValue();
+		
+		int code = part.path("code").intValue();
+		boolean success = code >= 200 && code < 300;
+		
+		// The fast path.  Old rest-style calls report their errors with a 200, so if there
+		// is any hint of one we let the error detector have a look at the whole thing.
+		if (success && !JsonNode.class.isAssignableFrom(this.type.getRawClass()) && body.indexOf("\"error_code\"") < 0) {
+			if ("false".equals(body))
+				return null;
+			
+			try {
+				return this.sharedMapper.reader(this.type).readValue(body);
+			} catch (IOException ex) {
+				throw new IOFacebookException(ex);
+			}
+		}
+		
+		JsonNode node = JSONUtils.toNode(body, this.sharedMapper.getMapper());
+		node = ErrorDetectingWrapper.DETECTOR.detect(node, success);
+		
+		return this.sharedMapper.convert(node, this.type);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.QueryRequest;
+import com.googlecode.batchfb.util.BatchListener;
+
+/**
+ * <p>A query which knows which batch and multiquery it rides in, so that cancelling it
+ * can take it out of the multiquery (and the multiquery out of the batch, if it was
+ * the last one).  A query answered from the cache has neither.</p>
+ * 
+ * <p>Each get() is reported to the listener, if there is one.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class BatchQueryRequest<T> extends QueryRequest<T> {
+	
+	/** Null once we have been resolved or cancelled */
+	private volatile Batch batch;
+	
+	/** Null once we have been resolved or cancelled */
+	private MultiqueryRequest multiquery;
+	
+	/** The multiquery's position in the batch; -1 if there is no batch */
+	private int index;
+	
+	/** Kept after the batch is let go of; -1 if there is no batch */
+	private long batchId;
+	
+	/** Null if nobody is listening */
+	private BatchListener listener;
+	
+	/**
+	 * @param batch can be null, along with the multiquery, if the query is already answered
+	 * @param listener can be null
+	 */
+	public BatchQueryRequest(Batch batch, MultiqueryRequest multiquery, int index, String fql, String name, Later<T> source, BatchListener listener) {
+		super(fql, name, source);
+		
+		this.batch = batch;
+		this.multiquery = multiquery;
+		this.index = index;
+		this.batchId = (batch == null) ? -1 : batch.getId();
+		this.listener = listener;
+	}
+	
+	/** */
+	@Override
+	public T get() {
+		return this.fetch(0, null);
+	}
+	
+	/** */
+	@Override
+	public T get(long timeout, TimeUnit unit) {
+		return this.fetch(timeout, unit);
+	}
+	
+	/**
+	 * @param unit is null to wait as long as it takes
+	 */
+	private T fetch(long timeout, TimeUnit unit) {
+		long start = (this.listener != null) ? System.nanoTime() : 0;
+		RuntimeException error = null;
+		try {
+			T value = (unit == null) ? super.get() : super.get(timeout, unit);
+			this.multiquery = null;
+			this.batch = null;
+			return value;
+		} catch (RuntimeException ex) {
+			error = ex;
+			throw ex;
+		} finally {
+			if (this.listener != null)
+				Batch.laterGet(this.listener, this.batchId, this.index, this.getFQL(), start, error);
+		}
+	}
+	
+	/** */
+	@Override
+	public synchronized boolean cancel() {
+		Batch b = this.batch;
+		if (!super.cancel())
+			return false;
+		
+		if (b != null) {
+			b.cancel(this.multiquery, this.index, this);
+			this.multiquery = null;
+			this.batch = null;
+		}
+		return true;
+	}
+}
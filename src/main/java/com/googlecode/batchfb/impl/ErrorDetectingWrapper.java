@@ -23,23 +23,15 @@
 package com.googlecode.batchfb.impl;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.googlecode.batchfb.Batcher;
 import com.googlecode.batchfb.Later;
 import com.googlecode.batchfb.err.ErrorFacebookException;
-import com.googlecode.batchfb.err.FacebookException;
 import com.googlecode.batchfb.err.OAuthException;
-import com.googlecode.batchfb.err.PageMigratedException;
-import com.googlecode.batchfb.err.PermissionException;
 import com.googlecode.batchfb.util.LaterWrapper;
 
-import java.lang.reflect.Constructor;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * <p>Detects a Facebook error in the JSON result from a Graph API request and throws
- * the correct kind of exception, whatever that happens to be.  It tries to match the
- * type of the exception with an actual exception class of the correct name.</p>
+ * the correct kind of exception, whatever that happens to be.  The exception class is
+ * chosen by the ErrorRegistry from the error's type, code, and subcode.</p>
  * 
  * <p>In addition, this detects the REALLY WEIRD cases where Facebook just spits back
  * "false".  We translate that into a null.</p>
@@ -48,23 +40,51 @@ import java.util.regex.Pattern;
  * 
  * <p>Facebook coughs up errors in at least three different formats.  This
  * detects them all.</p>
+ * 
+ * <p>When wrapping a GraphNodeExtractor, the batch part's http code is consulted first;
+ * graph-style errors are not searched for in bodies that came back with a 2XX code.</p>
  */
 public class ErrorDetectingWrapper extends LaterWrapper<JsonNode, JsonNode>
 {
+	/** If we are wrapping a batch part, this knows its http code */
+	private GraphNodeExtractor extractor;
+	
 	public ErrorDetectingWrapper(Later<JsonNode> orig) {
 		super(orig);
 	}
+	
+	public ErrorDetectingWrapper(GraphNodeExtractor orig) {
+		super(orig);
+		this.extractor = orig;
+	}
+	
+	/** For use by requests which extract their own batch part; see BatchGraphRequest */
+	static final ErrorDetectingWrapper DETECTOR = new ErrorDetectingWrapper((Later<JsonNode>)null);
 
 	/** */
 	@Override
 	protected JsonNode convert(JsonNode node) {
+		return this.detect(node, this.extractor != null && this.extractor.isSuccess());
+	}
+	
+	/**
+	 * Throws the appropriate exception if the node is an error.
+	 * 
+	 * @param partSucceeded should be true if the node is the body of a batch part whose http code was 2XX
+	 * @return the node, or null if it was null or "false"
+	 */
+	protected JsonNode detect(JsonNode node, boolean partSucceeded) {
 		// Hopefully a simple "false" at the top level is never a legitimate value... it seems that it should be mapped
 		// to null.  It happens (among other times) when fetching multiple items and you don't have permission on one of them.
 		if (node == null || node.isBoolean() && !node.booleanValue())
 			return null;
 		
-		this.checkForStandardGraphError(node);
-		this.checkForBatchError(node);
+		// Graph errors always come with an error code; old rest-style calls (multiquery)
+		// report errors with a 200 so we must still check for those.
+		if (!partSucceeded) {
+			this.checkForStandardGraphError(node);
+			this.checkForBatchError(node);
+		}
 		this.checkForOldRestStyleError(node);
 		
 		return node;
@@ -102,62 +122,10 @@ public class ErrorDetectingWrapper extends LaterWrapper<JsonNode, JsonNode>
 			String userTitle = errorNode.path("error_user_title").textValue();
 			String userMsg = errorNode.path("error_user_msg").textValue();
 
-			if (code != null) {
-				// Special case, migration exceptions are poorly structured
-				if (code == 21)
-					this.throwPageMigratedException(msg, code, subcode, userTitle, userMsg);
-
-				// Documented here: https://developers.facebook.com/docs/graph-api/using-graph-api
-				if (code == 10 || (code >= 200 && code <= 299))
-					throw new PermissionException(msg, type, code, subcode, userTitle, userMsg);
-			}
-
-			// We check to see if we have an exception that matches the type, otherwise
-			// we simply throw the base FacebookException
-			String proposedExceptionType = Batcher.class.getPackage().getName() + ".err." + type;
-			
-			try {
-				Class<?> exceptionClass = Class.forName(proposedExceptionType);
-				Constructor<?> ctor = exceptionClass.getConstructor(String.class, String.class, Integer.TYPE, Integer.TYPE);
-				throw (FacebookException)ctor.newInstance(msg, type, code, subcode);
-			} catch (FacebookException e) {
-				throw e;
-			} catch (Exception e) {
-				throw new ErrorFacebookException(type + ": " + msg, type, code, subcode, userTitle, userMsg);
-			}
+			throw ErrorRegistry.create(msg, type, code, subcode, userTitle, userMsg);
 		}
 	}
 
-	/** Matches IDs in the error msg */
-	private static final Pattern ID_PATTERN = Pattern.compile("ID [0-9]+");
-
-	/**
-	 * Builds the proper exception and throws it.
-	 * @throws PageMigratedException always
-	 */
-	private void throwPageMigratedException(String msg, int code, int subcode, String userTitle, String userMsg) {
-		// This SUCKS ASS.  Messages look like:
-		// (#21) Page ID 114267748588304 was migrated to page ID 111013272313096.  Please update your API calls to the new ID
-
-		Matcher matcher = ID_PATTERN.matcher(msg);
-
-		long oldId = this.extractNextId(matcher, msg);
-		long newId = this.extractNextId(matcher, msg);
-
-		throw new PageMigratedException(msg, code, subcode, userTitle, userMsg, oldId, newId);
-	}
-
-	/**
-	 * Gets the next id out of the matcher
-	 */
-	private long extractNextId(Matcher matcher, String msg) {
-		if (!matcher.find())
-			throw new IllegalStateException("Facebook changed the error msg for page migration to something unfamiliar. The new msg is: " + msg);
-
-		String idStr = matcher.group().substring("ID ".length());
-		return Long.parseLong(idStr);
-	}
-
 	/**
 	 * The batch call itself seems to have a funky error format:
 	 * 
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.googlecode.batchfb.err.ErrorFacebookException;
+import com.googlecode.batchfb.err.FacebookException;
+import com.googlecode.batchfb.err.OAuthException;
+import com.googlecode.batchfb.err.PageMigratedException;
+import com.googlecode.batchfb.err.PermissionException;
+
+/**
+ * <p>Maps the type, code, and subcode of a standard graph error to the factory which creates
+ * the right exception.  Lookups are by code and subcode first, then by code, then by type;
+ * anything unrecognized becomes a plain ErrorFacebookException.</p>
+ * 
+ * <p>The registry is populated with the errors BatchFB understands out of the box.  You can
+ * register your own factories at startup to give other errors their own exception types.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class ErrorRegistry {
+	
+	/** Keyed by code << 32 | subcode */
+	private static final ConcurrentMap<Long, ExceptionFactory> BY_SUBCODE = new ConcurrentHashMap<Long, ExceptionFactory>();
+	
+	/** */
+	private static final ConcurrentMap<Integer, ExceptionFactory> BY_CODE = new ConcurrentHashMap<Integer, ExceptionFactory>();
+	
+	/** */
+	private static final ConcurrentMap<String, ExceptionFactory> BY_TYPE = new ConcurrentHashMap<String, ExceptionFactory>();
+	
+	/** */
+	private static final ExceptionFactory PERMISSION = new ExceptionFactory() {
+		@Override
+		public FacebookException create(String msg, String type, Integer code, Integer subcode, String userTitle, String userMsg) {
+			return new PermissionException(msg, type, code, subcode, userTitle, userMsg);
+		}
+	};
+	
+	/** Special case, migration exceptions are poorly structured */
+	private static final ExceptionFactory PAGE_MIGRATED = new ExceptionFactory() {
+		@Override
+		public FacebookException create(String msg, String type, Integer code, Integer subcode, String userTitle, String userMsg) {
+			// This SUCKS ASS.  Messages look like:
+			// (#21) Page ID 114267748588304 was migrated to page ID 111013272313096.  Please update your API calls to the new ID
+			
+			Matcher matcher = ID_PATTERN.matcher(msg);
+			
+			long oldId = extractNextId(matcher, msg);
+			long newId = extractNextId(matcher, msg);
+			
+			return new PageMigratedException(msg, code, subcode, userTitle, userMsg, oldId, newId);
+		}
+	};
+	
+	/** */
+	private static final ExceptionFactory OAUTH = new ExceptionFactory() {
+		@Override
+		public FacebookException create(String msg, String type, Integer code, Integer subcode, String userTitle, String userMsg) {
+			return new OAuthException(msg, type, code, subcode, userTitle, userMsg);
+		}
+	};
+	
+	/** Matches IDs in the error msg */
+	private static final Pattern ID_PATTERN = Pattern.compile("ID [0-9]+");
+	
+	static {
+		registerCode(21, PAGE_MIGRATED);
+		
+		// Documented here: https://developers.facebook.com/docs/graph-api/using-graph-api
+		registerCode(10, PERMISSION);
+		for (int code=200; code<=299; code++)
+			registerCode(code, PERMISSION);
+		
+		registerType("OAuthException", OAUTH);
+	}
+	
+	/**
+	 * Errors with exactly this code and subcode will be created by the factory.
+	 */
+	public static void registerCode(int code, int subcode, ExceptionFactory factory) {
+		BY_SUBCODE.put(subcodeKey(code, subcode), factory);
+	}
+	
+	/**
+	 * Errors with this code (and no more specific registration) will be created by the factory.
+	 */
+	public static void registerCode(int code, ExceptionFactory factory) {
+		BY_CODE.put(code, factory);
+	}
+	
+	/**
+	 * Errors with this type (and no registration for the code) will be created by the factory.
+	 */
+	public static void registerType(String type, ExceptionFactory factory) {
+		BY_TYPE.put(type, factory);
+	}
+	
+	/**
+	 * Creates the appropriate exception for a standard graph error.
+	 * 
+	 * @param code may be null
+	 * @param subcode may be null
+	 */
+	public static FacebookException create(String msg, String type, Integer code, Integer subcode, String userTitle, String userMsg) {
+		ExceptionFactory factory = null;
+		
+		if (code != null) {
+			if (subcode != null)
+				factory = BY_SUBCODE.get(subcodeKey(code, subcode));
+			
+			if (factory == null)
+				factory = BY_CODE.get(code);
+		}
+		
+		if (factory == null)
+			factory = BY_TYPE.get(type);
+		
+		if (factory != null)
+			return factory.create(msg, type, code, subcode, userTitle, userMsg);
+		else
+			return new ErrorFacebookException(type + ": " + msg, type, code, subcode, userTitle, userMsg);
+	}
+	
+	/** */
+	private static long subcodeKey(int code, int subcode) {
+		return ((long)code << 32) | (subcode & 0xffffffffL);
+	}
+	
+	/**
+	 * Gets the next id out of the matcher
+	 */
+	private static long extractNextId(Matcher matcher, String msg) {
+		if (!matcher.find())
+			throw new IllegalStateException("Facebook changed the error msg for page migration to something unfamiliar. The new msg is: " + msg);
+		
+		String idStr = matcher.group().substring("ID ".length());
+		return Long.parseLong(idStr);
+	}
+}
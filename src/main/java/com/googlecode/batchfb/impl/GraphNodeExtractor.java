@@ -25,6 +25,7 @@ package com.googlecode.batchfb.impl;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.googlecode.batchfb.Request;
 import com.googlecode.batchfb.err.BrokenFacebookException;
 import com.googlecode.batchfb.util.JSONUtils;
 import com.googlecode.batchfb.util.LaterWrapper;
@@ -33,11 +34,27 @@ import com.googlecode.batchfb.util.LaterWrapper;
  * <p>Knows how to get the JsonNode for a particular graph request out of a batchResult.
  * The batchResult must look like the result described here:
  * https://developers.facebook.com/docs/api/batch/</p>
+ * 
+ * <p>It can either select its part out of the whole (error-detected) batch result, or
+ * claim its part directly from the Batch.  The latter lets the batch release the rest
+ * of the result.</p>
  */
 public class GraphNodeExtractor extends LaterWrapper<JsonNode, JsonNode>
 {
 	int index;
 	ObjectMapper mapper;
+	
+	/** The http code of our batch part, or 0 if we haven't extracted it yet */
+	int code;
+	
+	/** True if our input is just our part rather than the whole batch result */
+	boolean claimsPart;
+	
+	/** If claiming our part, the batch it comes from */
+	Batch batch;
+	
+	/** If not null, is told about the response */
+	Request<?> request;
 
 	/** Force the input to be error detected so we always have a valid input */
 	public GraphNodeExtractor(int index, ObjectMapper mapper, ErrorDetectingWrapper batchResult)
@@ -48,17 +65,45 @@ public class GraphNodeExtractor extends LaterWrapper<JsonNode, JsonNode>
 		this.mapper = mapper;
 	}
 
+	/** Claims our part directly from the batch, which does its own error detection */
+	public GraphNodeExtractor(int index, ObjectMapper mapper, Batch batch)
+	{
+		super(batch.part(index));
+		
+		this.index = index;
+		this.mapper = mapper;
+		this.claimsPart = true;
+		this.batch = batch;
+	}
+	
+	/**
+	 * Sets the request to tell about the response (see Request.getResponseInfo()).  Only works
+	 * when claiming our part from the batch.  Like QueryNodeExtractor, this has to be set after
+	 * construction because the request contains this extractor.
+	 */
+	public void setRequest(Request<?> req) {
+		this.request = req;
+	}
+
 	/** */
 	@Override
 	protected JsonNode convert(JsonNode data)
 	{
-		if (!(data instanceof ArrayNode))
-			throw new IllegalStateException("Expected array node: " + data);
-
-		JsonNode batchPart = ((ArrayNode)data).get(this.index);
-		
-		if (batchPart == null || batchPart.isNull())
-			throw new BrokenFacebookException("Facebook returned an invalid batch response. There should not be a null at index " + index + " of this array: " + data);
+		JsonNode batchPart;
+		if (this.claimsPart) {
+			batchPart = data;
+			
+			if (batchPart == null || batchPart.isNull())
+				throw new BrokenFacebookException("Facebook returned an invalid batch response. There should not be a null at index " + index);
+		} else {
+			if (!(data instanceof ArrayNode))
+				throw new IllegalStateException("Expected array node: " + data);
+			
+			batchPart = ((ArrayNode)data).get(this.index);
+			
+			if (batchPart == null || batchPart.isNull())
+				throw new BrokenFacebookException("Facebook returned an invalid batch response. There should not be a null at index " + index + " of this array: " + data);
+		}
 		
 		// This should be something like:
 		// {
@@ -67,10 +112,24 @@ public class GraphNodeExtractor extends LaterWrapper<JsonNode, JsonNode>
 		//   "body":"{\"id\":\"asdf\"}"
 		// },
 		
+		this.code = batchPart.path("code").intValue();
+		
+		if (this.request != null && this.batch != null) {
+			this.request.setResponseInfo(this.batch.describe(batchPart));
+			this.batch = null;
+		}
+		
 		JsonNode body = batchPart.get("body");
 		if (body == null || body.isNull())
 			return null;
 		else
 			return JSONUtils.toNode(body.textValue(), mapper);
 	}
+	
+	/**
+	 * @return true if our batch part has been extracted and came back with a 2XX http code.
+	 */
+	public boolean isSuccess() {
+		return this.code >= 200 && this.code < 300;
+	}
 }
\ No newline at end of file
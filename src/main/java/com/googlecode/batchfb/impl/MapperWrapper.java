@@ -27,6 +27,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.googlecode.batchfb.Later;
 import com.googlecode.batchfb.util.LaterWrapper;
+import com.googlecode.batchfb.util.SharedMapper;
 
 /**
  * Wrapper that converts from a JsonNode to an actual Java object.
@@ -35,6 +36,9 @@ public class MapperWrapper<T> extends LaterWrapper<JsonNode, T> {
 	JavaType resultType;
 	ObjectMapper mapper;
 	
+	/** If present, we map with its cached readers instead of the plain mapper */
+	SharedMapper sharedMapper;
+	
 	/**
 	 * @param base is assumed to produce the real deal, not an error node
 	 */
@@ -44,10 +48,21 @@ public class MapperWrapper<T> extends LaterWrapper<JsonNode, T> {
 		this.mapper = mapper;
 	}
 	
+	/**
+	 * @param base is assumed to produce the real deal, not an error node
+	 */
+	public MapperWrapper(JavaType resultType, SharedMapper mapper, Later<JsonNode> base) {
+		this(resultType, mapper.getMapper(), base);
+		this.sharedMapper = mapper;
+	}
+	
 	/** Use Jackson to map from JsonNode to the type */
 	@Override
 	@SuppressWarnings("unchecked")
 	protected T convert(JsonNode data) {
+		if (this.sharedMapper != null)
+			return this.sharedMapper.<T>convert(data, this.resultType);
+		
 		// The (T) cast prevents the commandline javac from choking "no unique maximal instance"
 		return (T)this.mapper.convertValue(data, this.resultType);
 	}	
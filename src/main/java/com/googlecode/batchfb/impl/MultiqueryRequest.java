@@ -1,6 +1,7 @@
 package com.googlecode.batchfb.impl;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,11 +9,15 @@ import java.util.Map;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.googlecode.batchfb.GraphRequestBase;
 import com.googlecode.batchfb.Later;
 import com.googlecode.batchfb.Param;
 import com.googlecode.batchfb.QueryRequest;
+import com.googlecode.batchfb.util.Deadline;
 import com.googlecode.batchfb.util.JSONUtils;
+import com.googlecode.batchfb.util.QueryCache;
 import com.googlecode.batchfb.util.RequestBuilder.HttpMethod;
 
 /**
@@ -21,17 +26,70 @@ import com.googlecode.batchfb.util.RequestBuilder.HttpMethod;
  */
 public class MultiqueryRequest extends GraphRequestBase<JsonNode> {
 	
-	/** */
-	List<QueryRequest<?>> queryRequests = new ArrayList<QueryRequest<?>>();
+	/** Private so that it isn't serialized into the batch along with us */
+	private List<QueryRequest<?>> queryRequests = new ArrayList<QueryRequest<?>>();
+	
+	/** Identical FQL shares one name; this is the name by FQL */
+	private Map<String, String> names = new HashMap<String, String>();
+	
+	/** The result sets by query name, built the first time one is claimed */
+	private Map<String, JsonNode> results;
+	
+	/** How many queries have yet to claim each result set */
+	private Map<String, Integer> claims;
+	
+	/** If not null, successful results are remembered here */
+	private QueryCache cache;
+	private String accessToken;
 	
 	/** */
 	public MultiqueryRequest(ObjectMapper mapper, Later<JsonNode> source) {
 		super("method/fql.multiquery", HttpMethod.GET, mapper, source);
 	}
 	
+	/**
+	 * Remembers our results in the cache once they arrive.
+	 * @param accessToken is the one we are sent with
+	 */
+	public void setCache(QueryCache cache, String accessToken) {
+		this.cache = cache;
+		this.accessToken = accessToken;
+	}
+	
 	/** */
 	public void addQuery(QueryRequest<?> req) {
 		this.queryRequests.add(req);
+		
+		if (!this.names.containsKey(req.getFQL()))
+			this.names.put(req.getFQL(), req.getName());
+	}
+	
+	/**
+	 * @return the name of a query already registered with the same FQL, so that a new
+	 * query can share it; null if there isn't one.
+	 */
+	public String getNameFor(String fql) {
+		return this.names.get(fql);
+	}
+	
+	/**
+	 * Once the results are in, a removed query gives up its claim on its result set.
+	 * @return false if the query wasn't registered with us
+	 */
+	public synchronized boolean removeQuery(QueryRequest<?> req) {
+		if (!this.queryRequests.remove(req))
+			return false;
+		
+		if (this.claims != null)
+			this.unclaim(req.getName());
+		
+		// The FQL stays as long as anyone else shares it
+		for (QueryRequest<?> other: this.queryRequests)
+			if (other.getFQL().equals(req.getFQL()))
+				return true;
+		
+		this.names.remove(req.getFQL());
+		return true;
 	}
 	
 	/** Generate the parameters approprate to a multiquery from the registered queries */
@@ -47,9 +105,107 @@ public class MultiqueryRequest extends GraphRequestBase<JsonNode> {
 		return new Param[] { new Param("queries", json) };
 	}
 
-	/** @return the current number of queries registered */
+	/**
+	 * The latest of the queries' deadlines, since all of them ride on this request;
+	 * null if any query doesn't have one.
+	 */
+	@Override
+	@JsonIgnore
+	public Deadline getDeadline() {
+		Deadline latest = null;
+		for (QueryRequest<?> req: this.queryRequests) {
+			if (req.getDeadline() == null)
+				return null;
+			
+			latest = Deadline.latest(latest, req.getDeadline());
+		}
+		
+		return latest;
+	}
+
+	/**
+	 * Hands out the result set of the named query.  The first call indexes the whole response
+	 * by name, so each query finds its result without scanning the others.  Queries which
+	 * share a name each get their own copy; a result set is released once all of them have
+	 * claimed it; the response we keep holds only the names.  We wait for the response without
+	 * holding our lock, so removeQuery() never waits on the network.
+	 */
+	public JsonNode claimResult(String name) {
+		JsonNode data = this.get();
+		
+		synchronized (this) {
+			return this.claimResult(name, data);
+		}
+	}
+	
+	/** */
+	private JsonNode claimResult(String name, JsonNode data) {
+		if (this.results == null)
+			this.index(data);
+		
+		if (!this.results.containsKey(name))
+			throw new IllegalStateException("Didn't find query named '" + name + "' in query results");
+		
+		JsonNode resultSet = this.results.get(name);
+		if (this.unclaim(name))
+			return resultSet;
+		else
+			return (resultSet == null) ? null : resultSet.deepCopy();
+	}
+	
+	/**
+	 * Counts off one claim on the named result set, dropping it after the last.
+	 * @return true if that was the last claim
+	 */
+	private boolean unclaim(String name) {
+		Integer remaining = this.claims.get(name);
+		if (remaining != null && remaining > 1) {
+			this.claims.put(name, remaining - 1);
+			return false;
+		}
+		
+		this.claims.remove(name);
+		this.results.remove(name);
+		return true;
+	}
+	
+	/** Moves the result sets which some query will claim out of the response; the rest are dropped */
+	private void index(JsonNode data) {
+		if (!(data instanceof ArrayNode))
+			throw new IllegalStateException("Expected array node: " + data);
+		
+		this.claims = new HashMap<String, Integer>();
+		for (QueryRequest<?> req: this.queryRequests) {
+			Integer count = this.claims.get(req.getName());
+			this.claims.put(req.getName(), (count == null) ? 1 : count + 1);
+		}
+		
+		this.results = new HashMap<String, JsonNode>(this.claims.size() * 2);
+		for (JsonNode candidate: data) {
+			String name = candidate.path("name").textValue();
+			JsonNode resultSet = (candidate instanceof ObjectNode) ? ((ObjectNode)candidate).remove("fql_result_set") : null;
+			if (this.claims.containsKey(name))
+				this.results.put(name, resultSet);
+		}
+		
+		if (this.cache != null) {
+			for (Map.Entry<String, String> named: this.names.entrySet()) {
+				JsonNode resultSet = this.results.get(named.getValue());
+				if (resultSet != null)
+					this.cache.put(this.accessToken, named.getKey(), resultSet.deepCopy());
+			}
+		}
+	}
+	
+	/** @return the current number of queries registered, counting ones which share FQL */
 	public int numQueries()
 	{
 		return this.queryRequests.size();
 	}
+	
+	/** @return the number of distinct FQL queries registered, which is what Facebook runs */
+	public int numDistinctQueries()
+	{
+		return this.names.size();
+	}
 }
\ No newline at end of file
@@ -3,14 +3,16 @@ package com.googlecode.batchfb.impl;
 import com.googlecode.batchfb.Batcher;
 import com.googlecode.batchfb.GraphRequest;
 import com.googlecode.batchfb.PagedLater;
+import com.googlecode.batchfb.CancellableLater;
 import com.googlecode.batchfb.err.FacebookException;
 import com.googlecode.batchfb.type.Paged;
 import com.googlecode.batchfb.util.URLParser;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /** Provides paging ability */
-public class PagedLaterAdapter<T> implements PagedLater<T> {
+public class PagedLaterAdapter<T> implements PagedLater<T>, CancellableLater<List<T>> {
 	Batcher batcher;
 
 	GraphRequest<Paged<T>> request;
@@ -34,6 +36,14 @@ public class PagedLaterAdapter<T> implements PagedLater<T> {
 		return this.request.get().getData();
 	}
 
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.TimedLater#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public List<T> get(long timeout, TimeUnit unit) throws FacebookException {
+		return this.request.get(timeout, unit).getData();
+	}
+
 	@Override
 	public PagedLater<T> next()
 	{
@@ -73,4 +83,12 @@ public class PagedLaterAdapter<T> implements PagedLater<T> {
 		
 		return this.batcher.paged(parser.getPath(), this.type, parser.getParamsAsArray());
 	}
-}
\ No newline at end of file
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.CancellableLater#cancel()
+	 */
+	@Override
+	public boolean cancel() {
+		return this.request.cancel();
+	}
+}
@@ -58,12 +58,31 @@ import com.googlecode.batchfb.util.LaterWrapper;
 public class QueryNodeExtractor extends LaterWrapper<JsonNode, JsonNode>
 {
 	Request<?> request;
+	
+	/** If the multiquery result is a request, we share its ResponseInfo */
+	Request<?> multiquery;
+	
+	/** If the multiquery result is a MultiqueryRequest, it finds our result by name without a scan */
+	MultiqueryRequest index;
+	
+	/**
+	 * Our result set, claimed from the index.  LaterWrapper doesn't stop two threads from
+	 * converting at once, so this makes sure we claim only once and both get the same answer.
+	 */
+	private JsonNode claimed;
+	private boolean hasClaimed;
 
 	/**
 	 * @param multiqueryResult should be the graph selection of a MultiqueryRequest
 	 */
 	public QueryNodeExtractor(Later<JsonNode> multiqueryResult) {
 		super(multiqueryResult);
+		
+		if (multiqueryResult instanceof Request)
+			this.multiquery = (Request<?>)multiqueryResult;
+		
+		if (multiqueryResult instanceof MultiqueryRequest)
+			this.index = (MultiqueryRequest)multiqueryResult;
 	}
 	
 	/**
@@ -84,8 +103,17 @@ public class QueryNodeExtractor extends LaterWrapper<JsonNode, JsonNode>
 		if (!(data instanceof ArrayNode))
 			throw new IllegalStateException("Expected array node: " + data);
 		
+		if (this.multiquery != null) {
+			this.request.setResponseInfo(this.multiquery.getResponseInfo());
+			this.multiquery = null;
+		}
+		
 		// If you have an NPE here it means you didn't initialize the Request properly!
 		String name = this.request.getName();
+		
+		// The index takes the result sets out of the response, so there is no scanning it after
+		if (this.index != null)
+			return this.claim(name);
 
 		for (int i=0; i<data.size(); i++) {
 			JsonNode candidate = data.get(i);
@@ -96,4 +124,14 @@ public class QueryNodeExtractor extends LaterWrapper<JsonNode, JsonNode>
 		
 		throw new IllegalStateException("Didn't find query named '" + name + "' in query results");
 	}
+	
+	/** Claims our result set from the index the first time, and hands out the same one after */
+	private synchronized JsonNode claim(String name) {
+		if (!this.hasClaimed) {
+			this.claimed = this.index.claimResult(name);
+			this.hasClaimed = true;
+		}
+		
+		return this.claimed;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.impl;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.googlecode.batchfb.Param;
+import com.googlecode.batchfb.RowHandler;
+import com.googlecode.batchfb.err.BrokenFacebookException;
+import com.googlecode.batchfb.err.IOFacebookException;
+import com.googlecode.batchfb.util.JSONUtils;
+import com.googlecode.batchfb.util.RequestBuilder.HttpMethod;
+import com.googlecode.batchfb.util.SharedMapper;
+
+/**
+ * <p>A single FQL query (fql.query rather than fql.multiquery) whose rows are bound one at
+ * a time straight from the response text and handed to a RowHandler.  Neither a tree of
+ * the result set nor a list of rows is ever built.  The value is the number of rows.</p>
+ * 
+ * <p>Facebook returns each part of a batch as a string, so the text of the response is held
+ * until the rows have been handled; that is the only copy.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class StreamingQueryRequest<T> extends BatchGraphRequest<Integer> {
+	
+	/** */
+	private JavaType rowType;
+	
+	/** Null once the rows have been handled */
+	private RowHandler<T> handler;
+	
+	/** */
+	private SharedMapper sharedMapper;
+	
+	/** */
+	public StreamingQueryRequest(Batch batch, int index, String fql, SharedMapper mapper, JavaType rowType, RowHandler<T> handler) {
+		super(batch, index, "method/fql.query", HttpMethod.GET, new Param[] { new Param("query", fql) }, mapper, mapper.constructType(Integer.class));
+		
+		this.rowType = rowType;
+		this.handler = handler;
+		this.sharedMapper = mapper;
+	}
+	
+	/** Streams the rows to the handler */
+	@Override
+	protected Integer convert(JsonNode part) {
+		this.checkPart(part);
+		
+		RowHandler<T> rows = this.handler;
+		this.handler = null;
+		
+		JsonNode bodyNode = part.get("body");
+		if (bodyNode == null || bodyNode.isNull())
+			return 0;
+		
+		String body = bodyNode.textValue();
+		
+		int code = part.path("code").intValue();
+		boolean success = code >= 200 && code < 300;
+		
+		// Errors come back as an object (sometimes with a 200), so only a plain array is streamed
+		if (!success || !body.startsWith("[") || body.indexOf("\"error_code\"") >= 0) {
+			JsonNode node = ErrorDetectingWrapper.DETECTOR.detect(JSONUtils.toNode(body, this.sharedMapper.getMapper()), success);
+			
+			// A "false" body comes back as null, like a null body
+			if (node == null)
+				return 0;
+			
+			if (!node.isArray())
+				throw new BrokenFacebookException("Expected an array of rows: " + body);
+			
+			int count = 0;
+			for (JsonNode row: node) {
+				rows.handle(this.sharedMapper.<T>convert(row, this.rowType));
+				count++;
+			}
+			
+			return count;
+		}
+		
+		try {
+			return this.stream(body, rows);
+		} catch (IOException ex) {
+			throw new IOFacebookException(ex);
+		}
+	}
+	
+	/** */
+	private int stream(String body, RowHandler<T> rows) throws IOException {
+		ObjectReader reader = this.sharedMapper.reader(this.rowType);
+		JsonParser parser = this.sharedMapper.getMapper().getFactory().createParser(body);
+		try {
+			if (parser.nextToken() != JsonToken.START_ARRAY)
+				throw new BrokenFacebookException("Expected an array of rows: " + body);
+			
+			int count = 0;
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				T row = reader.readValue(parser);
+				rows.handle(row);
+				count++;
+			}
+			
+			return count;
+		} finally {
+			parser.close();
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.type;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * <p>A growable list of primitive longs, for results which are nothing but ids.  An id costs
+ * 8 bytes here, rather than a boxed Long or a String in an object in a List.</p>
+ * 
+ * <p>It can be mapped from any of the forms below.  For graph requests and queryIds() it maps
+ * straight from the response text, without an intermediate tree; queries in a multiquery are
+ * mapped from their part of the multiquery's tree.</p>
+ * <ul>
+ * <li>an array of ids, as numbers or strings: {@code ["1234", "5678"]}</li>
+ * <li>an array of rows, taking the first field of each: {@code [{"uid2":"1234"}, ...]}</li>
+ * <li>a page of a connection, taking the data: {@code {"data":[{"id":"1234"}, ...], "paging":...}}</li>
+ * </ul>
+ * 
+ * <pre>
+ * {@code
+ * Later<LongList> friends = batcher.queryIds("SELECT uid2 FROM friend WHERE uid1 = me()");
+ * Later<LongList> members = batcher.graph("1234/members", LongList.class, new Param("fields", "id"), new Param("limit", 5000));
+ * 
+ * LongList mutual = friends.get().sort().intersect(members.get().sort());
+ * }
+ * </pre>
+ * 
+ * <p>Not thread-safe.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+@JsonDeserialize(using = LongList.Deserializer.class)
+public class LongList {
+	
+	/**
+	 * Maps any of the forms described above.
+	 */
+	public static class Deserializer extends JsonDeserializer<LongList> {
+		@Override
+		public LongList deserialize(JsonParser jp, DeserializationContext ctxt) throws IOException {
+			LongList list = new LongList();
+			
+			if (jp.getCurrentToken() == JsonToken.START_OBJECT) {
+				while (jp.nextToken() == JsonToken.FIELD_NAME) {
+					String field = jp.getCurrentName();
+					jp.nextToken();
+					
+					if ("data".equals(field) && jp.getCurrentToken() == JsonToken.START_ARRAY)
+						this.readArray(jp, list);
+					else
+						jp.skipChildren();
+				}
+			} else if (jp.getCurrentToken() == JsonToken.START_ARRAY) {
+				this.readArray(jp, list);
+			} else {
+				throw new JsonMappingException("Can't map " + jp.getCurrentToken() + " to a LongList", jp.getCurrentLocation());
+			}
+			
+			return list;
+		}
+		
+		/** The parser must be at the start of the array; leaves it at the end */
+		private void readArray(JsonParser jp, LongList list) throws IOException {
+			JsonToken token;
+			while ((token = jp.nextToken()) != JsonToken.END_ARRAY) {
+				if (token == JsonToken.START_OBJECT) {
+					// The first field is the id, the rest are skipped
+					boolean found = false;
+					while (jp.nextToken() == JsonToken.FIELD_NAME) {
+						jp.nextToken();
+						
+						if (!found) {
+							list.add(this.readId(jp));
+							found = true;
+						} else {
+							jp.skipChildren();
+						}
+					}
+				} else {
+					list.add(this.readId(jp));
+				}
+			}
+		}
+		
+		/** Reads a number, or a string of digits without making a String of it */
+		private long readId(JsonParser jp) throws IOException {
+			if (jp.getCurrentToken() == JsonToken.VALUE_NUMBER_INT)
+				return jp.getLongValue();
+			
+			if (jp.getCurrentToken() != JsonToken.VALUE_STRING)
+				throw new JsonMappingException("Expected an id, got " + jp.getCurrentToken(), jp.getCurrentLocation());
+			
+			char[] chars = jp.getTextCharacters();
+			int offset = jp.getTextOffset();
+			int length = jp.getTextLength();
+			
+			boolean negative = length > 0 && chars[offset] == '-';
+			int start = negative ? 1 : 0;
+			if (length == start || length - start > 18)
+				return Long.parseLong(jp.getText());	// empty or too long to parse safely by hand; let this complain
+			
+			long value = 0;
+			for (int i=start; i<length; i++) {
+				char ch = chars[offset + i];
+				if (ch < '0' || ch > '9')
+					throw new JsonMappingException("Expected an id, got \"" + jp.getText() + "\"", jp.getCurrentLocation());
+				
+				value = value * 10 + (ch - '0');
+			}
+			
+			return negative ? -value : value;
+		}
+	}
+	
+	/** */
+	private static final long[] EMPTY = new long[0];
+	
+	/** */
+	private long[] values;
+	private int size;
+	
+	/** True once sort() has been called and nothing has been added since */
+	private boolean sorted;
+	
+	/** */
+	public LongList() {
+		this.values = EMPTY;
+	}
+	
+	/** */
+	public LongList(int capacity) {
+		this.values = new long[capacity];
+	}
+	
+	/** A list of copies of the values */
+	public static LongList of(long... values) {
+		LongList list = new LongList(values.length);
+		System.arraycopy(values, 0, list.values, 0, values.length);
+		list.size = values.length;
+		return list;
+	}
+	
+	/** */
+	public void add(long value) {
+		if (this.size == this.values.length)
+			this.values = Arrays.copyOf(this.values, Math.max(16, this.size + (this.size >> 1)));
+		
+		this.values[this.size++] = value;
+		this.sorted = false;
+	}
+	
+	/** */
+	public void addAll(LongList other) {
+		if (this.size + other.size > this.values.length)
+			this.values = Arrays.copyOf(this.values, Math.max(this.size + other.size, this.size + (this.size >> 1)));
+		
+		System.arraycopy(other.values, 0, this.values, this.size, other.size);
+		this.size += other.size;
+		this.sorted = false;
+	}
+	
+	/** @throws IndexOutOfBoundsException */
+	public long get(int index) {
+		if (index < 0 || index >= this.size)
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + this.size);
+		
+		return this.values[index];
+	}
+	
+	/** */
+	public int size() {
+		return this.size;
+	}
+	
+	/** */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+	
+	/** @return a copy of the values */
+	public long[] toArray() {
+		return Arrays.copyOf(this.values, this.size);
+	}
+	
+	/**
+	 * Sorts the values, removes duplicates, and trims the storage to fit.  Sorted lists
+	 * can be searched and intersected quickly.
+	 * 
+	 * @return this, for chaining
+	 */
+	public LongList sort() {
+		if (this.sorted)
+			return this;
+		
+		Arrays.sort(this.values, 0, this.size);
+		
+		int unique = 0;
+		for (int i=0; i<this.size; i++)
+			if (unique == 0 || this.values[i] != this.values[unique - 1])
+				this.values[unique++] = this.values[i];
+		
+		this.size = unique;
+		this.values = Arrays.copyOf(this.values, unique);
+		this.sorted = true;
+		return this;
+	}
+	
+	/** @return true if the values are sorted and unique (see sort()) */
+	public boolean isSorted() {
+		return this.sorted;
+	}
+	
+	/** A binary search if sorted, otherwise a scan */
+	public boolean contains(long value) {
+		if (this.sorted)
+			return Arrays.binarySearch(this.values, 0, this.size, value) >= 0;
+		
+		for (int i=0; i<this.size; i++)
+			if (this.values[i] == value)
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * @return the values in both lists, sorted
+	 * @throws IllegalStateException if either list hasn't been sorted
+	 */
+	public LongList intersect(LongList other) {
+		if (!this.sorted || !other.sorted)
+			throw new IllegalStateException("Both lists must be sorted first");
+		
+		LongList result = new LongList(Math.min(this.size, other.size));
+		int i = 0, j = 0;
+		while (i < this.size && j < other.size) {
+			long a = this.values[i];
+			long b = other.values[j];
+			
+			if (a < b) {
+				i++;
+			} else if (a > b) {
+				j++;
+			} else {
+				result.values[result.size++] = a;
+				i++;
+				j++;
+			}
+		}
+		
+		result.sorted = true;
+		return result;
+	}
+	
+	/** Gives back storage which isn't being used */
+	public void trimToSize() {
+		if (this.values.length > this.size)
+			this.values = Arrays.copyOf(this.values, this.size);
+	}
+	
+	/** */
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof LongList))
+			return false;
+		
+		LongList other = (LongList)o;
+		if (this.size != other.size)
+			return false;
+		
+		for (int i=0; i<this.size; i++)
+			if (this.values[i] != other.values[i])
+				return false;
+		
+		return true;
+	}
+	
+	/** */
+	@Override
+	public int hashCode() {
+		int hash = 1;
+		for (int i=0; i<this.size; i++)
+			hash = 31 * hash + (int)(this.values[i] ^ (this.values[i] >>> 32));
+		
+		return hash;
+	}
+	
+	/** */
+	@Override
+	public String toString() {
+		return Arrays.toString(this.toArray());
+	}
+}
@@ -53,16 +53,20 @@ public class AppengineRequestExecutor extends RequestExecutor {
 	private static final Logger log = Logger.getLogger(AppengineRequestExecutor.class.getName());
 	
 	/** */
-	private class Request implements RequestDefinition {
+	private class Request implements StreamingRequestDefinition {
 		/** */
 		private HTTPRequest gaeRequest;
 		
-		/** If oen of these exists at time of execution, use it as payload */
-		private ByteArrayOutputStream payload;
+		/** If one of these exists at time of execution, use it as payload */
+		private Payload payload;
+		
+		/** -1 if not known */
+		private long contentLength = -1;
 		
 		@Override
 		public void init(HttpMethod meth, String url) throws IOException {
 			this.gaeRequest = new HTTPRequest(new URL(url), HTTPMethod.valueOf(meth.name()));
+			this.gaeRequest.setHeader(new HTTPHeader("Accept-Encoding", ACCEPT_ENCODING));
 		}
 
 		@Override
@@ -70,9 +74,19 @@ public class AppengineRequestExecutor extends RequestExecutor {
 			this.gaeRequest.setHeader(new HTTPHeader(name, value));
 		}
 
+		@Override
+		public void setContentLength(long length) {
+			this.contentLength = length;
+		}
+
 		@Override
 		public OutputStream getContentOutputStream() throws IOException {
-			this.payload = new ByteArrayOutputStream(16384);	// start it out big
+			// URLFetch needs the whole body in memory, but at least we can avoid growing and copying it
+			if (this.contentLength >= 0 && this.contentLength <= Integer.MAX_VALUE)
+				this.payload = new Payload((int)this.contentLength);
+			else
+				this.payload = new Payload(16384);	// start it out big
+			
 			return this.payload;
 		}
 
@@ -88,12 +102,25 @@ public class AppengineRequestExecutor extends RequestExecutor {
 
 		public HTTPRequest getRequest() throws IOException {
 			if (this.payload != null)
-				this.setContent(this.payload.toByteArray());
+				this.setContent(this.payload.toPayload());
 
 			return this.gaeRequest;
 		}
 	}
 	
+	/**
+	 * Hands over its buffer without copying if it was sized exactly.
+	 */
+	private static class Payload extends ByteArrayOutputStream {
+		Payload(int size) {
+			super(size);
+		}
+		
+		byte[] toPayload() {
+			return (this.count == this.buf.length) ? this.buf : this.toByteArray();
+		}
+	}
+	
 	/**
 	 * The appengine version of an HttpResponse, which hides the asynchrony and the retry mechanism.
 	 */
@@ -124,7 +151,14 @@ public class AppengineRequestExecutor extends RequestExecutor {
 		@Override
 		public InputStream getContentStream() throws IOException
 		{
-			return new ByteArrayInputStream(this.getResponse().getContent());
+			HTTPResponse response = this.getResponse();
+			
+			String encoding = null;
+			for (HTTPHeader header: response.getHeadersUncombined())
+				if (header.getName().equalsIgnoreCase("Content-Encoding"))
+					encoding = header.getValue();
+			
+			return decode(new ByteArrayInputStream(response.getContent()), encoding);
 		}
 		
 		/** */
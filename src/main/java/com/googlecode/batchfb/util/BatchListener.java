@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.util;
+
+/**
+ * <p>Told what each batch cost, so you can see whether time goes to Facebook, the network,
+ * or mapping.  Register one with FacebookBatcher.setListener(); HistogramListener is a
+ * ready-made implementation.</p>
+ * 
+ * <p>The lifecycle of a batch, as seen by a listener: batchCreated() when its first request
+ * is added, requestEnqueued() for each request, batchSending() just before the http call,
+ * batchCompleted() once the response has been parsed (or the call failed), and then
+ * partCompleted() as each graph request is resolved.  Every callback carries the batch id.
+ * Separately, laterGet() reports every get() of a graph request or query, on the thread
+ * which called it.</p>
+ * 
+ * <p>Listeners are called on whatever thread is doing the work, so they must be thread-safe
+ * and fast.  The stats objects are not reused; keep them if you like.  Extend Adapter to
+ * implement only the callbacks you care about.  When no listener is registered, none of
+ * this is measured.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public interface BatchListener {
+	
+	/**
+	 * One http call to the batch endpoint.  Values which couldn't be measured (say, because
+	 * the call failed before a response arrived) are left at -1.
+	 */
+	public static class BatchStats {
+		/** See Batch.getId() */
+		public long batchId;
+		
+		/** Number of requests in the batch, counting any multiquery as one */
+		public int requests;
+		
+		/** Base url the batch was sent to */
+		public String endpoint;
+		
+		/** Size of the request body as sent, after any compression; -1 for multipart uploads */
+		public long requestBytes = -1;
+		
+		/** Size of the response body, after decompression */
+		public long responseBytes = -1;
+		
+		/** Time spent turning the requests into the batch parameter */
+		public long encodeNanos = -1;
+		
+		/** Time from sending the request until the response status arrived */
+		public long networkNanos = -1;
+		
+		/** Time spent reading and parsing the response body */
+		public long parseNanos = -1;
+		
+		/** Http status of the batch call; -1 if there was no response */
+		public int httpStatus = -1;
+		
+		/** Http status of each part of the response; null if the response couldn't be parsed */
+		public int[] partCodes;
+		
+		/** Number of http requests made, including retries and hedges */
+		public int attempts;
+		
+		/** Simple class name of the exception if the call failed, otherwise null */
+		public String errorType;
+		
+		/** Not touched by BatchFB; listeners can carry their own state from batchSending() to batchCompleted() */
+		public Object attachment;
+	}
+	
+	/**
+	 * One graph request's part of a batch, reported when the part is first resolved.
+	 */
+	public static class PartStats {
+		/** See Batch.getId() */
+		public long batchId;
+		
+		/** Position in the batch */
+		public int index;
+		
+		/** The graph object or connection, without parameters; eg "me/friends" */
+		public String object;
+		
+		/** Http status Facebook gave this part; -1 if there was no part */
+		public int code = -1;
+		
+		/** Time the resolving thread spent blocked, waiting for the batch to come back (or to be parsed) */
+		public long waitNanos;
+		
+		/** Time spent detecting errors and mapping the body to the result type */
+		public long mapNanos;
+		
+		/** Simple class name of the exception if the part failed, otherwise null */
+		public String errorType;
+	}
+	
+	/**
+	 * One call to get() of a graph request or query, whether it resolved the request, waited for
+	 * another thread to, or found it already resolved.
+	 */
+	public static class GetStats {
+		/** See Batch.getId(); -1 if the request had no batch (eg, it was answered from a QueryCache) */
+		public long batchId = -1;
+		
+		/** Position in the batch, or that of the multiquery for a query; -1 if there was no batch */
+		public int index = -1;
+		
+		/** The graph object or connection without parameters, or the FQL of a query */
+		public String object;
+		
+		/** Time the calling thread spent in get(), including any wait for the batch or another thread */
+		public long nanos;
+		
+		/** Simple class name of the exception get() threw, otherwise null */
+		public String errorType;
+	}
+	
+	/**
+	 * Does nothing; extend this to implement only some callbacks.
+	 */
+	public static class Adapter implements BatchListener {
+		@Override
+		public void batchCreated(long batchId) {}
+		@Override
+		public void requestEnqueued(long batchId, int index, String object) {}
+		@Override
+		public void batchSending(BatchStats stats) {}
+		@Override
+		public void batchCompleted(BatchStats stats) {}
+		@Override
+		public void partCompleted(PartStats stats) {}
+		@Override
+		public void laterGet(GetStats stats) {}
+	}
+	
+	/** Called when the first request is added to a new batch */
+	void batchCreated(long batchId);
+	
+	/**
+	 * Called as each request is added to a batch.
+	 * @param object is the graph object or connection, without parameters
+	 */
+	void requestEnqueued(long batchId, int index, String object);
+	
+	/** Called just before the http call; the stats have the batch id, size, endpoint and encode time */
+	void batchSending(BatchStats stats);
+	
+	/** Called once per http call to the batch endpoint, whether it succeeded or not */
+	void batchCompleted(BatchStats stats);
+	
+	/** Called once per graph request, when its result is first resolved */
+	void partCompleted(PartStats stats);
+	
+	/** Called on the calling thread as each get() of a graph request or query returns or throws */
+	void laterGet(GetStats stats);
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.googlecode.batchfb.err.BulkheadFullException;
+
+/**
+ * <p>A compartment which bounds how much work a group of batchers can have outstanding:
+ * how many batches may be in flight at once, and how many requests (graph requests and
+ * FQL queries, each query counting once even when they share a multiquery) may be queued
+ * in batchers waiting to be sent.  Give each workload (say, interactive traffic and bulk
+ * jobs) its own bulkhead, and a spike in one can't use up the sockets, threads and memory
+ * of the other.  It is thread-safe.</p>
+ * 
+ * <p>When there isn't room, the caller waits (the default), waits up to setMaxWait(), or
+ * with setMaxWait(0) is rejected at once; either of the last two throws
+ * BulkheadFullException.  A batcher whose request doesn't fit in the queue first sends the
+ * requests it already has, since no one else can make room for them.</p>
+ * 
+ * <p>A batch is in flight from when its http request is sent until its response body has
+ * been read (or the call fails), since that is how long it holds a connection.  The body
+ * is read by the first get() on any of the batch's requests, so don't execute batches
+ * whose results you never ask for.  Queued requests hold their places until their batch
+ * is sent, so don't abandon a batcher with requests in it.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class Bulkhead {
+	
+	/** */
+	private String name;
+	
+	/** */
+	private int maxBatches;
+	private int maxQueued;
+	
+	/** Null means unlimited */
+	private Semaphore batches;
+	private Semaphore queued;
+	
+	/** */
+	private volatile long maxWait = Long.MAX_VALUE;
+	
+	/** */
+	private AtomicLong rejected = new AtomicLong();
+	
+	/**
+	 * @param name identifies the compartment in exceptions and logs
+	 * @param maxBatches is how many batches may be in flight at once; 0 for no limit
+	 * @param maxQueued is how many requests may wait in batchers; 0 for no limit
+	 */
+	public Bulkhead(String name, int maxBatches, int maxQueued) {
+		this.name = name;
+		this.maxBatches = maxBatches;
+		this.maxQueued = maxQueued;
+		this.batches = maxBatches > 0 ? new Semaphore(maxBatches, true) : null;
+		this.queued = maxQueued > 0 ? new Semaphore(maxQueued, true) : null;
+	}
+	
+	/**
+	 * How long to wait for room before BulkheadFullException is thrown.
+	 * 
+	 * @param millis can be 0 to reject immediately; the default is to wait as long as it takes.
+	 */
+	public void setMaxWait(long millis) {
+		this.maxWait = millis;
+	}
+	
+	/** */
+	public String getName() {
+		return this.name;
+	}
+	
+	/**
+	 * Takes places in the queue without waiting.
+	 * @return false if there wasn't room
+	 */
+	public boolean tryEnqueue(int requests) {
+		return this.queued == null || this.queued.tryAcquire(requests);
+	}
+	
+	/**
+	 * Takes places in the queue, waiting according to the max wait.
+	 * @throws BulkheadFullException if there isn't room in time
+	 */
+	public void enqueue(int requests) throws BulkheadFullException {
+		if (this.queued != null)
+			this.acquire(this.queued, requests, requests + " queued requests", this.maxWait);
+	}
+	
+	/** Gives up places in the queue, as the requests are sent */
+	public void dequeue(int requests) {
+		if (this.queued != null && requests > 0)
+			this.queued.release(requests);
+	}
+	
+	/**
+	 * Takes a place for a batch about to be sent, waiting according to the max wait.
+	 * @throws BulkheadFullException if there isn't room in time
+	 */
+	public void startBatch() throws BulkheadFullException {
+		this.startBatch(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Like startBatch(), but waits no longer than maxWait either, for a caller with a deadline.
+	 * @throws BulkheadFullException if there isn't room in time
+	 */
+	public void startBatch(long maxWait) throws BulkheadFullException {
+		if (this.batches != null)
+			this.acquire(this.batches, 1, "a batch", Math.min(maxWait, this.maxWait));
+	}
+	
+	/** Gives up the place of a batch which is no longer in flight */
+	public void finishBatch() {
+		if (this.batches != null)
+			this.batches.release();
+	}
+	
+	/** */
+	private void acquire(Semaphore semaphore, int permits, String what, long maxWait) {
+		boolean acquired;
+		try {
+			if (maxWait == Long.MAX_VALUE) {
+				semaphore.acquire(permits);
+				acquired = true;
+			} else {
+				acquired = semaphore.tryAcquire(permits, Math.max(maxWait, 0), TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			acquired = false;
+		}
+		
+		if (!acquired) {
+			this.rejected.incrementAndGet();
+			throw new BulkheadFullException("No room for " + what + " in bulkhead " + this.name);
+		}
+	}
+	
+	/** Number of batches currently in flight */
+	public int getInFlight() {
+		return this.batches == null ? 0 : this.maxBatches - this.batches.availablePermits();
+	}
+	
+	/** Number of requests currently queued */
+	public int getQueued() {
+		return this.queued == null ? 0 : this.maxQueued - this.queued.availablePermits();
+	}
+	
+	/** Number of requests and batches refused with BulkheadFullException */
+	public long getRejectedCount() {
+		return this.rejected.get();
+	}
+	
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName() + "{" + this.name + ", inFlight=" + this.getInFlight() + ", queued=" + this.getQueued() + "}";
+	}
+}
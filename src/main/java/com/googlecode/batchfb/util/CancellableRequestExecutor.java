@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.googlecode.batchfb.util.RequestBuilder.HttpResponse;
+
+
+/**
+ * <p>A RequestExecutor which can start requests in the background and abandon them partway.
+ * This is what makes hedging possible; plain RequestExecutors ignore the HedgePolicy.</p>
+ * 
+ * <p>The race between a request and its hedge ends when one of them gets a response status.
+ * The loser is cancelled then, before any of its body is read, and the latency recorded
+ * with the HedgePolicy is the time to the winner's status, not to the end of its body.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+abstract public class CancellableRequestExecutor extends RequestExecutor {
+	/** */
+	private static final Logger log = Logger.getLogger(CancellableRequestExecutor.class.getName());
+	
+	/**
+	 * Starts executing the specified request (up to the number of retries allowed) without waiting
+	 * for it.  The future completes when the response status arrives.  Cancelling the future must
+	 * abort the request and release its connection.
+	 * 
+	 * @param done will be offered the future when it completes, successfully or not
+	 */
+	abstract public Future<HttpResponse> submit(int retries, RequestSetup setup, BlockingQueue<Future<HttpResponse>> done);
+	
+	/**
+	 * Executes the specified request, hedging it according to the policy: if it has no response
+	 * status in time, a duplicate is sent and whichever gets a status first wins.  The loser is
+	 * disconnected without reading its body.  Only use this for requests which are safe to repeat.
+	 * 
+	 * @param hedging can be null, in which case this is the same as execute(retries, setup).
+	 */
+	@Override
+	public HttpResponse execute(int retries, RequestSetup setup, HedgePolicy hedging) throws IOException {
+		if (hedging == null)
+			return this.execute(retries, setup);
+		
+		long start = System.currentTimeMillis();
+		long delay = hedging.start();
+		
+		if (delay < 0) {
+			HttpResponse response = this.execute(retries, setup);
+			hedging.record(System.currentTimeMillis() - start);
+			return response;
+		}
+		
+		BlockingQueue<Future<HttpResponse>> done = new LinkedBlockingQueue<Future<HttpResponse>>();
+		Future<HttpResponse> primary = this.submit(retries, setup, done);
+		Future<HttpResponse> hedge = null;
+		Future<HttpResponse> winner = null;
+		
+		try {
+			Future<HttpResponse> first = done.poll(delay, TimeUnit.MILLISECONDS);
+			if (first == null) {
+				if (hedging.tryHedge()) {
+					log.fine("Request still running after " + delay + "ms, hedging");
+					hedge = this.submit(retries, setup, done);
+				}
+				
+				first = done.take();
+			}
+			
+			HttpResponse response;
+			try {
+				response = this.result(first);
+				winner = first;
+			} catch (IOException ex) {
+				// If there is another one in flight, it is our only hope
+				Future<HttpResponse> other = (first == primary) ? hedge : primary;
+				if (other == null)
+					throw ex;
+				
+				response = this.result(other);
+				winner = other;
+			}
+			
+			// Time to the status; the body hasn't been read yet, see the class doc
+			hedging.record(System.currentTimeMillis() - start);
+			return response;
+			
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for response");
+		} finally {
+			// Make sure the loser doesn't hold on to a connection
+			if (winner != primary)
+				primary.cancel(true);
+			if (hedge != null && winner != hedge)
+				hedge.cancel(true);
+		}
+	}
+	
+	/** Gets the result of a completed future, unwrapping the exception */
+	private HttpResponse result(Future<HttpResponse> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for response");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException)ex.getCause();
+			else if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException)ex.getCause();
+			else
+				throw new IOException(ex.getCause());
+		}
+	}
+}
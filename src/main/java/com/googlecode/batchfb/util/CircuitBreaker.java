@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.googlecode.batchfb.err.CircuitOpenException;
+import com.googlecode.batchfb.util.RequestBuilder.HttpResponse;
+
+/**
+ * <p>Wraps another RequestExecutor and stops sending requests to facebook when too many
+ * recent ones have failed or been slow.  While the circuit is open, requests fail at once
+ * with CircuitOpenException instead of tying up a thread for the whole timeout and retry
+ * budget.  After a while a single probe request is let through (the circuit is half-open);
+ * if it succeeds the circuit closes, otherwise it stays open for another period.</p>
+ * 
+ * <p>Outcomes are kept in a sliding window of the most recent requests (default 50).  A
+ * request fails if the executor throws IOException (after its own retries) or facebook
+ * answers with a 5xx status; it is slow if the status took longer than setSlowCall() allows.
+ * Some errors, say UnknownHostException, mean an outage all by themselves; see
+ * setTripImmediately().</p>
+ * 
+ * <p>Share one breaker among all the batchers which talk to facebook:</p>
+ * 
+ * <pre>
+ * CircuitBreaker breaker = new CircuitBreaker(new DefaultRequestExecutor());
+ * batcher.setExecutor(breaker);
+ * </pre>
+ * 
+ * <p>The state and the window are available from the getters; rejected batches are also
+ * reported to any BatchListener with an errorType of CircuitOpenException.  It is thread-safe.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class CircuitBreaker extends RequestExecutor {
+	/** */
+	private static final Logger log = Logger.getLogger(CircuitBreaker.class.getName());
+	
+	/** */
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+	
+	/** Outcomes in the window */
+	private static final byte OK = 0;
+	private static final byte FAILED = 1;
+	private static final byte SLOW = 2;
+	
+	/** Null means RequestExecutor.instance(), looked up on every request */
+	private RequestExecutor delegate;
+	
+	/** */
+	private double failureRate = 0.5;
+	private long slowMillis;
+	private double slowRate = 0.5;
+	private int minCalls = 10;
+	private long openMillis = 30000;
+	private Set<Class<?>> immediate = new HashSet<Class<?>>();
+	
+	/** Ring buffer of recent outcomes */
+	private byte[] window = new byte[50];
+	private int windowCount;
+	private int nextOutcome;
+	private int failed;
+	private int slow;
+	
+	/** */
+	private State state = State.CLOSED;
+	private long openedAt;
+	private boolean probing;
+	private String lastError;
+	private String reason;
+	
+	/** */
+	private long rejected;
+	private long opened;
+	private Map<String, Long> errors = new HashMap<String, Long>();
+	
+	/**
+	 * @param delegate actually executes requests; can be null to use RequestExecutor.instance()
+	 */
+	public CircuitBreaker(RequestExecutor delegate) {
+		this.delegate = delegate;
+	}
+	
+	/**
+	 * Opens the circuit when at least this fraction of the window failed.  Default is 0.5.
+	 */
+	public synchronized void setFailureRate(double value) {
+		this.failureRate = value;
+	}
+	
+	/**
+	 * Opens the circuit when at least a fraction of the window took longer than millis to
+	 * get a response status.  Default is not to care how long requests take.
+	 */
+	public synchronized void setSlowCall(long millis, double rate) {
+		this.slowMillis = millis;
+		this.slowRate = rate;
+	}
+	
+	/**
+	 * How many recent requests to judge by.  Default is 50.  Resets the window.
+	 */
+	public synchronized void setWindow(int size) {
+		this.window = new byte[size];
+		this.reset();
+	}
+	
+	/**
+	 * Don't open the circuit on rates until the window holds this many requests.  Default is 10.
+	 */
+	public synchronized void setMinCalls(int value) {
+		this.minCalls = value;
+	}
+	
+	/**
+	 * How long the circuit stays open before a probe is let through.  Default is 30 seconds.
+	 */
+	public synchronized void setOpenMillis(long value) {
+		this.openMillis = value;
+	}
+	
+	/**
+	 * Opens the circuit on the first failure with one of these exceptions (or a subclass),
+	 * without waiting for the window to fill; eg UnknownHostException.
+	 */
+	public synchronized void setTripImmediately(Collection<Class<? extends IOException>> types) {
+		this.immediate = new HashSet<Class<?>>(types);
+	}
+	
+	/** */
+	private RequestExecutor delegate() {
+		return this.delegate != null ? this.delegate : RequestExecutor.instance();
+	}
+	
+	/** */
+	@Override
+	public HttpResponse execute(int retries, RequestSetup setup) throws IOException {
+		return this.execute(retries, setup, null);
+	}
+	
+	/**
+	 * Hedged requests count as one request; the window records the hedge's outcome.
+	 */
+	@Override
+	public HttpResponse execute(int retries, RequestSetup setup, HedgePolicy hedging) throws IOException {
+		boolean probe = this.admit();
+		long start = System.currentTimeMillis();
+		
+		HttpResponse response;
+		try {
+			response = this.delegate().execute(retries, setup, hedging);
+		} catch (IOException ex) {
+			this.record(failureOf(ex), ex, 0, probe);
+			throw ex;
+		} catch (RuntimeException ex) {
+			this.record(ex.getClass().getSimpleName(), null, 0, probe);
+			throw ex;
+		}
+		
+		return new Recording(response, start, probe);
+	}
+	
+	/** Closes the delegate, if it was given one */
+	@Override
+	public void close() throws IOException {
+		if (this.delegate != null)
+			this.delegate.close();
+	}
+	
+	/**
+	 * Decides whether a request may go through.
+	 * @return true if the request is the half-open probe
+	 * @throws CircuitOpenException if it may not
+	 */
+	private synchronized boolean admit() {
+		if (this.state == State.CLOSED)
+			return false;
+		
+		long remaining = this.openedAt + this.openMillis - System.currentTimeMillis();
+		
+		// A probe which never reported back gets replaced after another period
+		if (remaining <= 0 && (!this.probing || remaining <= -this.openMillis)) {
+			this.state = State.HALF_OPEN;
+			this.probing = true;
+			this.openedAt = System.currentTimeMillis() - this.openMillis;
+			log.info("Circuit half-open, sending a probe");
+			return true;
+		}
+		
+		this.rejected++;
+		throw new CircuitOpenException("Circuit open because " + this.reason + "; not calling facebook", Math.max(0, remaining));
+	}
+	
+	/**
+	 * Records the outcome of a request.
+	 * @param error describes the failure, or null if the request succeeded
+	 * @param ex caused the failure, if it was an exception
+	 * @param millis is how long the response took; 0 if it failed
+	 */
+	private synchronized void record(String error, IOException ex, long millis, boolean probe) {
+		byte outcome = error != null ? FAILED : (this.slowMillis > 0 && millis > this.slowMillis) ? SLOW : OK;
+		
+		if (error != null) {
+			Long count = this.errors.get(error);
+			this.errors.put(error, count == null ? 1 : count + 1);
+			this.lastError = error;
+		}
+		
+		if (probe) {
+			this.probing = false;
+			if (outcome == OK) {
+				log.info("Probe succeeded, closing circuit");
+				this.state = State.CLOSED;
+				this.reset();
+			} else {
+				this.open("probe " + (error != null ? "failed with " + error : "was slow"));
+			}
+			return;
+		}
+		
+		// Stragglers from before the circuit opened don't count
+		if (this.state != State.CLOSED)
+			return;
+		
+		if (this.windowCount == this.window.length)
+			this.forget(this.window[this.nextOutcome]);
+		else
+			this.windowCount++;
+		
+		this.window[this.nextOutcome] = outcome;
+		this.nextOutcome = (this.nextOutcome + 1) % this.window.length;
+		if (outcome == FAILED)
+			this.failed++;
+		else if (outcome == SLOW)
+			this.slow++;
+		
+		if (ex != null && this.isImmediate(ex))
+			this.open("request failed with " + error);
+		else if (this.windowCount >= this.minCalls) {
+			if (this.failed >= this.failureRate * this.windowCount)
+				this.open(this.failed + " of " + this.windowCount + " requests failed, last with " + this.lastError);
+			else if (this.slowMillis > 0 && this.slow >= this.slowRate * this.windowCount)
+				this.open(this.slow + " of " + this.windowCount + " requests took longer than " + this.slowMillis + "ms");
+		}
+	}
+	
+	/** */
+	private void forget(byte outcome) {
+		if (outcome == FAILED)
+			this.failed--;
+		else if (outcome == SLOW)
+			this.slow--;
+	}
+	
+	/** */
+	private boolean isImmediate(IOException ex) {
+		for (Class<?> type: this.immediate)
+			if (type.isInstance(ex))
+				return true;
+		
+		return false;
+	}
+	
+	/** */
+	private void open(String why) {
+		log.warning("Opening circuit for " + this.openMillis + "ms: " + why);
+		this.state = State.OPEN;
+		this.openedAt = System.currentTimeMillis();
+		this.reason = why;
+		this.opened++;
+		this.reset();
+	}
+	
+	/** Empties the window */
+	private void reset() {
+		this.windowCount = 0;
+		this.nextOutcome = 0;
+		this.failed = 0;
+		this.slow = 0;
+	}
+	
+	/** */
+	private static String failureOf(IOException ex) {
+		return ex.getClass().getSimpleName();
+	}
+	
+	/**
+	 * Records the outcome when the status arrives, which for asynchronous executors may be
+	 * long after execute() returned.
+	 */
+	private class Recording implements HttpResponse {
+		final HttpResponse response;
+		final long start;
+		final boolean probe;
+		final AtomicBoolean recorded = new AtomicBoolean();
+		
+		Recording(HttpResponse response, long start, boolean probe) {
+			this.response = response;
+			this.start = start;
+			this.probe = probe;
+		}
+		
+		@Override
+		public int getResponseCode() throws IOException {
+			int code;
+			try {
+				code = this.response.getResponseCode();
+			} catch (IOException ex) {
+				if (this.recorded.compareAndSet(false, true))
+					record(failureOf(ex), ex, 0, this.probe);
+				throw ex;
+			}
+			
+			if (this.recorded.compareAndSet(false, true))
+				record(code >= 500 ? "HTTP " + code : null, null, System.currentTimeMillis() - this.start, this.probe);
+			
+			return code;
+		}
+		
+		@Override
+		public InputStream getContentStream() throws IOException {
+			this.getResponseCode();
+			return this.response.getContentStream();
+		}
+	}
+	
+	/** */
+	public synchronized State getState() {
+		return this.state;
+	}
+	
+	/** Fraction of the current window which failed */
+	public synchronized double getCurrentFailureRate() {
+		return this.windowCount == 0 ? 0 : (double)this.failed / this.windowCount;
+	}
+	
+	/** Fraction of the current window which was slow */
+	public synchronized double getCurrentSlowRate() {
+		return this.windowCount == 0 ? 0 : (double)this.slow / this.windowCount;
+	}
+	
+	/** Number of requests refused while open */
+	public synchronized long getRejectedCount() {
+		return this.rejected;
+	}
+	
+	/** Number of times the circuit has opened */
+	public synchronized long getOpenedCount() {
+		return this.opened;
+	}
+	
+	/** Failures since the breaker was created, by exception class name or "HTTP 5xx" */
+	public synchronized Map<String, Long> getErrors() {
+		return new HashMap<String, Long>(this.errors);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.util;
+
+import java.util.concurrent.TimeUnit;
+
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.TimedLater;
+import com.googlecode.batchfb.err.FacebookException;
+
+/**
+ * <p>A point in time by which something must be done.  Deadlines can be set on a batcher
+ * (for everything it sends) or on individual requests.  When a batch is sent, each http
+ * attempt gets a timeout no longer than the time remaining, attempts stop when it is gone,
+ * and requests whose deadline has already passed are dropped from the batch.</p>
+ * 
+ * <p>TimedLater.get(timeout, unit) is different:  it bounds how long one caller waits.
+ * A batch which that caller has to send gets the time left as its deadline; a batch which
+ * someone else is already waiting for is left to them.</p>
+ * 
+ * <p>Deadlines are measured with System.nanoTime(), so they are immune to clock changes
+ * but only mean something within one JVM.  They are immutable.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public final class Deadline {
+	
+	/**
+	 * @return a deadline the specified time from now
+	 */
+	public static Deadline after(long duration, TimeUnit unit) {
+		return new Deadline(System.nanoTime() + unit.toNanos(duration));
+	}
+	
+	/**
+	 * @return the earlier of the two; either can be null, meaning no deadline
+	 */
+	public static Deadline earliest(Deadline one, Deadline two) {
+		if (one == null)
+			return two;
+		else if (two == null)
+			return one;
+		else
+			return (one.nanos - two.nanos <= 0) ? one : two;
+	}
+	
+	/**
+	 * @return the later of the two; either can be null, which is ignored
+	 */
+	public static Deadline latest(Deadline one, Deadline two) {
+		if (one == null)
+			return two;
+		else if (two == null)
+			return one;
+		else
+			return (one.nanos - two.nanos >= 0) ? one : two;
+	}
+	
+	/**
+	 * Gets the value of a Later which wraps another, passing the timeout along.  The waiting
+	 * is done by whatever is at the bottom of the chain, on the calling thread.  A Later
+	 * which isn't a TimedLater can't be told about the timeout, so it gets as long as it needs.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T get(Later<T> later, long timeout, TimeUnit unit) throws FacebookException {
+		if (later instanceof TimedLater)
+			return ((TimedLater<T>)later).get(timeout, unit);
+		else
+			return later.get();
+	}
+	
+	/** Per System.nanoTime() */
+	private final long nanos;
+	
+	/** */
+	private Deadline(long nanos) {
+		this.nanos = nanos;
+	}
+	
+	/**
+	 * @return the millis left before the deadline, rounded up; zero or negative once it has passed.
+	 */
+	public long remainingMillis() {
+		long remaining = this.nanos - System.nanoTime();
+		return remaining <= 0 ? remaining / 1000000 : (remaining + 999999) / 1000000;
+	}
+	
+	/** */
+	public boolean isExpired() {
+		return this.nanos - System.nanoTime() <= 0;
+	}
+	
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName() + "{" + this.remainingMillis() + "ms}";
+	}
+}
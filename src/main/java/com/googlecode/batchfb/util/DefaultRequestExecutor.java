@@ -22,35 +22,256 @@
 
 package com.googlecode.batchfb.util;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
 import com.googlecode.batchfb.util.RequestBuilder.HttpMethod;
 import com.googlecode.batchfb.util.RequestBuilder.HttpResponse;
 
 /**
- * <p>Uses the default HttpURLConnection in the JDK.  Does not support parallel fetching.</p>
+ * <p>Uses the default HttpURLConnection in the JDK.  Does not support parallel fetching,
+ * but can run requests in the background for hedging; cancelling one disconnects it.</p>
+ * 
+ * <p>Each instance has its own limit on concurrent connections, its own keep-alive and
+ * timeout settings, and its own background threads.  Closing it aborts requests in progress
+ * and fails any new ones.  Note that the JDK keeps idle keep-alive connections in a pool
+ * shared by the whole JVM (sized by the http.maxConnections system property); if you need
+ * traffic to be completely separate, turn off keep-alive.</p>
+ * 
+ * <p>Response bodies are always drained and closed so that connections can go back to
+ * the keep-alive cache instead of paying for a new TLS handshake on the next request.
+ * The executor counts requests and new TLS connections so you can see how well
+ * connections are being reused.</p>
  * 
  * @author Jeff Schnitzer
  */
-public class DefaultRequestExecutor extends RequestExecutor {
+public class DefaultRequestExecutor extends CancellableRequestExecutor {
 	/** */
 	private static final Logger log = Logger.getLogger(DefaultRequestExecutor.class.getName());
 	
+	/** Runs submitted requests; created on first use */
+	private ExecutorService background;
+	
+	/** Limits the number of requests in progress; null for no limit */
+	private Semaphore connections;
+	
+	/** */
+	private boolean keepAlive = true;
+	
+	/** Used for requests which don't specify their own; 0 for none */
+	private int defaultTimeout;
+	
+	/** Requests in progress, including bodies still being read, so close() can abort them */
+	private Set<HttpURLConnection> open = Collections.newSetFromMap(new ConcurrentHashMap<HttpURLConnection, Boolean>());
+	
+	/** */
+	private volatile boolean closed;
+	
+	/** Response bodies which have less than this left unread when closed are drained */
+	private static final int MAX_DRAIN = 64 * 1024;
+	
+	/** Statistics */
+	private AtomicLong requests = new AtomicLong();
+	private AtomicLong drained = new AtomicLong();
+	private AtomicLong discarded = new AtomicLong();
+	private AtomicLong tlsConnections = new AtomicLong();
+	
+	/**
+	 * Counts new TLS connections.  Because the JDK keeps idle connections per socket factory,
+	 * this also keeps our connections separate from other executors'.
+	 */
+	private class CountingSSLSocketFactory extends SSLSocketFactory {
+		SSLSocketFactory base = HttpsURLConnection.getDefaultSSLSocketFactory();
+		
+		/** */
+		private Socket count(Socket socket) {
+			tlsConnections.incrementAndGet();
+			return socket;
+		}
+		
+		@Override
+		public String[] getDefaultCipherSuites() { return this.base.getDefaultCipherSuites(); }
+		@Override
+		public String[] getSupportedCipherSuites() { return this.base.getSupportedCipherSuites(); }
+		@Override
+		public Socket createSocket() throws IOException { return this.count(this.base.createSocket()); }
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException { return this.count(this.base.createSocket(s, host, port, autoClose)); }
+		@Override
+		public Socket createSocket(String host, int port) throws IOException { return this.count(this.base.createSocket(host, port)); }
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException { return this.count(this.base.createSocket(host, port, localHost, localPort)); }
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException { return this.count(this.base.createSocket(host, port)); }
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException { return this.count(this.base.createSocket(address, port, localAddress, localPort)); }
+	}
+	
+	/** Created on first https request */
+	private SSLSocketFactory socketFactory;
+	
+	/**
+	 * Reads whatever the caller didn't before closing, so the connection can be reused.
+	 * The request stops being in progress at the end of the body or when it is closed.
+	 * Closing more than once is harmless.
+	 */
+	private class DrainingInputStream extends FilterInputStream {
+		boolean closed;
+		DefaultRequestDefinition req;
+		
+		DrainingInputStream(InputStream in, DefaultRequestDefinition req) {
+			super(in);
+			this.req = req;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0)
+				this.req.release();
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read < 0)
+				this.req.release();
+			return read;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (this.closed)
+				return;
+			
+			this.closed = true;
+			try {
+				byte[] buf = new byte[8192];
+				int total = 0;
+				int read;
+				while (total < MAX_DRAIN && (read = this.in.read(buf)) >= 0)
+					total += read;
+				
+				if (total < MAX_DRAIN)
+					drained.incrementAndGet();
+				else
+					discarded.incrementAndGet();
+			} catch (IOException ex) {
+				discarded.incrementAndGet();
+			} finally {
+				try {
+					this.in.close();
+				} finally {
+					this.req.release();
+				}
+			}
+		}
+	}
+	
+	/** No limit on connections */
+	public DefaultRequestExecutor() {
+	}
+	
+	/**
+	 * @param maxConnections is the most requests this executor will have in progress at once;
+	 * others wait their turn.  A request is in progress until its response body has been
+	 * read to the end or closed, so always close the body.
+	 */
+	public DefaultRequestExecutor(int maxConnections) {
+		this.connections = new Semaphore(maxConnections, true);
+	}
+	
+	/**
+	 * If false, connections are closed after each request rather than returned to the JDK's
+	 * shared pool.  Default is true.
+	 */
+	public void setKeepAlive(boolean value) {
+		this.keepAlive = value;
+	}
+	
+	/**
+	 * Connect and read timeout in millis for requests which don't set their own.  Default is 0,
+	 * meaning no timeout.
+	 */
+	public void setDefaultTimeout(int millis) {
+		this.defaultTimeout = millis;
+	}
+	
 	/** */
-	private class DefaultRequestDefinition implements RequestDefinition {
+	private class DefaultRequestDefinition implements StreamingRequestDefinition {
 		
 		HttpURLConnection conn;
 		
+		/** If not null, is told about us so someone else can disconnect the connection */
+		AtomicReference<DefaultRequestDefinition> current;
+		
+		/** Set once we no longer count as in progress */
+		AtomicBoolean released = new AtomicBoolean();
+		
+		DefaultRequestDefinition(AtomicReference<DefaultRequestDefinition> current) {
+			this.current = current;
+		}
+		
+		/**
+		 * Gives up our place among the connections; harmless to call more than once.
+		 */
+		void release() {
+			if (this.released.compareAndSet(false, true)) {
+				if (this.conn != null)
+					open.remove(this.conn);
+				
+				if (connections != null)
+					connections.release();
+			}
+		}
+		
 		@Override
 		public void init(HttpMethod meth, String url) throws IOException {
 			this.conn = (HttpURLConnection)new URL(url).openConnection();
 			this.conn.setRequestMethod(meth.name());
+			open.add(this.conn);
+			requests.incrementAndGet();
+			
+			if (this.conn instanceof HttpsURLConnection)
+				((HttpsURLConnection)this.conn).setSSLSocketFactory(socketFactory());
+			
+			this.conn.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+			
+			if (!keepAlive)
+				this.conn.setRequestProperty("Connection", "close");
+			
+			if (defaultTimeout > 0)
+				this.setTimeout(defaultTimeout);
+			
+			if (this.current != null)
+				this.current.set(this);
 		}
 
 		@Override
@@ -58,6 +279,11 @@ public class DefaultRequestExecutor extends RequestExecutor {
 			this.conn.setRequestProperty(name, value);
 		}
 
+		@Override
+		public void setContentLength(long length) {
+			this.conn.setFixedLengthStreamingMode(length);
+		}
+
 		@Override
 		public OutputStream getContentOutputStream() throws IOException {
 			this.conn.setDoOutput(true);
@@ -66,7 +292,12 @@ public class DefaultRequestExecutor extends RequestExecutor {
 
 		@Override
 		public void setContent(byte[] content) throws IOException {
-			this.getContentOutputStream().write(content);
+			// Lets the JDK stream the body rather than buffer a copy of it
+			this.setContentLength(content.length);
+			
+			OutputStream out = this.getContentOutputStream();
+			out.write(content);
+			out.close();
 		}
 
 		@Override
@@ -84,11 +315,12 @@ public class DefaultRequestExecutor extends RequestExecutor {
 
 				@Override
 				public InputStream getContentStream() throws IOException {
+					// The decoder must be on the outside so that closing it drains the raw stream
 					InputStream errStream = conn.getErrorStream(); 
 					if (errStream != null)
-						return errStream;
+						return decode(new DrainingInputStream(errStream, DefaultRequestDefinition.this), conn.getContentEncoding());
 					else
-						return conn.getInputStream();
+						return decode(new DrainingInputStream(conn.getInputStream(), DefaultRequestDefinition.this), conn.getContentEncoding());
 				}
 			};
 		}
@@ -97,13 +329,121 @@ public class DefaultRequestExecutor extends RequestExecutor {
 	/** */
 	@Override
 	public HttpResponse execute(int retries, RequestSetup setup) throws IOException {
+		return this.executeWithRetries(retries, setup, null);
+	}
+	
+	/** */
+	@Override
+	public Future<HttpResponse> submit(final int retries, final RequestSetup setup, final BlockingQueue<Future<HttpResponse>> done) {
+		final AtomicReference<DefaultRequestDefinition> current = new AtomicReference<DefaultRequestDefinition>();
+		
+		FutureTask<HttpResponse> task = new FutureTask<HttpResponse>(new Callable<HttpResponse>() {
+			@Override
+			public HttpResponse call() throws IOException {
+				return executeWithRetries(retries, setup, current);
+			}
+		}) {
+			@Override
+			protected void done() {
+				done.offer(this);
+			}
+			
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = super.cancel(mayInterruptIfRunning);
+				
+				// Interrupting doesn't stop blocking io, but this does; the loser's body is never read
+				DefaultRequestDefinition req = current.get();
+				if (req != null) {
+					if (req.conn != null)
+						req.conn.disconnect();
+					
+					req.release();
+				}
+				
+				return cancelled;
+			}
+		};
+		
+		this.background().execute(task);
+		return task;
+	}
+	
+	/** */
+	private synchronized SSLSocketFactory socketFactory() {
+		if (this.socketFactory == null)
+			this.socketFactory = new CountingSSLSocketFactory();
+		
+		return this.socketFactory;
+	}
+	
+	/** Number of http requests made, including retries */
+	public long getRequestCount() {
+		return this.requests.get();
+	}
+	
+	/** Number of TLS connections opened; for https, requests minus this were sent over reused connections */
+	public long getTLSConnectionCount() {
+		return this.tlsConnections.get();
+	}
+	
+	/** Number of response bodies which were completely read and closed, leaving the connection reusable */
+	public long getDrainedCount() {
+		return this.drained.get();
+	}
+	
+	/** Number of response bodies which were too big to drain or failed partway, so the connection was lost */
+	public long getDiscardedCount() {
+		return this.discarded.get();
+	}
+	
+	/** Threads are daemons so they never hold up shutdown */
+	private synchronized ExecutorService background() {
+		if (this.background == null) {
+			this.background = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "batchfb-request");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			
+			if (this.closed)
+				this.background.shutdown();
+		}
+		
+		return this.background;
+	}
+	
+	/**
+	 * Aborts requests in progress and stops the background threads.  Further requests fail.
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		
+		synchronized (this) {
+			if (this.background != null)
+				this.background.shutdownNow();
+		}
+		
+		for (HttpURLConnection conn: this.open)
+			conn.disconnect();
 		
+		this.open.clear();
+	}
+	
+	/**
+	 * @param current can be null; if not, it is always set to the request in progress
+	 */
+	private HttpResponse executeWithRetries(int retries, RequestSetup setup, AtomicReference<DefaultRequestDefinition> current) throws IOException {
 		if (retries == 0) {
-			return this.executeOnce(setup);
+			return this.executeOnce(setup, current);
 		} else {
 			for (int i=0; i<=retries; i++) {
 				try {
-					return this.executeOnce(setup);
+					return this.executeOnce(setup, current);
 				} catch (IOException ex) {
 					// This should just be a check for SocketTimeoutException, but GAE is not
 					// throwing the right exception - it's just IOException with "Timeout while fetching..."
@@ -123,15 +463,40 @@ public class DefaultRequestExecutor extends RequestExecutor {
 	/**
 	 * Execute given the specified http method once, throwing any exceptions as they come
 	 */
-	private HttpResponse executeOnce(RequestSetup setup) throws IOException {
-		DefaultRequestDefinition req = new DefaultRequestDefinition();
-		setup.setup(req);
+	private HttpResponse executeOnce(RequestSetup setup, AtomicReference<DefaultRequestDefinition> current) throws IOException {
+		if (this.closed)
+			throw new IOException("Executor has been closed");
 		
-		HttpResponse response = req.execute();
-		
-		// This will force the request to complete, causing any timeout exceptions to happen here
-		response.getResponseCode();
+		if (this.connections != null) {
+			try {
+				this.connections.acquire();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a connection");
+			}
+		}
 		
-		return response;
+		DefaultRequestDefinition req = new DefaultRequestDefinition(current);
+		boolean ok = false;
+		try {
+			setup.setup(req);
+			
+			HttpResponse response = req.execute();
+			
+			// This will force the request to complete, causing any timeout exceptions to happen here
+			response.getResponseCode();
+			
+			ok = true;
+			return response;
+		} finally {
+			// Otherwise we are in progress until the body has been read or closed
+			if (!ok) {
+				// A connection which failed partway can't be reused
+				if (req.conn != null)
+					req.conn.disconnect();
+				
+				req.release();
+			}
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * <p>Chooses among equivalent Graph API endpoints (eg, regional egress proxies which all
+ * lead to graph.facebook.com).  Keeps an exponentially weighted moving average of the
+ * latency and error rate of each endpoint and prefers the one with the lowest expected
+ * cost.  Endpoints which fail several times in a row are ejected for a while, then given
+ * another chance.</p>
+ * 
+ * <p>Endpoints which have never been used are tried first; ties go to the endpoint listed
+ * first.  A small fraction of requests go to a random healthy endpoint so that stale
+ * numbers get refreshed.</p>
+ * 
+ * <p>One selector can (and usually should) be shared by many batchers so they all learn
+ * from each other's requests.  It is thread-safe.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class EndpointSelector {
+	
+	/** */
+	static class Endpoint {
+		String url;
+		
+		/** Moving average, in millis */
+		double latency;
+		
+		/** Moving average, 0 to 1 */
+		double errorRate;
+		
+		/** Zero until the first result comes back */
+		int samples;
+		
+		/** The latency average starts with the first success */
+		int successes;
+		
+		/** */
+		int consecutiveFailures;
+		
+		/** System.currentTimeMillis() at which the endpoint comes back; 0 if not ejected */
+		long ejectedUntil;
+		
+		Endpoint(String url) {
+			this.url = url;
+		}
+		
+		/** Expected cost of sending a request here */
+		double score() {
+			if (this.successes == 0)
+				return Double.MAX_VALUE;
+			
+			return this.latency / (1 - Math.min(this.errorRate, 0.95));
+		}
+	}
+	
+	/** */
+	private Map<String, Endpoint> endpoints = new LinkedHashMap<String, Endpoint>();
+	
+	/** Weight given to the newest sample */
+	private double alpha = 0.2;
+	
+	/** */
+	private int ejectAfter = 3;
+	private long ejectMillis = 30 * 1000;
+	
+	/** Fraction of requests sent to a random healthy endpoint */
+	private double exploration = 0.05;
+	
+	/** */
+	private Random random = new Random();
+	
+	/**
+	 * @param urls are base urls including the trailing /, in order of preference
+	 */
+	public EndpointSelector(String... urls) {
+		if (urls.length == 0)
+			throw new IllegalArgumentException("At least one endpoint is required");
+		
+		for (String url: urls)
+			this.endpoints.put(url, new Endpoint(url));
+	}
+	
+	/**
+	 * Sets the weight given to each new latency and error sample; higher values adapt faster
+	 * but are noisier.  Default is 0.2.
+	 */
+	public synchronized void setAlpha(double value) {
+		this.alpha = value;
+	}
+	
+	/**
+	 * An endpoint which fails this many times in a row is not used for the specified
+	 * period.  Defaults are 3 failures and 30 seconds.
+	 */
+	public synchronized void setEjection(int failures, long millis) {
+		this.ejectAfter = failures;
+		this.ejectMillis = millis;
+	}
+	
+	/**
+	 * Fraction of requests sent to a random healthy endpoint instead of the best one.
+	 * Default is 0.05; 0 disables it.
+	 */
+	public synchronized void setExploration(double value) {
+		this.exploration = value;
+	}
+	
+	/** The endpoints, in order of preference */
+	public List<String> getEndpoints() {
+		return new ArrayList<String>(this.endpoints.keySet());
+	}
+	
+	/** */
+	public int size() {
+		return this.endpoints.size();
+	}
+	
+	/** @return the best endpoint at the moment */
+	public String select() {
+		return this.select(Collections.<String>emptySet());
+	}
+	
+	/**
+	 * @param exclude are endpoints which should not be chosen, eg because they just failed
+	 * @return the best endpoint at the moment, or null if everything was excluded.  If all the
+	 * remaining endpoints are ejected, the one which will come back soonest is chosen.
+	 */
+	public synchronized String select(Collection<String> exclude) {
+		long now = System.currentTimeMillis();
+		
+		List<Endpoint> healthy = new ArrayList<Endpoint>(this.endpoints.size());
+		Endpoint soonest = null;
+		
+		for (Endpoint end: this.endpoints.values()) {
+			if (exclude.contains(end.url))
+				continue;
+			
+			if (end.ejectedUntil <= now)
+				healthy.add(end);
+			else if (soonest == null || end.ejectedUntil < soonest.ejectedUntil)
+				soonest = end;
+		}
+		
+		if (healthy.isEmpty())
+			return soonest == null ? null : soonest.url;
+		
+		if (healthy.size() > 1 && this.exploration > 0 && this.random.nextDouble() < this.exploration)
+			return healthy.get(this.random.nextInt(healthy.size())).url;
+		
+		Endpoint best = null;
+		for (Endpoint end: healthy) {
+			if (end.samples == 0)
+				return end.url;
+			
+			if (best == null || end.score() < best.score())
+				best = end;
+		}
+		
+		return best.url;
+	}
+	
+	/**
+	 * Records a successful request.
+	 * @param millis is how long the endpoint took to answer, up to the response status; time
+	 * spent waiting to be sent or for someone to read the body doesn't count.
+	 */
+	public synchronized void success(String url, long millis) {
+		Endpoint end = this.endpoints.get(url);
+		if (end == null)
+			return;
+		
+		end.latency = (end.successes == 0) ? millis : this.alpha * millis + (1 - this.alpha) * end.latency;
+		end.errorRate = (1 - this.alpha) * end.errorRate;
+		end.samples++;
+		end.successes++;
+		end.consecutiveFailures = 0;
+		end.ejectedUntil = 0;
+	}
+	
+	/**
+	 * Records a failed request; ejects the endpoint if it has failed too many times in a row.
+	 */
+	public synchronized void failure(String url) {
+		Endpoint end = this.endpoints.get(url);
+		if (end == null)
+			return;
+		
+		end.errorRate = this.alpha + (1 - this.alpha) * end.errorRate;
+		end.samples++;
+		end.consecutiveFailures++;
+		
+		if (end.consecutiveFailures >= this.ejectAfter)
+			end.ejectedUntil = System.currentTimeMillis() + this.ejectMillis;
+	}
+	
+	/** @return the moving average latency of the endpoint in millis, or 0 if it has never succeeded */
+	public synchronized double getLatency(String url) {
+		return this.endpoints.get(url).latency;
+	}
+	
+	/** @return the moving average error rate of the endpoint, 0 to 1 */
+	public synchronized double getErrorRate(String url) {
+		return this.endpoints.get(url).errorRate;
+	}
+	
+	/** @return true if the endpoint is currently ejected */
+	public synchronized boolean isEjected(String url) {
+		return this.endpoints.get(url).ejectedUntil > System.currentTimeMillis();
+	}
+}
@@ -23,8 +23,10 @@
 package com.googlecode.batchfb.util;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.CancellableLater;
 import com.googlecode.batchfb.err.FacebookException;
 
 /**
@@ -33,7 +35,7 @@ import com.googlecode.batchfb.err.FacebookException;
  * 
  * @author Jeff Schnitzer
  */
-public class FirstElementLater<T> implements Later<T> {
+public class FirstElementLater<T> implements CancellableLater<T> {
 	
 	/** */
 	Later<List<T>> base;
@@ -48,9 +50,30 @@ public class FirstElementLater<T> implements Later<T> {
 	 */
 	@Override
 	public T get() throws FacebookException {
-		if (base.get().isEmpty())
+		List<T> list = base.get();
+		if (list.isEmpty())
 			return null;
 		else
-			return base.get().get(0);
+			return list.get(0);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.TimedLater#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public T get(long timeout, TimeUnit unit) throws FacebookException {
+		List<T> list = Deadline.get(base, timeout, unit);
+		if (list.isEmpty())
+			return null;
+		else
+			return list.get(0);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.CancellableLater#cancel()
+	 */
+	@Override
+	public boolean cancel() {
+		return (this.base instanceof CancellableLater) && ((CancellableLater<?>)this.base).cancel();
 	}
 }
\ No newline at end of file
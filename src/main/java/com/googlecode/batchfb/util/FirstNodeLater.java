@@ -22,9 +22,12 @@
 
 package com.googlecode.batchfb.util;
 
+import java.util.concurrent.TimeUnit;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.CancellableLater;
 import com.googlecode.batchfb.err.FacebookException;
 
 /**
@@ -33,7 +36,7 @@ import com.googlecode.batchfb.err.FacebookException;
  * 
  * @author Jeff Schnitzer
  */
-public class FirstNodeLater implements Later<JsonNode> {
+public class FirstNodeLater implements CancellableLater<JsonNode> {
 	
 	/** */
 	Later<ArrayNode> base;
@@ -48,9 +51,30 @@ public class FirstNodeLater implements Later<JsonNode> {
 	 */
 	@Override
 	public JsonNode get() throws FacebookException {
-		if (base.get().size() == 0)
+		ArrayNode array = base.get();
+		if (array.size() == 0)
 			return null;
 		else
-			return base.get().get(0);
+			return array.get(0);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.TimedLater#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public JsonNode get(long timeout, TimeUnit unit) throws FacebookException {
+		ArrayNode array = Deadline.get(base, timeout, unit);
+		if (array.size() == 0)
+			return null;
+		else
+			return array.get(0);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.CancellableLater#cancel()
+	 */
+	@Override
+	public boolean cancel() {
+		return (this.base instanceof CancellableLater) && ((CancellableLater<?>)this.base).cancel();
 	}
 }
\ No newline at end of file
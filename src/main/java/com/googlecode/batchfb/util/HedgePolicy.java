@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.util;
+
+import java.util.Arrays;
+
+/**
+ * <p>Decides when a slow read-only batch should be hedged, ie when a duplicate request
+ * should be sent, the first response used, and the other one cancelled.  A request is
+ * hedged once it has taken longer than a percentile (default 95th) of recent batch
+ * latencies.</p>
+ * 
+ * <p>Hedges are limited by a budget, expressed as a fraction of all requests (default
+ * 5%).  Share one policy among all your batchers to make this a global limit.  It is
+ * thread-safe.</p>
+ * 
+ * <p>Hedging only happens when the RequestExecutor can cancel requests; see
+ * CancellableRequestExecutor.  Note that recorded latencies run to the response status,
+ * not to the end of the body.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class HedgePolicy {
+	
+	/** Unused hedge allowance can't pile up past this */
+	private static final double MAX_CREDIT = 10;
+	
+	/** */
+	private double percentile;
+	private double budget;
+	private int minSamples = 20;
+	
+	/** Ring buffer of recent latencies */
+	private long[] samples;
+	private int sampleCount;
+	private int nextSample;
+	
+	/** The percentile of the samples, refreshed as a tenth of them are replaced; -1 if not yet known */
+	private long threshold = -1;
+	private int sinceThreshold;
+	
+	/** Scratch space for finding the percentile, so it needn't be allocated each time */
+	private long[] sorted;
+	
+	/** Each request earns budget worth of credit; each hedge costs 1 */
+	private double credit;
+	
+	/** */
+	private long requests;
+	private long hedges;
+	
+	/** Hedges at the 95th percentile of the last 100 requests, for at most 5% of requests. */
+	public HedgePolicy() {
+		this(0.95, 0.05);
+	}
+	
+	/**
+	 * @param percentile of recent latencies after which a request is hedged, eg 0.95
+	 * @param budget is the maximum fraction of requests which may be hedged, eg 0.05
+	 */
+	public HedgePolicy(double percentile, double budget) {
+		this(percentile, budget, 100);
+	}
+	
+	/**
+	 * @param window is the number of recent latencies to remember
+	 */
+	public HedgePolicy(double percentile, double budget, int window) {
+		this.percentile = percentile;
+		this.budget = budget;
+		this.samples = new long[window];
+		this.sorted = new long[window];
+	}
+	
+	/**
+	 * Don't hedge anything until this many latencies have been recorded.  Default is 20.
+	 */
+	public synchronized void setMinSamples(int value) {
+		this.minSamples = value;
+	}
+	
+	/**
+	 * Called as each request starts.
+	 * 
+	 * @return the number of millis to wait before hedging, or -1 if there isn't enough
+	 * history to say.
+	 */
+	public synchronized long start() {
+		this.requests++;
+		this.credit = Math.min(MAX_CREDIT, this.credit + this.budget);
+		
+		if (this.sampleCount < this.minSamples || this.sampleCount == 0)
+			return -1;
+		
+		if (this.threshold < 0)
+			this.updateThreshold();
+		
+		return this.threshold;
+	}
+	
+	/**
+	 * Called when a request has waited long enough.
+	 * 
+	 * @return true if the budget allows a hedge, which is then charged against it.
+	 */
+	public synchronized boolean tryHedge() {
+		if (this.credit < 1)
+			return false;
+		
+		this.credit -= 1;
+		this.hedges++;
+		return true;
+	}
+	
+	/**
+	 * Records how long a request took to complete.
+	 */
+	public synchronized void record(long millis) {
+		this.samples[this.nextSample] = millis;
+		this.nextSample = (this.nextSample + 1) % this.samples.length;
+		
+		if (this.sampleCount < this.samples.length)
+			this.sampleCount++;
+		
+		// Sorting the window for every request would be wasteful; a little staleness isn't
+		if (this.threshold >= 0 && ++this.sinceThreshold >= Math.max(1, this.sampleCount / 10))
+			this.updateThreshold();
+	}
+	
+	/** */
+	private void updateThreshold() {
+		System.arraycopy(this.samples, 0, this.sorted, 0, this.sampleCount);
+		Arrays.sort(this.sorted, 0, this.sampleCount);
+		
+		int index = (int)Math.ceil(this.percentile * this.sampleCount) - 1;
+		this.threshold = this.sorted[Math.max(0, Math.min(index, this.sampleCount - 1))];
+		this.sinceThreshold = 0;
+	}
+	
+	/** Number of requests started under this policy */
+	public synchronized long getRequestCount() {
+		return this.requests;
+	}
+	
+	/** Number of duplicate requests sent */
+	public synchronized long getHedgeCount() {
+		return this.hedges;
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A BatchListener which keeps histograms of sizes and timings and counts of status codes
+ * and errors, since it was created.  It is thread-safe and cheap enough to leave on in
+ * production; share one among batchers to see the totals.  toString() gives a summary
+ * suitable for logging.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class HistogramListener extends BatchListener.Adapter {
+	
+	/**
+	 * A lock-free histogram with power-of-two buckets, so percentiles are accurate to
+	 * within a factor of two.  Negative values are ignored.
+	 */
+	public static class Histogram {
+		/** Bucket n holds values which need n bits */
+		private AtomicLongArray buckets = new AtomicLongArray(65);
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong sum = new AtomicLong();
+		private AtomicLong max = new AtomicLong();
+		
+		/** */
+		public void record(long value) {
+			if (value < 0)
+				return;
+			
+			this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+			this.count.incrementAndGet();
+			this.sum.addAndGet(value);
+			
+			long prev;
+			while (value > (prev = this.max.get()))
+				if (this.max.compareAndSet(prev, value))
+					break;
+		}
+		
+		/** */
+		public long getCount() { return this.count.get(); }
+		
+		/** */
+		public long getSum() { return this.sum.get(); }
+		
+		/** */
+		public long getMax() { return this.max.get(); }
+		
+		/** @return 0 if nothing has been recorded */
+		public double getMean() {
+			long n = this.count.get();
+			return n == 0 ? 0 : (double)this.sum.get() / n;
+		}
+		
+		/**
+		 * @param percentile is between 0 and 1, eg 0.99
+		 * @return the upper bound of the bucket holding the percentile, but never more than the max
+		 */
+		public long getPercentile(double percentile) {
+			long n = this.count.get();
+			if (n == 0)
+				return 0;
+			
+			long rank = (long)Math.ceil(percentile * n);
+			long seen = 0;
+			for (int i=0; i<this.buckets.length(); i++) {
+				seen += this.buckets.get(i);
+				if (seen >= rank && seen > 0)
+					return Math.min(i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1), this.max.get());
+			}
+			
+			return this.max.get();
+		}
+		
+		/** */
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+					this.getCount(), this.getMean(), this.getPercentile(0.5), this.getPercentile(0.9), this.getPercentile(0.99), this.getMax());
+		}
+	}
+	
+	/** */
+	private Histogram batchSize = new Histogram();
+	private Histogram requestBytes = new Histogram();
+	private Histogram responseBytes = new Histogram();
+	private Histogram encodeMicros = new Histogram();
+	private Histogram networkMicros = new Histogram();
+	private Histogram parseMicros = new Histogram();
+	private Histogram mapMicros = new Histogram();
+	private Histogram waitMicros = new Histogram();
+	
+	/** */
+	private AtomicLong attempts = new AtomicLong();
+	private ConcurrentMap<Integer, AtomicLong> httpStatuses = new ConcurrentHashMap<Integer, AtomicLong>();
+	private ConcurrentMap<Integer, AtomicLong> partCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+	private ConcurrentMap<String, AtomicLong> batchErrors = new ConcurrentHashMap<String, AtomicLong>();
+	private ConcurrentMap<String, AtomicLong> partErrors = new ConcurrentHashMap<String, AtomicLong>();
+	
+	/** */
+	@Override
+	public void batchCompleted(BatchStats stats) {
+		this.batchSize.record(stats.requests);
+		this.requestBytes.record(stats.requestBytes);
+		this.responseBytes.record(stats.responseBytes);
+		this.encodeMicros.record(micros(stats.encodeNanos));
+		this.networkMicros.record(micros(stats.networkNanos));
+		this.parseMicros.record(micros(stats.parseNanos));
+		this.attempts.addAndGet(stats.attempts);
+		
+		increment(this.httpStatuses, stats.httpStatus);
+		
+		if (stats.partCodes != null)
+			for (int code: stats.partCodes)
+				increment(this.partCodes, code);
+		
+		if (stats.errorType != null)
+			increment(this.batchErrors, stats.errorType);
+	}
+	
+	/** */
+	@Override
+	public void partCompleted(PartStats stats) {
+		this.mapMicros.record(micros(stats.mapNanos));
+		this.waitMicros.record(micros(stats.waitNanos));
+		
+		if (stats.errorType != null)
+			increment(this.partErrors, stats.errorType);
+	}
+	
+	/** Number of requests in each http call */
+	public Histogram getBatchSize() { return this.batchSize; }
+	
+	/** Request body sizes in bytes */
+	public Histogram getRequestBytes() { return this.requestBytes; }
+	
+	/** Response body sizes in bytes */
+	public Histogram getResponseBytes() { return this.responseBytes; }
+	
+	/** Time to build the batch parameter, in microseconds */
+	public Histogram getEncodeMicros() { return this.encodeMicros; }
+	
+	/** Time until the response status arrived, in microseconds */
+	public Histogram getNetworkMicros() { return this.networkMicros; }
+	
+	/** Time to read and parse response bodies, in microseconds */
+	public Histogram getParseMicros() { return this.parseMicros; }
+	
+	/** Time to map each part to its result type, in microseconds */
+	public Histogram getMapMicros() { return this.mapMicros; }
+	
+	/** Time threads spent blocked in get() waiting for their batch, in microseconds */
+	public Histogram getWaitMicros() { return this.waitMicros; }
+	
+	/** Number of calls to the batch endpoint */
+	public long getBatchCount() { return this.batchSize.getCount(); }
+	
+	/** Graph requests per http call; the higher, the more batching is saving you */
+	public double getRequestsPerCall() { return this.batchSize.getMean(); }
+	
+	/** Number of http requests beyond one per batch, ie retries and hedges */
+	public long getRetryCount() { return this.attempts.get() - this.getBatchCount(); }
+	
+	/** Counts of http statuses of batch calls; -1 means there was no response */
+	public Map<Integer, Long> getHttpStatuses() { return snapshot(this.httpStatuses); }
+	
+	/** Counts of the codes of individual parts */
+	public Map<Integer, Long> getPartCodes() { return snapshot(this.partCodes); }
+	
+	/** Counts of exception types which failed whole batches */
+	public Map<String, Long> getBatchErrors() { return snapshot(this.batchErrors); }
+	
+	/** Counts of exception types which failed individual parts */
+	public Map<String, Long> getPartErrors() { return snapshot(this.partErrors); }
+	
+	/** */
+	@Override
+	public String toString() {
+		StringBuilder bld = new StringBuilder();
+		bld.append(String.format("batches=%d requestsPerCall=%.2f retries=%d%n", this.getBatchCount(), this.getRequestsPerCall(), this.getRetryCount()));
+		bld.append("encodeMicros: ").append(this.encodeMicros).append('\n');
+		bld.append("networkMicros: ").append(this.networkMicros).append('\n');
+		bld.append("parseMicros: ").append(this.parseMicros).append('\n');
+		bld.append("mapMicros: ").append(this.mapMicros).append('\n');
+		bld.append("waitMicros: ").append(this.waitMicros).append('\n');
+		bld.append("requestBytes: ").append(this.requestBytes).append('\n');
+		bld.append("responseBytes: ").append(this.responseBytes).append('\n');
+		bld.append("httpStatuses: ").append(this.getHttpStatuses()).append('\n');
+		bld.append("partCodes: ").append(this.getPartCodes()).append('\n');
+		bld.append("batchErrors: ").append(this.getBatchErrors()).append('\n');
+		bld.append("partErrors: ").append(this.getPartErrors());
+		return bld.toString();
+	}
+	
+	/** Keeps -1 (not measured) as -1 */
+	private static long micros(long nanos) {
+		return nanos < 0 ? -1 : nanos / 1000;
+	}
+	
+	/** */
+	private static <K> void increment(ConcurrentMap<K, AtomicLong> counts, K key) {
+		AtomicLong count = counts.get(key);
+		if (count == null) {
+			AtomicLong fresh = new AtomicLong();
+			count = counts.putIfAbsent(key, fresh);
+			if (count == null)
+				count = fresh;
+		}
+		
+		count.incrementAndGet();
+	}
+	
+	/** Sorted, for readability */
+	private static <K> Map<K, Long> snapshot(ConcurrentMap<K, AtomicLong> counts) {
+		Map<K, Long> result = new TreeMap<K, Long>();
+		for (Map.Entry<K, AtomicLong> entry: counts.entrySet())
+			result.put(entry.getKey(), entry.getValue().get());
+		
+		return result;
+	}
+}
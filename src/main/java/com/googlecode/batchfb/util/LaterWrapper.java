@@ -22,17 +22,28 @@
 
 package com.googlecode.batchfb.util;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.CancellableLater;
 import com.googlecode.batchfb.err.FacebookException;
 
 /**
  * Wraps a Later of one type and produces a Later of (possibly) a different type, caching the result.
+ * Once the result has been obtained, the original is released so that the chain behind it
+ * (and ultimately the raw batch result) can be garbage collected.
  */
-public class LaterWrapper<K, V> implements Later<V>
+public class LaterWrapper<K, V> implements CancellableLater<V>
 {
-	private Later<K> orig;
+	/** Null once we have a cached value; volatile so that the cached value is visible when this is */
+	private volatile Later<K> orig;
 	private V cached;
 	
+	/** Set by cancel() */
+	private volatile boolean cancelled;
+	
 	public LaterWrapper(Later<K> orig)
 	{
 		this.orig = orig;
@@ -41,12 +52,58 @@ public class LaterWrapper<K, V> implements Later<V>
 	@Override
 	public V get() throws FacebookException
 	{
-		if (this.cached == null)
-			this.cached = this.convert(this.orig.get());
+		if (this.cancelled)
+			throw new CancellationException();
+		
+		Later<K> source = this.orig;
+		if (source != null) {
+			this.cached = this.convert(source.get());
+			this.orig = null;
+		}
+		
+		return this.cached;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.TimedLater#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public V get(long timeout, TimeUnit unit) throws FacebookException
+	{
+		if (this.cancelled)
+			throw new CancellationException();
+		
+		Later<K> source = this.orig;
+		if (source != null) {
+			this.cached = this.convert(Deadline.get(source, timeout, unit));
+			this.orig = null;
+		}
 		
 		return this.cached;
 	}
 	
+	/**
+	 * Lets go of the original without asking it for a value.  The original itself is not
+	 * cancelled, since it may be shared; subclasses which own theirs can override this.
+	 */
+	@Override
+	public boolean cancel()
+	{
+		if (this.orig == null)
+			return false;
+		
+		this.cancelled = true;
+		this.orig = null;
+		return true;
+	}
+	
+	/** @return true if cancel() succeeded */
+	@JsonIgnore
+	public boolean isCancelled()
+	{
+		return this.cancelled;
+	}
+	
 	/** Override this; default is just to pass through which will be unsafe if types are incompatible */
 	@SuppressWarnings("unchecked")
 	protected V convert(K data)
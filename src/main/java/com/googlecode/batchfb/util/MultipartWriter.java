@@ -22,8 +22,16 @@
 
 package com.googlecode.batchfb.util;
 
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import com.googlecode.batchfb.util.RequestBuilder.BinaryAttachment;
@@ -33,6 +41,11 @@ import com.googlecode.batchfb.util.RequestBuilder.BinaryAttachment;
  *
  * <p>See <a href="http://www.w3.org/TR/html401/interact/forms.html#h-17.13.4">http://www.w3.org/TR/html401/interact/forms.html#h-17.13.4</a>.</p>
  *
+ * <p>The headers of every part are rendered up front so that, if all the attachments are files
+ * (or there are none), the Content-Length is known before anything is sent.  The executor can
+ * then stream the body instead of buffering it, and files are copied straight from their
+ * FileChannel.  ByteBuffer attachments (eg mapped regions of a file) work the same way.</p>
+ *
  * @author Jeff Schnitzer
  */
 public class MultipartWriter {
@@ -41,49 +54,113 @@ public class MultipartWriter {
 	private static final String MULTIPART_BOUNDARY = "**** an awful string which should never exist naturally ****" + Math.random();
 	private static final String MULTIPART_BOUNDARY_SEPARATOR = "--" + MULTIPART_BOUNDARY;
 	private static final String MULTIPART_BOUNDARY_END = MULTIPART_BOUNDARY_SEPARATOR + "--";
+	private static final String CRLF = "\r\n";
 
 	/** */
-	OutputStream out;
+	RequestDefinition executor;
 
 	/** */
 	public MultipartWriter(RequestDefinition executor) throws IOException {
 		executor.setHeader("Content-Type", "multipart/form-data; boundary=" + MULTIPART_BOUNDARY);
-		this.out = executor.getContentOutputStream();
+		this.executor = executor;
 	}
 
 	/**
 	 * Write the params as multipart/form-data.  Params can include BinaryAttachemnt objects.
 	 */
 	public void write(Map<String, Object> params) throws IOException {
-		LineWriter writer = new LineWriter(this.out);
-		try {
-			for (Map.Entry<String, Object> param: params.entrySet()) {
-				writer.println(MULTIPART_BOUNDARY_SEPARATOR);
+		// Alternating text and attachments
+		List<Object> pieces = new ArrayList<Object>();
+		StringBuilder text = new StringBuilder();
+		
+		for (Map.Entry<String, Object> param: params.entrySet()) {
+			text.append(MULTIPART_BOUNDARY_SEPARATOR).append(CRLF);
 
-				if (param.getValue() instanceof BinaryAttachment) {
-					BinaryAttachment ba = (BinaryAttachment)param.getValue();
-					writer.println("Content-Disposition: form-data; name=\"" + StringUtils.urlEncode(param.getKey()) + "\"; filename=\""
-							+ StringUtils.urlEncode(ba.filename) + "\"");
-					writer.println("Content-Type: " + ba.contentType);
-					writer.println("Content-Transfer-Encoding: binary");
-					writer.println();
-					writer.flush();
-					// Now output the binary part to the raw stream
-					int read;
-					byte[] chunk = new byte[8192];
-					while ((read = ba.data.read(chunk)) > 0)
-						this.out.write(chunk, 0, read);
-				} else {
-					writer.println("Content-Disposition: form-data; name=\"" + StringUtils.urlEncode(param.getKey()) + "\"");
-					writer.println();
-					writer.println(StringUtils.urlEncode(param.getValue().toString()));
-				}
+			if (param.getValue() instanceof BinaryAttachment) {
+				BinaryAttachment ba = (BinaryAttachment)param.getValue();
+				text.append("Content-Disposition: form-data; name=\"").append(StringUtils.urlEncode(param.getKey()))
+						.append("\"; filename=\"").append(StringUtils.urlEncode(ba.filename)).append('"').append(CRLF);
+				text.append("Content-Type: ").append(ba.contentType).append(CRLF);
+				text.append("Content-Transfer-Encoding: binary").append(CRLF);
+				text.append(CRLF);
+				
+				pieces.add(text.toString().getBytes("utf-8"));
+				pieces.add(ba);
+				text.setLength(0);
+				text.append(CRLF);
+			} else {
+				// Values are sent as-is; multipart bodies are not urlencoded
+				text.append("Content-Disposition: form-data; name=\"").append(StringUtils.urlEncode(param.getKey())).append('"').append(CRLF);
+				text.append(CRLF);
+				text.append(param.getValue().toString()).append(CRLF);
 			}
+		}
 
-			writer.println(MULTIPART_BOUNDARY_END);
-			writer.flush();
+		text.append(MULTIPART_BOUNDARY_END).append(CRLF);
+		pieces.add(text.toString().getBytes("utf-8"));
+		
+		long length = 0;
+		for (Object piece: pieces) {
+			long pieceLength = (piece instanceof byte[]) ? ((byte[])piece).length : ((BinaryAttachment)piece).length();
+			if (pieceLength < 0) {
+				length = -1;
+				break;
+			}
+			
+			length += pieceLength;
+		}
+		
+		if (length >= 0 && this.executor instanceof StreamingRequestDefinition)
+			((StreamingRequestDefinition)this.executor).setContentLength(length);
+		
+		OutputStream out = new BufferedOutputStream(this.executor.getContentOutputStream(), 8192);
+		try {
+			for (Object piece: pieces) {
+				if (piece instanceof byte[])
+					out.write((byte[])piece);
+				else
+					this.writeAttachment((BinaryAttachment)piece, out);
+			}
 		} finally {
-			writer.close();
+			out.close();
+		}
+	}
+	
+	/** */
+	private void writeAttachment(BinaryAttachment ba, OutputStream out) throws IOException {
+		if (ba.file != null) {
+			long expected = ba.length();
+			
+			FileInputStream in = new FileInputStream(ba.file);
+			try {
+				FileChannel channel = in.getChannel();
+				WritableByteChannel target = Channels.newChannel(out);
+				
+				long position = 0;
+				while (position < expected) {
+					long sent = channel.transferTo(position, expected - position, target);
+					if (sent <= 0)
+						break;
+					
+					position += sent;
+				}
+				
+				// We promised a Content-Length, so this would corrupt the request
+				if (position != expected || channel.size() != expected)
+					throw new IOException("File " + ba.file + " changed size while being uploaded");
+			} finally {
+				in.close();
+			}
+		} else if (ba.buffer != null) {
+			ByteBuffer remaining = ba.buffer.duplicate();
+			WritableByteChannel target = Channels.newChannel(out);
+			while (remaining.hasRemaining())
+				target.write(remaining);
+		} else {
+			int read;
+			byte[] chunk = new byte[8192];
+			while ((read = ba.data.read(chunk)) > 0)
+				out.write(chunk, 0, read);
 		}
 	}
 }
\ No newline at end of file
@@ -22,13 +22,16 @@
 
 package com.googlecode.batchfb.util;
 
+import java.util.concurrent.TimeUnit;
+
 import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.CancellableLater;
 import com.googlecode.batchfb.err.FacebookException;
 
 /**
  * Just a simple holder - easy.
  */
-public class Now<T> implements Later<T> {
+public class Now<T> implements CancellableLater<T> {
 	private T thing;
 	
 	public Now(T thing) {
@@ -39,4 +42,20 @@ public class Now<T> implements Later<T> {
 	public T get() throws FacebookException {
 		return this.thing;
 	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.TimedLater#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public T get(long timeout, TimeUnit unit) throws FacebookException {
+		return this.thing;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.batchfb.CancellableLater#cancel()
+	 */
+	@Override
+	public boolean cancel() {
+		return false;
+	}
 }
\ No newline at end of file
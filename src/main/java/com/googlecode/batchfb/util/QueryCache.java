@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * <p>Remembers the results of FQL queries for a while, so that the same query issued again
+ * (by this batcher or any other sharing the cache) doesn't go to Facebook at all.  Results
+ * are kept per access token, since what a query returns depends on who asks; the cache
+ * holds a digest of each token rather than the token itself.</p>
+ * 
+ * <p>Only successful results are cached.  Once the cache is full, the least recently used
+ * result is forgotten.  Share one cache among all your batchers; it is thread-safe.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class QueryCache {
+	
+	/** */
+	private static class Cached {
+		final JsonNode resultSet;
+		final long expires;
+		
+		Cached(JsonNode resultSet, long expires) {
+			this.resultSet = resultSet;
+			this.expires = expires;
+		}
+	}
+	
+	/** */
+	private final long ttlMillis;
+	private final int maxEntries;
+	
+	/** In access order, so the eldest is the least recently used */
+	private final LinkedHashMap<String, Cached> entries;
+	
+	/** */
+	private long hits;
+	private long misses;
+	
+	/** Keeps at most 10,000 results. */
+	public QueryCache(long ttl, TimeUnit unit) {
+		this(ttl, unit, 10000);
+	}
+	
+	/**
+	 * @param ttl is how long a result is good for
+	 * @param maxEntries is the number of results to keep
+	 */
+	public QueryCache(long ttl, TimeUnit unit, int maxEntries) {
+		this.ttlMillis = unit.toMillis(ttl);
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+				return this.size() > QueryCache.this.maxEntries;
+			}
+		};
+	}
+	
+	/**
+	 * Gets a copy of the result set, so callers are free to change what they get.
+	 * @param accessToken can be null for unauthenticated queries
+	 * @return null if the query isn't cached, or its result has expired
+	 */
+	public synchronized JsonNode get(String accessToken, String fql) {
+		String key = key(accessToken, fql);
+		Cached entry = this.entries.get(key);
+		
+		if (entry != null && entry.expires <= this.now()) {
+			this.entries.remove(key);
+			entry = null;
+		}
+		
+		if (entry == null) {
+			this.misses++;
+			return null;
+		}
+		
+		this.hits++;
+		return entry.resultSet.deepCopy();
+	}
+	
+	/**
+	 * @return true if get() would find a result, without counting a hit or miss.
+	 */
+	public synchronized boolean contains(String accessToken, String fql) {
+		Cached entry = this.entries.get(key(accessToken, fql));
+		return entry != null && entry.expires > this.now();
+	}
+	
+	/**
+	 * Remembers a result set.  The caller must not change it afterwards.
+	 * @param accessToken can be null for unauthenticated queries
+	 */
+	public synchronized void put(String accessToken, String fql, JsonNode resultSet) {
+		if (resultSet == null)
+			return;
+		
+		this.entries.put(key(accessToken, fql), new Cached(resultSet, this.now() + this.ttlMillis));
+	}
+	
+	/** Forgets everything */
+	public synchronized void clear() {
+		this.entries.clear();
+	}
+	
+	/** @return the number of results currently held, some of which may have expired */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+	
+	/** @return the number of lookups answered from the cache */
+	public synchronized long getHitCount() {
+		return this.hits;
+	}
+	
+	/** @return the number of lookups which had to go to Facebook */
+	public synchronized long getMissCount() {
+		return this.misses;
+	}
+	
+	/** The clock; overridable for testing */
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+	
+	/** Tokens are secrets, so they are only kept as a digest */
+	private static String key(String accessToken, String fql) {
+		return (accessToken == null) ? fql : RateLimiter.hash(accessToken) + '\n' + fql;
+	}
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.googlecode.batchfb.err.RateLimitedException;
+
+/**
+ * <p>Keeps batches under Facebook's call budgets with token buckets, one per app id and one
+ * per access token (user or page).  Every graph request in a batch costs one permit, so a
+ * batch of 50 costs 50 even though it is a single http call; FQL queries cost one between
+ * them.  A batch is sent only when every bucket it touches can pay.</p>
+ * 
+ * <p>Share one limiter among all your batchers to make the limits global within the JVM.
+ * To share them across machines, give it a Store backed by something all of them can see
+ * (memcache, redis, a database row); the default MemoryStore only lives in this JVM.
+ * It is thread-safe.</p>
+ * 
+ * <p>By default a batch which can't be admitted waits until it can.  With setMaxWait() it
+ * waits at most that long, and with setMaxWait(0) it fails immediately; either way it
+ * throws RateLimitedException without sending anything.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class RateLimiter {
+	
+	/**
+	 * The state of one bucket: the permits it held as of a timestamp.  Immutable, so that
+	 * a Store can compare and swap it.
+	 */
+	public static final class Bucket {
+		/** Can be negative when a batch larger than the bucket was admitted */
+		public final double permits;
+		
+		/** Millis since the epoch when permits was calculated */
+		public final long stamp;
+		
+		/** */
+		public Bucket(double permits, long stamp) {
+			this.permits = permits;
+			this.stamp = stamp;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Bucket))
+				return false;
+			
+			Bucket other = (Bucket)o;
+			return Double.compare(this.permits, other.permits) == 0 && this.stamp == other.stamp;
+		}
+		
+		@Override
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(this.permits);
+			return (int)(bits ^ (bits >>> 32)) * 31 + (int)(this.stamp ^ (this.stamp >>> 32));
+		}
+		
+		@Override
+		public String toString() {
+			return this.permits + "@" + this.stamp;
+		}
+	}
+	
+	/**
+	 * <p>Where buckets live.  Implement this over a shared cache to apply the limits across
+	 * many machines.  All the arithmetic happens in the RateLimiter; a store only needs to
+	 * get values and compare-and-swap them, which memcache, redis (WATCH/MULTI) and any
+	 * database with a version column can do.</p>
+	 */
+	public interface Store {
+		/**
+		 * @return the bucket, or null if there is none (which means it is full)
+		 */
+		Bucket get(String key);
+		
+		/**
+		 * Replaces the bucket only if it still equals what was read.
+		 * 
+		 * @param expect is what get() returned, possibly null
+		 * @param ttlMillis is how long until the bucket would be full again anyway, after
+		 * which the store is free to forget it.
+		 * @return false if the bucket was changed in the meantime
+		 */
+		boolean compareAndSet(String key, Bucket expect, Bucket update, long ttlMillis);
+	}
+	
+	/**
+	 * Keeps buckets in this JVM.  Buckets which have refilled are swept out from time to
+	 * time, so a limiter which sees millions of tokens doesn't hold on to them forever.
+	 */
+	public static class MemoryStore implements Store {
+		/** Sweep once every this many updates */
+		private static final int SWEEP_INTERVAL = 4096;
+		
+		/** */
+		private static class Entry {
+			final Bucket bucket;
+			final long expires;
+			
+			Entry(Bucket bucket, long expires) {
+				this.bucket = bucket;
+				this.expires = expires;
+			}
+		}
+		
+		/** */
+		private ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+		private AtomicInteger updates = new AtomicInteger();
+		
+		@Override
+		public Bucket get(String key) {
+			Entry entry = this.entries.get(key);
+			return entry == null ? null : entry.bucket;
+		}
+		
+		@Override
+		public boolean compareAndSet(String key, Bucket expect, Bucket update, long ttlMillis) {
+			Entry next = new Entry(update, update.stamp + ttlMillis);
+			
+			boolean swapped;
+			if (expect == null) {
+				swapped = this.entries.putIfAbsent(key, next) == null;
+			} else {
+				Entry current = this.entries.get(key);
+				swapped = current != null && current.bucket.equals(expect) && this.entries.replace(key, current, next);
+			}
+			
+			if (swapped && this.updates.incrementAndGet() % SWEEP_INTERVAL == 0)
+				this.sweep(update.stamp);
+			
+			return swapped;
+		}
+		
+		/** Drops buckets which are full again as of now */
+		private void sweep(long now) {
+			Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Entry> entry = it.next();
+				if (entry.getValue().expires < now)
+					this.entries.remove(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		/** Number of buckets currently held */
+		public int size() {
+			return this.entries.size();
+		}
+	}
+	
+	/** Rate and size of one kind of bucket */
+	private static class Limit {
+		final double perMilli;
+		final double burst;
+		
+		Limit(double perSecond, int burst) {
+			if (perSecond <= 0 || burst <= 0)
+				throw new IllegalArgumentException("Rate and burst must be positive");
+			
+			this.perMilli = perSecond / 1000;
+			this.burst = burst;
+		}
+		
+		/** Millis for an empty bucket to fill */
+		long ttl() {
+			return (long)Math.ceil(this.burst / this.perMilli);
+		}
+	}
+	
+	/** */
+	private Store store;
+	private String prefix = "batchfb:";
+	
+	/** Null means that kind of bucket isn't limited */
+	private volatile Limit appLimit;
+	private volatile Limit tokenLimit;
+	
+	/** */
+	private volatile long maxWait = Long.MAX_VALUE;
+	
+	/** */
+	private AtomicLong admitted = new AtomicLong();
+	private AtomicLong rejected = new AtomicLong();
+	private AtomicLong waited = new AtomicLong();
+	
+	/** Keeps buckets in memory */
+	public RateLimiter() {
+		this(new MemoryStore());
+	}
+	
+	/**
+	 * @param store holds the buckets; share one between machines to share the limits.
+	 */
+	public RateLimiter(Store store) {
+		this.store = store;
+	}
+	
+	/**
+	 * Limits the graph requests made on behalf of each app id.  Facebook states app limits
+	 * per hour, so for 200 calls per hour this would be setAppLimit(200 / 3600.0, 200).
+	 * 
+	 * @param perSecond is the sustained rate
+	 * @param burst is how many permits can be spent at once after a quiet period
+	 */
+	public void setAppLimit(double perSecond, int burst) {
+		this.appLimit = new Limit(perSecond, burst);
+	}
+	
+	/**
+	 * Limits the graph requests made with each access token; see setAppLimit().
+	 */
+	public void setTokenLimit(double perSecond, int burst) {
+		this.tokenLimit = new Limit(perSecond, burst);
+	}
+	
+	/**
+	 * How long a batch may wait for admission before RateLimitedException is thrown.
+	 * 
+	 * @param millis can be 0 to fail fast; the default is to wait as long as it takes.
+	 */
+	public void setMaxWait(long millis) {
+		this.maxWait = millis;
+	}
+	
+	/**
+	 * Keys in the store start with this, so that several limiters (or applications) can share
+	 * one.  Default is "batchfb:".
+	 */
+	public void setKeyPrefix(String value) {
+		this.prefix = value;
+	}
+	
+	/**
+	 * Takes permits from the buckets of the app and the token, waiting if necessary.
+	 * 
+	 * @param appId can be null if there is no app limit to apply
+	 * @param accessToken can be null for unauthenticated requests
+	 * @param permits is the number of graph requests about to be sent
+	 * @throws RateLimitedException if the permits can't be had within the max wait
+	 */
+	public void acquire(String appId, String accessToken, int permits) throws RateLimitedException {
+		this.acquire(appId, accessToken, permits, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Like acquire(), but waits no longer than maxWait either, for a caller with a deadline.
+	 * 
+	 * @throws RateLimitedException if the permits can't be had within the smaller of the two waits
+	 */
+	public void acquire(String appId, String accessToken, int permits, long maxWait) throws RateLimitedException {
+		long limit = Math.min(maxWait, this.maxWait);
+		
+		Limit app = appId == null ? null : this.appLimit;
+		Limit token = accessToken == null ? null : this.tokenLimit;
+		
+		if (app == null && token == null) {
+			this.admitted.incrementAndGet();
+			return;
+		}
+		
+		String appKey = app == null ? null : this.prefix + "app:" + appId;
+		String tokenKey = token == null ? null : this.prefix + "token:" + hash(accessToken);
+		
+		long start = this.now();
+		while (true) {
+			long wait = this.tryAcquire(appKey, app, tokenKey, token, permits);
+			if (wait == 0) {
+				this.admitted.incrementAndGet();
+				this.waited.addAndGet(this.now() - start);
+				return;
+			}
+			
+			long elapsed = this.now() - start;
+			if (elapsed + wait > limit) {
+				this.rejected.incrementAndGet();
+				throw new RateLimitedException("Rate limited; " + permits + " requests could be sent in " + wait + "ms", wait);
+			}
+			
+			try {
+				this.sleep(wait);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				this.rejected.incrementAndGet();
+				throw new RateLimitedException("Interrupted while waiting for admission", wait);
+			}
+		}
+	}
+	
+	/**
+	 * Tries both buckets once, giving back what was taken from the first if the second can't pay.
+	 * 
+	 * @return 0 if admitted, otherwise how many millis until it might be
+	 */
+	private long tryAcquire(String appKey, Limit app, String tokenKey, Limit token, int permits) {
+		long wait = app == null ? 0 : this.take(appKey, app, permits);
+		if (wait > 0)
+			return wait;
+		
+		wait = token == null ? 0 : this.take(tokenKey, token, permits);
+		if (wait > 0 && app != null)
+			this.take(appKey, app, -permits);
+		
+		return wait;
+	}
+	
+	/**
+	 * Refills the bucket for the time elapsed, then takes the permits if it holds enough.
+	 * A batch bigger than the whole bucket is admitted when the bucket is full, leaving it
+	 * in debt.  Negative permits give them back.
+	 * 
+	 * @return 0 if the permits were taken, otherwise how many millis until they could be
+	 */
+	private long take(String key, Limit limit, int permits) {
+		while (true) {
+			long now = this.now();
+			Bucket current = this.store.get(key);
+			
+			double available = limit.burst;
+			if (current != null) {
+				long elapsed = Math.max(0, now - current.stamp);
+				available = Math.min(limit.burst, current.permits + elapsed * limit.perMilli);
+			}
+			
+			double needed = Math.min(permits, limit.burst);
+			if (permits > 0 && available < needed)
+				return Math.max(1, (long)Math.ceil((needed - available) / limit.perMilli));
+			
+			Bucket update = new Bucket(Math.min(limit.burst, available - permits), now);
+			if (this.store.compareAndSet(key, current, update, limit.ttl()))
+				return 0;
+		}
+	}
+	
+	/** Tokens are secrets; the store (and the QueryCache) only ever sees a digest */
+	static String hash(String accessToken) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Hex.encodeHexString(digest.digest(accessToken.getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/** The clock; buckets shared between machines need wall time rather than System.nanoTime() */
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+	
+	/** */
+	protected void sleep(long millis) throws InterruptedException {
+		Thread.sleep(millis);
+	}
+	
+	/** Number of batches let through */
+	public long getAdmittedCount() {
+		return this.admitted.get();
+	}
+	
+	/** Number of batches refused with RateLimitedException */
+	public long getRejectedCount() {
+		return this.rejected.get();
+	}
+	
+	/** Total millis batches spent waiting for admission */
+	public long getWaitMillis() {
+		return this.waited.get();
+	}
+}
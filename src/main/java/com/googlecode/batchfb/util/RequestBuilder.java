@@ -22,12 +22,18 @@
 
 package com.googlecode.batchfb.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * <p>For building and executing requests.</p>
@@ -51,9 +57,11 @@ public class RequestBuilder {
 		InputStream getContentStream() throws IOException;
 	}
 	
-	/** Used as a param value when user submits binary attachments */
+	/** Used as a param value when user submits binary attachments; holds a stream, a file, or a buffer */
 	public static class BinaryAttachment {
 		InputStream data;
+		File file;
+		ByteBuffer buffer;
 		String contentType;
 		String filename;
 		
@@ -62,6 +70,28 @@ public class RequestBuilder {
 			this.contentType = contentType;
 			this.filename = filename;
 		}
+		
+		BinaryAttachment(File file, String contentType, String filename) {
+			this.file = file;
+			this.contentType = contentType;
+			this.filename = filename;
+		}
+		
+		BinaryAttachment(ByteBuffer buffer, String contentType, String filename) {
+			this.buffer = buffer;
+			this.contentType = contentType;
+			this.filename = filename;
+		}
+		
+		/** @return the number of bytes, or -1 if it can't be known without reading a stream */
+		long length() {
+			if (this.file != null)
+				return this.file.length();
+			else if (this.buffer != null)
+				return this.buffer.remaining();
+			else
+				return -1;
+		}
 	}
 	
 	/** */
@@ -72,6 +102,14 @@ public class RequestBuilder {
 	boolean hasBinaryAttachments;
 	int timeout;	// 0 for no timeout
 	int retries;	// 0 for no retries
+	HedgePolicy hedging;	// null for no hedging
+	RequestExecutor executor;	// null for the global default
+	int gzipThreshold;	// 0 for never compressing the body
+	Deadline deadline;	// null for no deadline
+	
+	/** What happened in the last execute() */
+	AtomicInteger attempts = new AtomicInteger();	// hedges run concurrently
+	long contentLength;	// -1 if not known
 	
 	/**
 	 * Construct from a base URL like http://api.facebook.com/. It should not have any query parameters or a ?.
@@ -97,6 +135,44 @@ public class RequestBuilder {
 		this.retries = retries;
 	}
 	
+	/**
+	 * Executes the request with a particular executor instead of the global default.
+	 * @param value can be null to use RequestExecutor.instance()
+	 */
+	public void setExecutor(RequestExecutor value) {
+		this.executor = value;
+	}
+	
+	/**
+	 * Compresses urlencoded POST bodies of at least this many bytes with gzip.
+	 * @param bytes can be 0 to never compress, which is the default
+	 */
+	public void setGzipThreshold(int bytes) {
+		this.gzipThreshold = bytes;
+	}
+	
+	/**
+	 * @return the number of http requests made by the last execute(), including retries and hedges
+	 */
+	public int getAttempts() {
+		return this.attempts.get();
+	}
+	
+	/**
+	 * @return the size of the body sent by the last execute(), after compression; -1 if not known (multipart)
+	 */
+	public long getContentLength() {
+		return this.contentLength;
+	}
+	
+	/**
+	 * Allows the request to be hedged; only do this if it is safe to send twice.
+	 * @param policy can be null to disable hedging
+	 */
+	public void setHedging(HedgePolicy policy) {
+		this.hedging = policy;
+	}
+	
 	/**
 	 * Adds a parameter, urlencoding both the name and value
 	 */
@@ -115,6 +191,31 @@ public class RequestBuilder {
 		this.hasBinaryAttachments = true;
 	}
 	
+	/**
+	 * Adds a file attachment, which is streamed from disk when the request is sent (and re-read
+	 * on retry). Request method must be POST; causes the type to be multipart/form-data
+	 */
+	public void addParam(String name, File file, String contentType, String filename) {
+		if (this.method != HttpMethod.POST)
+			throw new IllegalStateException("May only add binary attachment to POST, not to " + this.method);
+		
+		this.params.put(name, new BinaryAttachment(file, contentType, filename));
+		this.hasBinaryAttachments = true;
+	}
+	
+	/**
+	 * Adds the remaining bytes of the buffer (eg, a mapped region of a file) as an attachment.
+	 * The buffer's position is not changed, so it can be resent on retry. Request method must
+	 * be POST; causes the type to be multipart/form-data
+	 */
+	public void addParam(String name, ByteBuffer buffer, String contentType, String filename) {
+		if (this.method != HttpMethod.POST)
+			throw new IllegalStateException("May only add binary attachment to POST, not to " + this.method);
+		
+		this.params.put(name, new BinaryAttachment(buffer, contentType, filename));
+		this.hasBinaryAttachments = true;
+	}
+	
 	/**
 	 * Adds a header.  Value is not encoded in any particular way.
 	 */
@@ -129,6 +230,14 @@ public class RequestBuilder {
 		this.timeout = millis;
 	}
 	
+	/**
+	 * Bounds every attempt by the time remaining, so that retries can't outlast the deadline.
+	 * @param value can be null for no deadline
+	 */
+	public void setDeadline(Deadline value) {
+		this.deadline = value;
+	}
+	
 	/**
 	 * @return the URL + the queryString as if for a GET request
 	 */
@@ -156,26 +265,60 @@ public class RequestBuilder {
 		if (log.isLoggable(Level.FINER))
 			log.finer(meth + "ing: " + url);
 
-		return RequestExecutor.instance().execute(this.retries, new RequestSetup() {
+		RequestExecutor exec = (this.executor != null) ? this.executor : RequestExecutor.instance();
+		
+		// Build the body once, no matter how many times the request is attempted
+		byte[] formContent = null;
+		boolean formCompressed = false;
+		if (meth == HttpMethod.POST && !this.params.isEmpty() && !this.hasBinaryAttachments) {
+			String queryString = this.createQueryString();
+			
+			if (log.isLoggable(Level.FINER))
+				log.finer("POST data is: " + queryString);
+			
+			formContent = queryString.getBytes("utf-8");
+			
+			if (this.gzipThreshold > 0 && formContent.length >= this.gzipThreshold) {
+				formContent = gzip(formContent);
+				formCompressed = true;
+			}
+		}
+		
+		final byte[] content = formContent;
+		final boolean compressed = formCompressed;
+		
+		this.contentLength = (content != null) ? content.length : (this.hasBinaryAttachments ? -1 : 0);
+		this.attempts.set(0);
+		
+		return exec.execute(this.retries, new RequestSetup() {
 			public void setup(RequestDefinition req) throws IOException {
+				attempts.incrementAndGet();
 				req.init(meth, url);
 				
 				for (Map.Entry<String, String> header: headers.entrySet())
 					req.setHeader(header.getKey(), header.getValue());
 				
-				if (timeout > 0)
-					req.setTimeout(timeout);
+				int millis = timeout;
+				if (deadline != null) {
+					long remaining = deadline.remainingMillis();
+					if (remaining <= 0)
+						throw new SocketTimeoutException("Deadline passed before attempt " + attempts.get());
+					
+					if (millis <= 0 || remaining < millis)
+						millis = (int)Math.min(remaining, Integer.MAX_VALUE);
+				}
+				
+				if (millis > 0)
+					req.setTimeout(millis);
 				
 				if (meth == HttpMethod.POST && !params.isEmpty()) {
 					if (!hasBinaryAttachments) {
-						String queryString = createQueryString();
-						
-						if (log.isLoggable(Level.FINER))
-							log.finer("POST data is: " + queryString);
-						
 						// This is more efficient if we don't have any binary attachments
 						req.setHeader("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
-						req.setContent(queryString.getBytes("utf-8"));
+						if (compressed)
+							req.setHeader("Content-Encoding", "gzip");
+						
+						req.setContent(content);
 					} else {
 						log.finer("POST contains binary data, sending multipart/form-data");
 						
@@ -185,7 +328,16 @@ public class RequestBuilder {
 					}
 				}
 			}
-		});
+		}, this.hedging);
+	}
+	
+	/** */
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(data);
+		out.close();
+		return bytes.toByteArray();
 	}
 	
 	/**
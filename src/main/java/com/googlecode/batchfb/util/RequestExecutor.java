@@ -22,7 +22,12 @@
 
 package com.googlecode.batchfb.util;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import com.googlecode.batchfb.util.RequestBuilder.HttpResponse;
 
@@ -30,9 +35,16 @@ import com.googlecode.batchfb.util.RequestBuilder.HttpResponse;
 /**
  * <p>Allows requests to be executed given the character of a particular platform or http library.</p>
  * 
+ * <p>There is a global default instance, but each FacebookBatcher can be given its own so that
+ * different kinds of traffic don't compete for the same connections and threads.  Executors
+ * may own resources; close() them when you are done.</p>
+ * 
  * @author Jeff Schnitzer
  */
-abstract public class RequestExecutor {
+abstract public class RequestExecutor implements Closeable {
+
+	/** Executors should send this as Accept-Encoding, and decode() what comes back */
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
 
 	/** */
 	private static RequestExecutor current;
@@ -59,4 +71,40 @@ abstract public class RequestExecutor {
 	 * Executes the specified request, up to the number of retries allowed.
 	 */
 	abstract public HttpResponse execute(int retries, RequestSetup setup) throws IOException;
+	
+	/**
+	 * Wraps a response body in the appropriate decompressor, if the server compressed it.
+	 * 
+	 * @param contentEncoding is the value of the Content-Encoding header, possibly null
+	 */
+	protected static InputStream decode(InputStream body, String contentEncoding) throws IOException {
+		if (contentEncoding == null)
+			return body;
+		
+		String encoding = contentEncoding.trim().toLowerCase(Locale.ENGLISH);
+		if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+			return new GZIPInputStream(body, 8192);
+		else if (encoding.equals("deflate"))
+			return new InflaterInputStream(body);
+		else
+			return body;
+	}
+	
+	/**
+	 * Releases any resources (threads, connections) held by this executor.  Requests
+	 * still in progress may be aborted.  The default implementation does nothing.
+	 */
+	@Override
+	public void close() throws IOException {
+	}
+	
+	/**
+	 * Executes the specified request, hedging it according to the policy if this executor knows
+	 * how; see CancellableRequestExecutor.  This implementation ignores the policy.
+	 * 
+	 * @param hedging can be null, in which case this is the same as execute(retries, setup).
+	 */
+	public HttpResponse execute(int retries, RequestSetup setup, HedgePolicy hedging) throws IOException {
+		return this.execute(retries, setup);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.util;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.introspect.VisibilityChecker.Std;
+import com.googlecode.batchfb.err.IOFacebookException;
+
+/**
+ * <p>An ObjectMapper configured the way BatchFB needs it, plus a cache of ObjectReaders
+ * keyed by result type.  Jackson keeps its (expensive) serializer and deserializer caches
+ * inside the mapper, so sharing one instance across all FacebookBatchers means the cost of
+ * introspecting your classes is paid once per JVM rather than once per batcher.</p>
+ *
+ * <p>The default instance is shared by every FacebookBatcher which has not been given
+ * its own.  It must not be reconfigured; if you need different mapping behavior, create
+ * your own SharedMapper (or call FacebookBatcher.getMapper(), which gives that batcher a
+ * private copy).</p>
+ *
+ * <p>Result types can be pre-warmed at startup so that the first request doesn't pay
+ * for introspection:</p>
+ *
+ * <pre>
+ * {@code
+ * SharedMapper.instance().prewarm(User.class, Post.class);
+ * SharedMapper.instance().prewarm(new TypeReference<Paged<Post>>(){});
+ * }
+ * </pre>
+ *
+ * @author Jeff Schnitzer
+ */
+public class SharedMapper {
+
+	/** The default, shared by all batchers */
+	private static final SharedMapper DEFAULT = new SharedMapper(createMapper());
+
+	/** Gets the instance shared by all batchers by default */
+	public static SharedMapper instance() { return DEFAULT; }
+
+	/**
+	 * Creates a fresh ObjectMapper with the configuration that BatchFB expects.
+	 */
+	public static ObjectMapper createMapper() {
+		ObjectMapper mapper = new ObjectMapper();
+
+		// This allows us to deserialize private fields
+		mapper.setVisibilityChecker(Std.defaultInstance().withFieldVisibility(Visibility.NON_PRIVATE));
+
+		// Shouldn't force users to create classes with all fields
+		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+		// We don't want to send null values to FB for things like omit_response_on_success
+		mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+		// Facebook uses underscores, not camelcase
+		mapper.setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
+
+		return mapper;
+	}
+
+	/** */
+	private ObjectMapper mapper;
+
+	/** Readers are immutable and hold on to their root deserializer, so they are worth keeping */
+	private ConcurrentMap<JavaType, ObjectReader> readers = new ConcurrentHashMap<JavaType, ObjectReader>();
+	
+	/** Saves constructing a JavaType for every request */
+	private ConcurrentMap<Class<?>, JavaType> types = new ConcurrentHashMap<Class<?>, JavaType>();
+
+	/**
+	 * @param mapper should already be fully configured; see createMapper().
+	 */
+	public SharedMapper(ObjectMapper mapper) {
+		this.mapper = mapper;
+	}
+
+	/**
+	 * Gets the underlying mapper.  Don't change its configuration if this SharedMapper is
+	 * used by more than one batcher.
+	 */
+	public ObjectMapper getMapper() {
+		return this.mapper;
+	}
+
+	/**
+	 * Gets the JavaType for a simple class, creating (and caching) it if necessary.
+	 */
+	public JavaType constructType(Class<?> clazz) {
+		JavaType type = this.types.get(clazz);
+		if (type == null) {
+			type = this.mapper.constructType(clazz);
+			this.types.put(clazz, type);
+		}
+		
+		return type;
+	}
+	
+	/**
+	 * Gets a reader for the type, creating (and caching) it if necessary.
+	 */
+	public ObjectReader reader(JavaType type) {
+		ObjectReader reader = this.readers.get(type);
+		if (reader == null) {
+			reader = this.mapper.reader(type);
+
+			ObjectReader existing = this.readers.putIfAbsent(type, reader);
+			if (existing != null)
+				reader = existing;
+		}
+
+		return reader;
+	}
+
+	/**
+	 * Maps a node onto the type.  Equivalent to ObjectMapper.convertValue() but uses
+	 * the cached reader, and does not copy nodes when a node type is asked for.  Other
+	 * types, even Object, still go through the reader.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T convert(JsonNode node, JavaType type) {
+		if (node == null)
+			return null;
+
+		if (JsonNode.class.isAssignableFrom(type.getRawClass()) && type.getRawClass().isInstance(node))
+			return (T)node;
+
+		try {
+			return this.reader(type).readValue(node);
+		} catch (IOException ex) {
+			throw new IOFacebookException(ex);
+		}
+	}
+
+	/**
+	 * Registers the types and forces Jackson to build (and cache) their deserializers now,
+	 * rather than on first use.  Call this at application startup.
+	 */
+	public void prewarm(Class<?>... types) {
+		for (Class<?> type: types)
+			this.prewarm(this.constructType(type));
+	}
+
+	/**
+	 * Registers the generic type and forces Jackson to build (and cache) its deserializer now.
+	 */
+	public void prewarm(TypeReference<?> type) {
+		this.prewarm(this.mapper.getTypeFactory().constructType(type));
+	}
+
+	/**
+	 * Registers the type and forces Jackson to build (and cache) its deserializer now.
+	 */
+	public void prewarm(JavaType type) {
+		this.mapper.canDeserialize(type);
+		this.reader(type);
+	}
+}
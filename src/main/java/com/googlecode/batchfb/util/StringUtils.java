@@ -81,19 +81,46 @@ public final class StringUtils
 	}
 
 	/**
-	 * Reads an input stream into a String, encoding with UTF-8
+	 * Reads an input stream into a String, encoding with UTF-8.  Always closes the stream.
 	 */
 	public static String read(InputStream input) {
 		try {
-			StringBuilder bld = new StringBuilder();
-			Reader reader = new InputStreamReader(input, "utf-8");
-			int ch;
-			while ((ch = reader.read()) >= 0)
-				bld.append((char)ch);
-			
-			return bld.toString();
+			try {
+				StringBuilder bld = new StringBuilder();
+				Reader reader = new InputStreamReader(input, "utf-8");
+				char[] buf = new char[4096];
+				int read;
+				while ((read = reader.read(buf)) >= 0)
+					bld.append(buf, 0, read);
+				
+				return bld.toString();
+			} finally {
+				input.close();
+			}
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
+	
+	/**
+	 * @return the number of bytes the string takes up in UTF-8, without encoding it.
+	 */
+	public static long utf8Length(String string) {
+		long length = 0;
+		for (int i=0; i<string.length(); i++) {
+			char ch = string.charAt(i);
+			if (ch < 0x80) {
+				length++;
+			} else if (ch < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(ch) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		
+		return length;
+	}
 }
\ No newline at end of file
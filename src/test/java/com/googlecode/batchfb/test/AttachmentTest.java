@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import com.googlecode.batchfb.BinaryParam;
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.Param;
+import com.googlecode.batchfb.test.util.FakeServerTestBase;
+
+/**
+ * Binary params sent as parts of a batch.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class AttachmentTest extends FakeServerTestBase
+{
+	/** */
+	@Test
+	public void uploadsFilesInBatch() throws Exception {
+		byte[] image = new byte[100000];
+		for (int i=0; i<image.length; i++)
+			image[i] = (byte)i;
+		
+		File file = File.createTempFile("batchfb", ".jpg");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(image);
+		out.close();
+		
+		this.server.graph("POST", "me/photos", 200, "{\"id\":\"10\"}");
+		
+		Later<String> first = this.batcher.post("me/photos", new Param("message", "first"), new BinaryParam("source", file, "image/jpeg"));
+		Later<String> second = this.batcher.post("me/photos", new BinaryParam("source", file, "image/jpeg"));
+		
+		assert first.get().equals("10");
+		assert second.get().equals("10");
+		assert this.server.getRequestCount() == 1;
+		
+		assert this.server.getLastBatch().get(0).get("attached_files").asText().equals("file0");
+		assert this.server.getLastBatch().get(0).get("relative_url").asText().equals("me/photos?message=first");
+		assert this.server.getLastBatch().get(1).get("attached_files").asText().equals("file1");
+		assert this.server.getLastBatch().get(1).get("relative_url").asText().equals("me/photos");
+		
+		assert Arrays.equals(this.server.getLastAttachments().get("file0"), image);
+		assert Arrays.equals(this.server.getLastAttachments().get("file1"), image);
+		
+		// Files have a known size, so the body was streamed with a Content-Length
+		assert this.server.getLastContentLength() > 2 * image.length;
+	}
+
+	
+	/** */
+	@Test
+	public void uploadsStreamsInBatch() throws Exception {
+		byte[] image = new byte[] { 1, 2, 3, 13, 10, 4 };
+		
+		this.server.graph("POST", "me/photos", 200, "{\"id\":\"10\"}");
+		
+		Later<String> photo = this.batcher.post("me/photos", new BinaryParam("source", new ByteArrayInputStream(image), "image/jpeg"));
+		
+		assert photo.get().equals("10");
+		assert Arrays.equals(this.server.getLastAttachments().get("file0"), image);
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.test;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.googlecode.batchfb.GraphRequest;
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.QueryRequest;
+import com.googlecode.batchfb.TimedLater;
+import com.googlecode.batchfb.err.DeadlineExceededException;
+import com.googlecode.batchfb.test.util.FakeGraphServer.Latency;
+import com.googlecode.batchfb.test.util.FakeServerTestBase;
+import com.googlecode.batchfb.util.Deadline;
+
+/**
+ * Deadlines, timeouts, and cancellation of pending requests.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class DeadlineTest extends FakeServerTestBase
+{
+	/** */
+	@Test
+	public void expiredRequestsAreLeftOut() throws Exception {
+		this.server.graph("1", "{\"id\":\"1\"}");
+		this.server.graph("2", "{\"id\":\"2\"}");
+		
+		GraphRequest<User> late = this.batcher.graph("1", User.class);
+		late.setDeadline(Deadline.after(0, TimeUnit.MILLISECONDS));
+		GraphRequest<User> fine = this.batcher.graph("2", User.class);
+		
+		assert fine.get().id.equals("2");
+		assert this.server.getLastBatch().size() == 1;
+		
+		try {
+			late.get();
+			assert false;
+		} catch (DeadlineExceededException ex) {}
+		
+		// When the batcher's deadline has passed, nothing is sent at all
+		this.batcher.setDeadline(Deadline.after(0, TimeUnit.MILLISECONDS));
+		Later<User> never = this.batcher.graph("2", User.class);
+		try {
+			never.get();
+			assert false;
+		} catch (DeadlineExceededException ex) {}
+		
+		assert this.server.getRequestCount() == 1;
+	}
+
+	
+	/** */
+	@Test
+	public void getWithTimeoutBoundsTheCall() throws Exception {
+		this.server.graph("1", "{\"id\":\"1\"}");
+		this.server.latency(Latency.fixed(500));
+		
+		TimedLater<User> one = this.batcher.graph("1", User.class);
+		
+		long start = System.currentTimeMillis();
+		try {
+			one.get(100, TimeUnit.MILLISECONDS);
+			assert false;
+		} catch (DeadlineExceededException ex) {
+			assert ex.getCause() != null;
+		}
+		assert System.currentTimeMillis() - start < 400;
+		
+		// The call was abandoned, so the next get() sends the batch again
+		assert one.get(5, TimeUnit.SECONDS).id.equals("1");
+		assert this.server.getRequestCount() == 2;
+		
+		// Once there is a value, the timeout doesn't matter
+		assert one.get(0, TimeUnit.MILLISECONDS).id.equals("1");
+	}
+	
+	/** */
+	@Test
+	public void getWithTimeoutBoundsTheWaitForABatchInFlight() throws Exception {
+		this.server.graph("1", "{\"id\":\"1\"}");
+		this.server.latency(Latency.fixed(500));
+		
+		final TimedLater<User> one = this.batcher.graph("1", User.class);
+		
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				one.get();
+			}
+		};
+		sender.start();
+		Thread.sleep(100);
+		
+		long start = System.currentTimeMillis();
+		try {
+			one.get(100, TimeUnit.MILLISECONDS);
+			assert false;
+		} catch (DeadlineExceededException ex) {}
+		assert System.currentTimeMillis() - start < 400;
+		
+		sender.join();
+		assert one.get().id.equals("1");
+		assert this.server.getRequestCount() == 1;
+	}
+	
+	/** */
+	@Test
+	public void getWithTimeoutLeavesOtherBatchesAlone() throws Exception {
+		this.server.graph("1", "{\"id\":\"1\"}");
+		this.server.graph("2", "{\"id\":\"2\"}");
+		this.server.latency(Latency.fixed(300));
+		this.batcher.setMaxBatchSize(1);
+		
+		TimedLater<User> one = this.batcher.graph("1", User.class);
+		Later<User> two = this.batcher.graph("2", User.class);
+		
+		try {
+			one.get(100, TimeUnit.MILLISECONDS);
+			assert false;
+		} catch (DeadlineExceededException ex) {}
+		
+		// Only the batch we were waiting for was sent
+		assert this.server.getRequestCount() == 1;
+		
+		assert two.get().id.equals("2");
+		assert one.get().id.equals("1");
+		assert this.server.getRequestCount() == 3;
+	}
+	
+	/** */
+	@Test
+	public void getWithTimeoutWorksForQueries() throws Exception {
+		this.server.graph("1", "{\"id\":\"1\"}");
+		this.server.query("SELECT name FROM user WHERE uid = 3", "[{\"name\":\"Sue\"}]");
+		
+		QueryRequest<List<User>> sue = this.batcher.query("SELECT name FROM user WHERE uid = 3", User.class);
+		assert sue.get(5, TimeUnit.SECONDS).get(0).name.equals("Sue");
+		
+		// The batch sent for it takes no more requests; new ones start another
+		Later<User> one = this.batcher.graph("1", User.class);
+		QueryRequest<List<User>> again = this.batcher.query("SELECT name FROM user WHERE uid = 3", User.class);
+		assert one.get().id.equals("1");
+		assert again.get().get(0).name.equals("Sue");
+		assert this.server.getRequestCount() == 2;
+	}
+
+	
+	/** */
+	@Test
+	public void cancelledRequestsArePruned() throws Exception {
+		this.server.graph("1", "{\"id\":\"1\"}");
+		this.server.graph("2", "{\"id\":\"2\"}");
+		this.server.query("SELECT name FROM user WHERE uid = 3", "[{\"name\":\"Sue\"}]");
+		
+		GraphRequest<User> one = this.batcher.graph("1", User.class);
+		GraphRequest<User> two = this.batcher.graph("2", User.class);
+		QueryRequest<List<User>> sue = this.batcher.query("SELECT name FROM user WHERE uid = 3", User.class);
+		QueryRequest<List<User>> bob = this.batcher.query("SELECT name FROM user WHERE uid = 4", User.class);
+		
+		assert one.cancel();
+		assert bob.cancel();
+		assert !one.cancel();
+		
+		assert two.get().id.equals("2");
+		assert this.server.getLastBatch().size() == 2;
+		assert this.server.getLastBatch().toString().indexOf("uid+%3D+4") < 0 : this.server.getLastBatch();
+		assert sue.get().get(0).name.equals("Sue");
+		assert !two.cancel();
+		
+		try {
+			one.get();
+			assert false;
+		} catch (CancellationException ex) {}
+		
+		// Once the last query is gone, so is the multiquery
+		GraphRequest<User> again = this.batcher.graph("1", User.class);
+		QueryRequest<List<User>> gone = this.batcher.query("SELECT name FROM user WHERE uid = 3", User.class);
+		assert gone.cancel();
+		assert again.get().id.equals("1");
+		assert this.server.getLastBatch().size() == 1;
+		
+		// Parts of a batch which has already come back are dropped
+		GraphRequest<User> first = this.batcher.graph("1", User.class);
+		GraphRequest<User> second = this.batcher.graph("2", User.class);
+		assert first.get().id.equals("1");
+		assert second.cancel();
+		
+		try {
+			second.get();
+			assert false;
+		} catch (CancellationException ex) {}
+		
+		assert this.server.getRequestCount() == 3;
+	}
+	
+	/** */
+	@Test
+	public void cancelDoesNotWaitForABatchInFlight() throws Exception {
+		this.server.graph("1", "{\"id\":\"1\"}");
+		this.server.graph("2", "{\"id\":\"2\"}");
+		this.server.latency(Latency.fixed(500));
+		
+		final GraphRequest<User> one = this.batcher.graph("1", User.class);
+		GraphRequest<User> two = this.batcher.graph("2", User.class);
+		
+		final RuntimeException[] failure = new RuntimeException[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					one.get();
+				} catch (RuntimeException ex) {
+					failure[0] = ex;
+				}
+			}
+		};
+		reader.start();
+		Thread.sleep(100);
+		
+		long start = System.currentTimeMillis();
+		assert one.cancel();
+		assert two.cancel();
+		assert System.currentTimeMillis() - start < 200;
+		
+		reader.join();
+		assert failure[0] instanceof CancellationException : failure[0];
+		
+		try {
+			two.get();
+			assert false;
+		} catch (CancellationException ex) {}
+		
+		assert this.server.getRequestCount() == 1;
+	}
+}
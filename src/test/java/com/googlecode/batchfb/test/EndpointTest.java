@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.test;
+
+import org.testng.annotations.Test;
+
+import com.googlecode.batchfb.FacebookBatcher;
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.test.util.FakeGraphServer.Latency;
+import com.googlecode.batchfb.test.util.FakeServerTestBase;
+import com.googlecode.batchfb.util.EndpointSelector;
+import com.googlecode.batchfb.util.HedgePolicy;
+
+/**
+ * Failover between endpoints and hedging of slow reads.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class EndpointTest extends FakeServerTestBase
+{
+	/** */
+	@Test
+	public void failsOverWhenEndpointIsDown() throws Exception {
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		
+		// Nothing listens on port 1
+		EndpointSelector endpoints = new EndpointSelector("http://127.0.0.1:1/", this.server.getEndpoint());
+		endpoints.setExploration(0);
+		
+		FacebookBatcher first = new FacebookBatcher("token");
+		first.setGraphEndpoints(endpoints);
+		assert first.graph("me", User.class).get().name.equals("Bob");
+		double deadErrorRate = endpoints.getErrorRate("http://127.0.0.1:1/");
+		assert deadErrorRate > 0;
+		
+		// Now it knows better
+		FacebookBatcher second = new FacebookBatcher("token");
+		second.setGraphEndpoints(endpoints);
+		assert second.graph("me", User.class).get().name.equals("Bob");
+		assert endpoints.getErrorRate("http://127.0.0.1:1/") == deadErrorRate;
+		assert this.server.getRequestCount() == 2;
+	}
+
+	
+	/** */
+	@Test
+	public void latencyStopsWhenTheResponseArrives() throws Exception {
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		
+		EndpointSelector endpoints = new EndpointSelector(this.server.getEndpoint());
+		FacebookBatcher batcher = new FacebookBatcher("token");
+		batcher.setGraphEndpoints(endpoints);
+		
+		// Nobody reads the response for a while
+		Later<User> me = batcher.graph("me", User.class);
+		batcher.execute();
+		Thread.sleep(300);
+		
+		assert me.get().name.equals("Bob");
+		assert endpoints.getLatency(this.server.getEndpoint()) < 200 : endpoints.getLatency(this.server.getEndpoint());
+	}
+
+	
+	/** */
+	@Test
+	public void hedgesSlowReads() throws Exception {
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		
+		HedgePolicy hedging = new HedgePolicy(0.9, 0.5);
+		hedging.setMinSamples(5);
+		
+		for (int i=0; i<5; i++) {
+			FacebookBatcher warmup = new FacebookBatcher("token");
+			warmup.setGraphEndpoint(this.server.getEndpoint());
+			warmup.setHedging(hedging);
+			warmup.graph("me", User.class).get();
+		}
+		assert hedging.getHedgeCount() == 0;
+		
+		// The next request is stuck, its duplicate is not
+		this.server.latency(Latency.sequence(2000, 0));
+		
+		FacebookBatcher batcher = new FacebookBatcher("token");
+		batcher.setGraphEndpoint(this.server.getEndpoint());
+		batcher.setHedging(hedging);
+		
+		long start = System.currentTimeMillis();
+		assert batcher.graph("me", User.class).get().name.equals("Bob");
+		assert System.currentTimeMillis() - start < 1000;
+		assert hedging.getHedgeCount() == 1;
+		assert this.server.getRequestCount() == 7;
+	}
+
+	
+	/** */
+	@Test
+	public void writesAreNotHedged() throws Exception {
+		this.server.graph("POST", "me/feed", 200, "{\"id\":\"1_2\"}");
+		
+		HedgePolicy hedging = new HedgePolicy(0.5, 1);
+		hedging.setMinSamples(1);
+		hedging.record(1);
+		
+		this.server.latency(Latency.fixed(200));
+		this.batcher.setHedging(hedging);
+		this.batcher.post("me/feed").get();
+		
+		assert hedging.getRequestCount() == 0;
+		assert this.server.getRequestCount() == 1;
+	}
+}
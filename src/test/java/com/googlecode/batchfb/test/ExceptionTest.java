@@ -25,9 +25,16 @@ package com.googlecode.batchfb.test;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.googlecode.batchfb.FacebookBatcher;
 import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.err.ErrorFacebookException;
+import com.googlecode.batchfb.err.FacebookException;
 import com.googlecode.batchfb.err.OAuthException;
 import com.googlecode.batchfb.err.PageMigratedException;
+import com.googlecode.batchfb.err.PermissionException;
+import com.googlecode.batchfb.impl.ErrorDetectingWrapper;
 import com.googlecode.batchfb.test.util.TestBase;
+import com.googlecode.batchfb.util.JSONUtils;
+import com.googlecode.batchfb.util.Now;
+import com.googlecode.batchfb.util.SharedMapper;
 import org.testng.annotations.Test;
 
 /**
@@ -79,4 +86,74 @@ public class ExceptionTest extends TestBase {
 			assert ex.getNewId() == 111013272313096L;
 		}
 	}
+
+	/**
+	 * Runs the json through error detection
+	 */
+	private void detect(String json) {
+		JsonNode node = JSONUtils.toNode(json, SharedMapper.instance().getMapper());
+		new ErrorDetectingWrapper(new Now<JsonNode>(node)).get();
+	}
+
+	/**
+	 * Standard graph errors are mapped by type
+	 */
+	@Test(expectedExceptions=OAuthException.class)
+	public void standardErrorMappedByType() throws Exception {
+		this.detect("{\"error\":{\"message\":\"Invalid OAuth access token.\",\"type\":\"OAuthException\",\"code\":190}}");
+	}
+
+	/**
+	 * Permission errors are mapped by code, ahead of type
+	 */
+	@Test(expectedExceptions=PermissionException.class)
+	public void standardErrorMappedByCode() throws Exception {
+		this.detect("{\"error\":{\"message\":\"Requires extended permission\",\"type\":\"OAuthException\",\"code\":200}}");
+	}
+
+	/**
+	 * Unknown types become the generic exception
+	 */
+	@Test
+	public void unknownErrorType() throws Exception {
+		try {
+			this.detect("{\"error\":{\"message\":\"Something odd\",\"type\":\"BogusException\",\"code\":1,\"error_subcode\":2}}");
+			assert false;
+		} catch (ErrorFacebookException ex) {
+			assert ex.getClass() == ErrorFacebookException.class;
+			assert ex.getCode() == 1;
+			assert ex.getSubcode() == 2;
+		}
+	}
+
+	/**
+	 * Migration ids are parsed out of the message
+	 */
+	@Test
+	public void pageMigratedWithoutSubcode() throws Exception {
+		try {
+			this.detect("{\"error\":{\"message\":\"(#21) Page ID 114267748588304 was migrated to page ID 111013272313096.\",\"type\":\"OAuthException\",\"code\":21}}");
+			assert false;
+		} catch (PageMigratedException ex) {
+			assert ex.getOldId() == 114267748588304L;
+			assert ex.getNewId() == 111013272313096L;
+		}
+	}
+
+	/**
+	 */
+	@Test
+	public void stacklessExceptions() throws Exception {
+		FacebookException.setStackless(PermissionException.class, true);
+		try {
+			this.detect("{\"error\":{\"message\":\"Nope\",\"type\":\"OAuthException\",\"code\":10}}");
+			assert false;
+		} catch (PermissionException ex) {
+			assert ex.getStackTrace().length == 0;
+		} finally {
+			FacebookException.setStackless(PermissionException.class, false);
+		}
+
+		assert new PermissionException("Nope", null, 10, null, null, null).getStackTrace().length > 0;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.test;
+
+import org.testng.annotations.Test;
+
+import com.googlecode.batchfb.FacebookBatcher;
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.Param;
+import com.googlecode.batchfb.err.IOFacebookException;
+import com.googlecode.batchfb.err.OAuthException;
+import com.googlecode.batchfb.test.util.FakeGraphServer.Latency;
+import com.googlecode.batchfb.test.util.FakeServerTestBase;
+import com.googlecode.batchfb.util.DefaultRequestExecutor;
+
+/**
+ * Connection handling and compression in the request executors.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class ExecutorTest extends FakeServerTestBase
+{
+	/** */
+	@Test
+	public void ownExecutorLimitsConnections() throws Exception {
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		this.server.latency(Latency.fixed(200));
+		
+		final DefaultRequestExecutor executor = new DefaultRequestExecutor(1);
+		try {
+			final FacebookBatcher other = new FacebookBatcher("token");
+			other.setGraphEndpoint(this.server.getEndpoint());
+			other.setExecutor(executor);
+			this.batcher.setExecutor(executor);
+			
+			long start = System.currentTimeMillis();
+			
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					other.graph("me", User.class).get();
+				}
+			};
+			thread.start();
+			
+			assert this.batcher.graph("me", User.class).get().name.equals("Bob");
+			thread.join();
+			
+			// One had to wait for the other
+			assert System.currentTimeMillis() - start >= 400;
+		} finally {
+			executor.close();
+		}
+		
+		FacebookBatcher closed = new FacebookBatcher("token");
+		closed.setGraphEndpoint(this.server.getEndpoint());
+		closed.setExecutor(executor);
+		try {
+			closed.graph("me", User.class).get();
+			assert false;
+		} catch (IOFacebookException ex) {}
+	}
+
+	
+	/** */
+	@Test
+	public void unreadBodyHoldsItsConnection() throws Exception {
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		
+		DefaultRequestExecutor executor = new DefaultRequestExecutor(1);
+		try {
+			this.batcher.setExecutor(executor);
+			Later<User> first = this.batcher.graph("me", User.class);
+			this.batcher.execute();
+			
+			FacebookBatcher other = new FacebookBatcher("token");
+			other.setGraphEndpoint(this.server.getEndpoint());
+			other.setExecutor(executor);
+			final Later<User> second = other.graph("me", User.class);
+			
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					second.get();
+				}
+			};
+			thread.start();
+			
+			// The first batch has its status but nobody has read its body
+			thread.join(300);
+			assert thread.isAlive();
+			
+			assert first.get().name.equals("Bob");
+			thread.join(5000);
+			assert !thread.isAlive();
+			assert second.get().name.equals("Bob");
+		} finally {
+			executor.close();
+		}
+	}
+
+	
+	/** */
+	@Test
+	public void responsesAreDrained() throws Exception {
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		this.server.graphError("denied", 403, "OAuthException", 200, null, "(#200) Permissions error");
+		
+		DefaultRequestExecutor executor = new DefaultRequestExecutor();
+		try {
+			for (int i=0; i<3; i++) {
+				FacebookBatcher batcher = new FacebookBatcher("token");
+				batcher.setGraphEndpoint(this.server.getEndpoint());
+				batcher.setExecutor(executor);
+				
+				Later<User> me = batcher.graph("me", User.class);
+				batcher.graph("denied", User.class);
+				me.get();
+			}
+			
+			assert executor.getRequestCount() == 3;
+			assert executor.getDrainedCount() == 3;
+			assert executor.getDiscardedCount() == 0;
+			assert executor.getTLSConnectionCount() == 0;
+		} finally {
+			executor.close();
+		}
+	}
+
+	
+	/** */
+	@Test
+	public void compressesBothWays() throws Exception {
+		StringBuilder name = new StringBuilder();
+		for (int i=0; i<1000; i++)
+			name.append("Bob ");
+		
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"" + name + "\"}");
+		
+		this.batcher.setGzipThreshold(100);
+		Later<User> me = this.batcher.graph("me", User.class, new Param("fields", name.toString()));
+		
+		assert me.get().name.equals(name.toString());
+		assert this.server.getCompressedRequestCount() == 1;
+		assert this.server.getCompressedResponseCount() == 1;
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.googlecode.batchfb.FacebookBatcher;
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.QueryRequest;
+import com.googlecode.batchfb.err.BulkheadFullException;
+import com.googlecode.batchfb.err.CircuitOpenException;
+import com.googlecode.batchfb.err.DeadlineExceededException;
+import com.googlecode.batchfb.err.IOFacebookException;
+import com.googlecode.batchfb.err.RateLimitedException;
+import com.googlecode.batchfb.test.util.FakeGraphServer.Latency;
+import com.googlecode.batchfb.test.util.FakeServerTestBase;
+import com.googlecode.batchfb.util.Bulkhead;
+import com.googlecode.batchfb.util.CircuitBreaker;
+import com.googlecode.batchfb.util.Deadline;
+import com.googlecode.batchfb.util.DefaultRequestExecutor;
+import com.googlecode.batchfb.util.HistogramListener;
+import com.googlecode.batchfb.util.RateLimiter;
+
+/**
+ * Rate limiting, circuit breaking, and bulkheads.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class FlowControlTest extends FakeServerTestBase
+{
+	/** */
+	@Test
+	public void rateLimiterCountsRequestsNotCalls() throws Exception {
+		this.server.graph("1", "{\"id\":\"1\"}");
+		this.server.graph("2", "{\"id\":\"2\"}");
+		this.server.graph("3", "{\"id\":\"3\"}");
+		
+		RateLimiter limiter = new RateLimiter();
+		limiter.setTokenLimit(0.001, 2);
+		limiter.setMaxWait(0);
+		this.batcher.setRateLimiter(limiter, "app");
+		
+		Later<User> one = this.batcher.graph("1", User.class);
+		Later<User> two = this.batcher.graph("2", User.class);
+		assert one.get().id.equals("1");
+		assert two.get().id.equals("2");
+		
+		// The budget is shared with every other batcher using the same limiter
+		FacebookBatcher other = new FacebookBatcher("token", "v2.0");
+		other.setGraphEndpoint(this.server.getEndpoint());
+		other.setRateLimiter(limiter, "app");
+		
+		Later<User> three = other.graph("3", User.class);
+		try {
+			three.get();
+			assert false;
+		} catch (RateLimitedException ex) {
+			assert ex.getRetryAfterMillis() > 0;
+		}
+		
+		assert this.server.getRequestCount() == 1;
+		assert limiter.getAdmittedCount() == 1;
+		assert limiter.getRejectedCount() == 1;
+	}
+
+	
+	/** */
+	@Test
+	public void circuitBreakerFailsFastAndProbes() throws Exception {
+		this.server.graph("1", "{\"id\":\"1\"}");
+		
+		CircuitBreaker breaker = new CircuitBreaker(new DefaultRequestExecutor());
+		breaker.setMinCalls(2);
+		breaker.setOpenMillis(200);
+		
+		// Nothing listens on port 1, so these fail to connect
+		for (int i=0; i<2; i++) {
+			FacebookBatcher down = new FacebookBatcher("token", "v2.0");
+			down.setGraphEndpoint("http://127.0.0.1:1/");
+			down.setExecutor(breaker);
+			try {
+				down.graph("1", User.class).get();
+				assert false;
+			} catch (IOFacebookException ex) {
+				assert !(ex instanceof CircuitOpenException);
+			}
+		}
+		
+		assert breaker.getState() == CircuitBreaker.State.OPEN;
+		assert breaker.getErrors().get("ConnectException") == 2;
+		
+		// Even a healthy endpoint isn't called while the circuit is open
+		HistogramListener listener = new HistogramListener();
+		this.batcher.setExecutor(breaker);
+		this.batcher.setListener(listener);
+		
+		Later<User> one = this.batcher.graph("1", User.class);
+		try {
+			one.get();
+			assert false;
+		} catch (CircuitOpenException ex) {
+			assert ex.getRetryAfterMillis() <= 200;
+		}
+		
+		assert this.server.getRequestCount() == 0;
+		assert breaker.getRejectedCount() == 1;
+		assert listener.getBatchErrors().get("CircuitOpenException") == 1;
+		
+		// Once the period is up, a successful probe closes it
+		Thread.sleep(250);
+		assert one.get().id.equals("1");
+		assert breaker.getState() == CircuitBreaker.State.CLOSED;
+		assert this.server.getRequestCount() == 1;
+	}
+
+	
+	/** */
+	@Test
+	public void circuitBreakerCanTripOnFirstFailure() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(new DefaultRequestExecutor());
+		breaker.setMinCalls(10);
+		breaker.setTripImmediately(Collections.<Class<? extends IOException>>singleton(ConnectException.class));
+		
+		FacebookBatcher down = new FacebookBatcher("token", "v2.0");
+		down.setGraphEndpoint("http://127.0.0.1:1/");
+		down.setExecutor(breaker);
+		try {
+			down.graph("1", User.class).get();
+			assert false;
+		} catch (IOFacebookException ex) {
+			assert !(ex instanceof CircuitOpenException);
+		}
+		
+		assert breaker.getState() == CircuitBreaker.State.OPEN;
+	}
+
+	
+	/** */
+	@Test
+	public void bulkheadBoundsQueueAndFlight() throws Exception {
+		for (int i=1; i<=5; i++)
+			this.server.graph("" + i, "{\"id\":\"" + i + "\"}");
+		
+		Bulkhead bulk = new Bulkhead("bulk", 1, 3);
+		bulk.setMaxWait(0);
+		this.batcher.setBulkhead(bulk);
+		
+		// The fourth request doesn't fit, so the first three are sent to make room
+		List<Later<User>> users = new ArrayList<Later<User>>();
+		for (int i=1; i<=4; i++)
+			users.add(this.batcher.graph("" + i, User.class));
+		
+		assert this.server.getRequestCount() == 1;
+		assert bulk.getQueued() == 1;
+		
+		// The batch sent stays in flight until its body has been read
+		assert bulk.getInFlight() == 1;
+		assert users.get(0).get().id.equals("1");
+		assert bulk.getInFlight() == 0;
+		
+		users.add(this.batcher.graph("5", User.class));
+		users.add(this.batcher.graph("5", User.class));
+		assert bulk.getQueued() == 3;
+		
+		// Another batcher in the same compartment has nothing of its own to send
+		FacebookBatcher other = new FacebookBatcher("token", "v2.0");
+		other.setGraphEndpoint(this.server.getEndpoint());
+		other.setBulkhead(bulk);
+		try {
+			other.graph("5", User.class);
+			assert false;
+		} catch (BulkheadFullException ex) {}
+		
+		// Only one batch may be in flight
+		this.server.latency(Latency.fixed(300));
+		final Later<User> slow = users.get(3);
+		Thread sender = new Thread() {
+			@Override
+			public void run() { slow.get(); }
+		};
+		sender.start();
+		Thread.sleep(100);
+		
+		assert bulk.getInFlight() == 1;
+		assert bulk.getQueued() == 0;
+		Later<User> blocked = other.graph("5", User.class);
+		try {
+			blocked.get();
+			assert false;
+		} catch (BulkheadFullException ex) {}
+		
+		sender.join();
+		assert bulk.getInFlight() == 0;
+		assert bulk.getQueued() == 0;
+		assert blocked.get().id.equals("5");
+		assert users.get(0).get().id.equals("1");
+		assert bulk.getRejectedCount() == 2;
+	}
+	
+	/** */
+	@Test
+	public void bulkheadCountsEachQueryInAMultiquery() throws Exception {
+		for (int i=1; i<=3; i++)
+			this.server.query("SELECT name FROM user WHERE uid = " + i, "[{\"name\":\"" + i + "\"}]");
+		
+		Bulkhead bulk = new Bulkhead("bulk", 0, 2);
+		bulk.setMaxWait(0);
+		this.batcher.setBulkhead(bulk);
+		
+		QueryRequest<List<User>> one = this.batcher.query("SELECT name FROM user WHERE uid = 1", User.class);
+		QueryRequest<List<User>> two = this.batcher.query("SELECT name FROM user WHERE uid = 2", User.class);
+		assert bulk.getQueued() == 2;
+		
+		// A cancelled query gives its place back, even though the multiquery stays
+		assert two.cancel();
+		assert bulk.getQueued() == 1;
+		
+		// The third doesn't fit with the first two, so they are sent to make room
+		this.batcher.query("SELECT name FROM user WHERE uid = 2", User.class);
+		QueryRequest<List<User>> three = this.batcher.query("SELECT name FROM user WHERE uid = 3", User.class);
+		assert this.server.getRequestCount() == 1;
+		assert bulk.getQueued() == 1;
+		
+		assert one.get().get(0).name.equals("1");
+		assert three.get().get(0).name.equals("3");
+		assert bulk.getQueued() == 0;
+	}
+	
+	/** */
+	@Test
+	public void admissionWaitsNoLongerThanTheDeadline() throws Exception {
+		this.server.graph("1", "{\"id\":\"1\"}");
+		this.server.graph("2", "{\"id\":\"2\"}");
+		
+		// The limiter alone would wait ten seconds for the second batch
+		RateLimiter limiter = new RateLimiter();
+		limiter.setTokenLimit(0.1, 1);
+		this.batcher.setRateLimiter(limiter, "app");
+		assert this.batcher.graph("1", User.class).get().id.equals("1");
+		
+		this.batcher.setDeadline(Deadline.after(100, TimeUnit.MILLISECONDS));
+		long start = System.currentTimeMillis();
+		try {
+			this.batcher.graph("2", User.class).get();
+			assert false;
+		} catch (DeadlineExceededException ex) {
+			assert ex.getCause() instanceof RateLimitedException;
+		}
+		assert System.currentTimeMillis() - start < 1000;
+		
+		// The bulkhead alone would wait for the batch in flight
+		Bulkhead bulk = new Bulkhead("bulk", 1, 0);
+		FacebookBatcher sending = new FacebookBatcher("token", "v2.0");
+		sending.setGraphEndpoint(this.server.getEndpoint());
+		sending.setBulkhead(bulk);
+		FacebookBatcher bounded = new FacebookBatcher("token", "v2.0");
+		bounded.setGraphEndpoint(this.server.getEndpoint());
+		bounded.setBulkhead(bulk);
+		this.server.latency(Latency.fixed(500));
+		
+		final Later<User> slow = sending.graph("1", User.class);
+		Thread sender = new Thread() {
+			@Override
+			public void run() { slow.get(); }
+		};
+		sender.start();
+		Thread.sleep(100);
+		
+		bounded.setDeadline(Deadline.after(100, TimeUnit.MILLISECONDS));
+		start = System.currentTimeMillis();
+		try {
+			bounded.graph("2", User.class).get();
+			assert false;
+		} catch (DeadlineExceededException ex) {
+			assert ex.getCause() instanceof BulkheadFullException;
+		}
+		assert System.currentTimeMillis() - start < 350;
+		
+		sender.join();
+		assert this.server.getRequestCount() == 2;
+	}
+}
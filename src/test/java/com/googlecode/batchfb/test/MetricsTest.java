@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.test;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.googlecode.batchfb.GraphRequest;
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.QueryRequest;
+import com.googlecode.batchfb.ResponseInfo;
+import com.googlecode.batchfb.err.OAuthException;
+import com.googlecode.batchfb.test.util.FakeServerTestBase;
+import com.googlecode.batchfb.util.HistogramListener;
+
+/**
+ * What the batcher reports about batches and their parts.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class MetricsTest extends FakeServerTestBase
+{
+	/** */
+	@Test
+	public void listenerSeesBatchesAndParts() throws Exception {
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		this.server.graphError("2", 400, "OAuthException", 190, null, "Bad token");
+		
+		HistogramListener listener = new HistogramListener();
+		this.batcher.setListener(listener);
+		
+		Later<User> me = this.batcher.graph("me", User.class);
+		Later<User> two = this.batcher.graph("2", User.class);
+		
+		assert me.get().name.equals("Bob");
+		try {
+			two.get();
+			assert false;
+		} catch (OAuthException ex) {}
+		
+		assert listener.getBatchCount() == 1;
+		assert listener.getRequestsPerCall() == 2.0;
+		assert listener.getRetryCount() == 0;
+		assert listener.getHttpStatuses().get(200) == 1;
+		assert listener.getPartCodes().get(200) == 1;
+		assert listener.getPartCodes().get(400) == 1;
+		assert listener.getPartErrors().get("OAuthException") == 1;
+		assert listener.getBatchErrors().isEmpty();
+		assert listener.getRequestBytes().getMax() > 0;
+		assert listener.getResponseBytes().getMax() > 0;
+		assert listener.getMapMicros().getCount() == 2;
+		assert listener.getWaitMicros().getCount() == 2;
+		assert listener.getNetworkMicros().getCount() == 1;
+	}
+
+	
+	/** */
+	@Test
+	public void networkTimeStopsWhenTheResponseArrives() throws Exception {
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		
+		HistogramListener listener = new HistogramListener();
+		this.batcher.setListener(listener);
+		
+		// Nobody reads the response for a while
+		GraphRequest<User> me = this.batcher.graph("me", User.class);
+		this.batcher.execute();
+		Thread.sleep(300);
+		
+		assert me.get().name.equals("Bob");
+		assert listener.getNetworkMicros().getMax() < 200000 : listener.getNetworkMicros();
+		assert me.getResponseInfo().getBatchNetworkNanos() < 200000000L;
+	}
+
+	
+	/** */
+	@Test
+	public void responseInfoDescribesParts() throws Exception {
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"B\u00f6b\"}");
+		this.server.graphError("2", 400, "OAuthException", 190, null, "Bad token");
+		this.server.query("SELECT name FROM user WHERE uid = 3", "[{\"name\":\"Sue\"}]");
+		
+		GraphRequest<User> me = this.batcher.graph("me", User.class);
+		GraphRequest<User> two = this.batcher.graph("2", User.class);
+		QueryRequest<List<User>> sue = this.batcher.query("SELECT name FROM user WHERE uid = 3", User.class);
+		
+		assert me.getResponseInfo() == null;
+		
+		me.get();
+		ResponseInfo info = me.getResponseInfo();
+		assert info.getCode() == 200;
+		assert info.getHeader("content-type").startsWith("text/javascript");
+		assert info.getAppUsage() != null;
+		assert info.getBodyBytes() == "{\"id\":\"1\",\"name\":\"B\u00f6b\"}".getBytes("utf-8").length;
+		assert info.getBatchResponseBytes() > info.getBodyBytes();
+		assert info.getBatchNetworkNanos() >= 0;
+		assert info.getBatchParseNanos() >= 0;
+		
+		try {
+			two.get();
+			assert false;
+		} catch (OAuthException ex) {}
+		assert two.getResponseInfo().getCode() == 400;
+		assert two.getResponseInfo().getBatchId() == info.getBatchId();
+		
+		sue.get();
+		assert sue.getResponseInfo().getCode() == 200;
+		assert sue.getResponseInfo().getBatchId() == info.getBatchId();
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.test;
+
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.googlecode.batchfb.FacebookBatcher;
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.PagedLater;
+import com.googlecode.batchfb.err.ErrorFacebookException;
+import com.googlecode.batchfb.err.OAuthException;
+import com.googlecode.batchfb.err.PermissionException;
+import com.googlecode.batchfb.impl.Batch;
+import com.googlecode.batchfb.test.util.FakeGraphServer.Latency;
+import com.googlecode.batchfb.test.util.FakeServerTestBase;
+import com.googlecode.batchfb.util.SharedMapper;
+
+/**
+ * Exercises the basics of the batcher against the FakeGraphServer, so these run without a token or network.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class OfflineBatchTest extends FakeServerTestBase
+{
+	/** */
+	@Test
+	public void graphAndQueryInOneBatch() throws Exception {
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		this.server.graph("2", "{\"id\":\"2\",\"name\":\"Fred\"}");
+		this.server.query("SELECT name FROM user WHERE uid = 3", "[{\"name\":\"Sue\"}]");
+		
+		Later<User> me = this.batcher.graph("me", User.class);
+		Later<User> fred = this.batcher.graph("2", User.class);
+		Later<List<User>> sue = this.batcher.query("SELECT name FROM user WHERE uid = 3", User.class);
+		
+		assert me.get().name.equals("Bob");
+		assert fred.get().name.equals("Fred");
+		assert sue.get().get(0).name.equals("Sue");
+		assert this.server.getRequestCount() == 1;
+		assert this.server.getLastBatch().size() == 3;
+	}
+
+	
+	/** */
+	@Test
+	public void pagingFollowsLinks() throws Exception {
+		this.server.paged("me/friends", "[{\"id\":\"1\"},{\"id\":\"2\"},{\"id\":\"3\"},{\"id\":\"4\"},{\"id\":\"5\"}]", 2);
+		
+		PagedLater<User> page = this.batcher.paged("me/friends", User.class);
+		assert page.get().size() == 2;
+		assert page.previous() == null;
+		
+		page = page.next();
+		assert page.get().get(0).id.equals("3");
+		
+		page = page.next();
+		assert page.get().size() == 1;
+		assert page.next() == null;
+		assert page.previous().get().get(0).id.equals("3");
+	}
+
+	
+	/** */
+	@Test
+	public void errorFormats() throws Exception {
+		this.server.graphError("denied", 403, "OAuthException", 200, null, "(#200) Permissions error");
+		this.server.restError("legacy", 602, "bogus is not a member of the user table.");
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		
+		Later<User> denied = this.batcher.graph("denied", User.class);
+		Later<User> legacy = this.batcher.graph("legacy", User.class);
+		Later<User> missing = this.batcher.graph("missing", User.class);
+		Later<User> me = this.batcher.graph("me", User.class);
+		
+		try {
+			denied.get();
+			assert false;
+		} catch (PermissionException ex) {}
+		
+		try {
+			legacy.get();
+			assert false;
+		} catch (ErrorFacebookException ex) {
+			assert ex.getCode() == 602;
+		}
+		
+		try {
+			missing.get();
+			assert false;
+		} catch (OAuthException ex) {
+			assert ex.getCode() == 803;
+		}
+		
+		// One bad part doesn't spoil the rest
+		assert me.get().name.equals("Bob");
+	}
+
+	
+	/** */
+	@Test
+	public void resolvedRequestLetsGoOfBatch() throws Exception {
+		this.server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+		this.server.graph("2", "{\"id\":\"2\",\"name\":\"Fred\"}");
+		
+		Batch batch = new Batch(this.batcher, SharedMapper.instance(), this.batcher.getGraphEndpoints(), "token", "v2.0", 0, 0);
+		Later<User> me = batch.graph("me", User.class);
+		batch.graph("2", User.class);	// never claimed
+		
+		WeakReference<Batch> ref = new WeakReference<Batch>(batch);
+		batch = null;
+		
+		assert me.get().name.equals("Bob");
+		
+		// Holding a resolved Later must not pin the batch, or the part nobody claimed
+		for (int i=0; i<10 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		
+		assert ref.get() == null;
+		assert me.get().name.equals("Bob");
+	}
+
+	
+	/** */
+	@Test
+	public void fusedResolution() throws Exception {
+		this.server.graph("GET", "created", 201, "{\"id\":\"1\",\"name\":\"Bob\"}");
+		this.server.graph("hidden", "false");
+		this.server.restError("legacy", 602, "bogus is not a member of the user table.");
+		this.server.graph("tricky", "{\"id\":\"2\",\"name\":\"error_code\"}");
+		
+		Later<User> created = this.batcher.graph("created", User.class);
+		Later<User> hidden = this.batcher.graph("hidden", User.class);
+		Later<JsonNode> hiddenNode = this.batcher.graph("hidden");
+		Later<User> legacy = this.batcher.graph("legacy", User.class);
+		Later<User> tricky = this.batcher.graph("tricky", User.class);
+		
+		// Any 2XX is bound straight from the body
+		assert created.get().name.equals("Bob");
+		
+		// "false" means no permission; it is null on the typed path and the tree path alike
+		assert hidden.get() == null;
+		assert hiddenNode.get() == null;
+		
+		// Rest-style errors come with a 200 and must not be bound as data
+		try {
+			legacy.get();
+			assert false;
+		} catch (ErrorFacebookException ex) {
+			assert ex.getCode() == 602;
+		}
+		
+		// Merely mentioning error_code falls back to error detection, which finds nothing
+		assert tricky.get().name.equals("error_code");
+		assert this.server.getRequestCount() == 1;
+	}
+
+	
+	/** */
+	@Test(expectedExceptions = OAuthException.class)
+	public void badTokenFailsBatch() throws Exception {
+		FacebookBatcher other = new FacebookBatcher("expired");
+		other.setGraphEndpoint(this.server.getEndpoint());
+		
+		other.graph("me", User.class).get();
+	}
+
+	
+	/** */
+	@Test
+	public void latencyIsSlowestPart() throws Exception {
+		this.server.latency(Latency.fixed(50));
+		this.server.graph("fast", "{}").latency("fast", Latency.fixed(10));
+		this.server.graph("slow", "{}").latency("slow", Latency.uniform(200, 300));
+		
+		Later<User> fast = this.batcher.graph("fast", User.class);
+		this.batcher.graph("slow", User.class);
+		
+		long start = System.currentTimeMillis();
+		fast.get();
+		assert System.currentTimeMillis() - start >= 250;
+	}
+
+	
+	/** */
+	@Test
+	public void usageHeader() throws Exception {
+		this.server.appUsage(12, 3, 4);
+		
+		HttpURLConnection conn = (HttpURLConnection)new URL(this.server.getEndpoint() + "?access_token=token&batch=%5B%5D").openConnection();
+		assert conn.getResponseCode() == 200;
+		assert conn.getHeaderField("X-App-Usage").contains("\"call_count\":12");
+		conn.disconnect();
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.googlecode.batchfb.FacebookBatcher;
+import com.googlecode.batchfb.GraphRequest;
+import com.googlecode.batchfb.Later;
+import com.googlecode.batchfb.Param;
+import com.googlecode.batchfb.QueryRequest;
+import com.googlecode.batchfb.Request;
+import com.googlecode.batchfb.RowHandler;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.googlecode.batchfb.err.ErrorFacebookException;
+import com.googlecode.batchfb.impl.MultiqueryRequest;
+import com.googlecode.batchfb.impl.QueryNodeExtractor;
+import com.googlecode.batchfb.test.util.FakeServerTestBase;
+import com.googlecode.batchfb.type.LongList;
+import com.googlecode.batchfb.util.Now;
+import com.googlecode.batchfb.util.QueryCache;
+
+/**
+ * How FQL queries are grouped, shared, cached, streamed, and mapped, against the FakeGraphServer.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class OfflineQueryTest extends FakeServerTestBase
+{
+	/** */
+	@Test
+	public void multiqueriesAreCapped() throws Exception {
+		this.server.graph("1", "{\"id\":\"1\"}");
+		for (int i=0; i<5; i++)
+			this.server.query("SELECT name FROM user WHERE uid = " + i, "[{\"name\":\"" + i + "\"}]");
+		
+		this.batcher.setMaxBatchSize(2);
+		this.batcher.setMaxMultiquerySize(2);
+		
+		GraphRequest<User> one = this.batcher.graph("1", User.class);
+		List<QueryRequest<List<User>>> queries = new ArrayList<QueryRequest<List<User>>>();
+		for (int i=0; i<5; i++)
+			queries.add(this.batcher.query("SELECT name FROM user WHERE uid = " + i, User.class));
+		
+		for (int i=0; i<5; i++)
+			assert queries.get(i).get().get(0).name.equals("" + i);
+		
+		assert one.get().id.equals("1");
+		
+		// One graph request and a multiquery in the first batch, two multiqueries in the second
+		assert this.server.getRequestCount() == 2;
+		assert this.server.getLastBatch().size() == 2;
+		assert this.server.getLastBatch().toString().indexOf("query_requests") < 0;
+	}
+
+	
+	/** */
+	@Test
+	public void identicalQueriesAreSentOnceAndCached() throws Exception {
+		String fql = "SELECT name FROM user WHERE uid = 3";
+		this.server.query(fql, "[{\"name\":\"Sue\"}]");
+		
+		QueryCache cache = new QueryCache(1, TimeUnit.MINUTES);
+		this.batcher.setQueryCache(cache);
+		
+		QueryRequest<List<User>> one = this.batcher.query(fql, User.class);
+		QueryRequest<List<User>> two = this.batcher.query(fql, User.class);
+		Later<User> first = this.batcher.queryFirst(fql, User.class);
+		
+		assert one.get().get(0).name.equals("Sue");
+		assert two.get().get(0).name.equals("Sue");
+		assert first.get().name.equals("Sue");
+		assert this.server.getLastBatch().toString().indexOf("__q1") < 0;
+		
+		// Another batcher with the same token doesn't need to ask
+		FacebookBatcher other = new FacebookBatcher("token", "v2.0");
+		other.setGraphEndpoint(this.server.getEndpoint());
+		other.setQueryCache(cache);
+		
+		assert other.query(fql).get().get(0).path("name").asText().equals("Sue");
+		assert this.server.getRequestCount() == 1;
+		assert cache.getHitCount() == 1;
+	}
+
+	
+	/** */
+	@Test
+	public void multiqueriesLetGoOfResults() throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		ArrayNode data = (ArrayNode)mapper.readTree("[{\"name\":\"a\",\"fql_result_set\":[{\"name\":\"A\"}]},"
+				+ "{\"name\":\"b\",\"fql_result_set\":[{\"name\":\"B\"}]}]");
+		WeakReference<JsonNode> claimed = new WeakReference<JsonNode>(data.get(0).get("fql_result_set"));
+		WeakReference<JsonNode> unclaimed = new WeakReference<JsonNode>(data.get(1).get("fql_result_set"));
+		
+		MultiqueryRequest multiquery = new MultiqueryRequest(mapper, new Now<JsonNode>(data));
+		QueryRequest<JsonNode> a = new QueryRequest<JsonNode>("SELECT name FROM user WHERE uid = 1", "a", null);
+		QueryRequest<JsonNode> b = new QueryRequest<JsonNode>("SELECT name FROM user WHERE uid = 2", "b", null);
+		multiquery.addQuery(a);
+		multiquery.addQuery(b);
+		data = null;
+		
+		assert multiquery.claimResult("a").path(0).path("name").asText().equals("A");
+		
+		// As if b were cancelled after the results arrived
+		assert multiquery.removeQuery(b);
+		
+		// The response itself is still there, but holds neither result set
+		assert multiquery.get().size() == 2;
+		for (int i=0; i<10 && (claimed.get() != null || unclaimed.get() != null); i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		
+		assert claimed.get() == null;
+		assert unclaimed.get() == null;
+	}
+	
+	/** */
+	@Test
+	public void concurrentGetsClaimOnce() throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		final JsonNode data = mapper.readTree("[{\"name\":\"a\",\"fql_result_set\":[{\"name\":\"A\"}]}]");
+		
+		// Holds both threads until each is waiting, so they convert at the same time
+		final CountDownLatch both = new CountDownLatch(2);
+		MultiqueryRequest multiquery = new MultiqueryRequest(mapper, new Later<JsonNode>() {
+			@Override
+			public JsonNode get() {
+				both.countDown();
+				try {
+					both.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException ex) {
+					throw new RuntimeException(ex);
+				}
+				return data;
+			}
+		});
+		
+		QueryNodeExtractor extractor = new QueryNodeExtractor(multiquery);
+		final QueryRequest<JsonNode> a = new QueryRequest<JsonNode>("SELECT name FROM user WHERE uid = 1", "a", extractor);
+		extractor.setRequest(a);
+		QueryRequest<JsonNode> shared = new QueryRequest<JsonNode>("SELECT name FROM user WHERE uid = 1", "a", null);
+		multiquery.addQuery(a);
+		multiquery.addQuery(shared);
+		
+		final JsonNode[] results = new JsonNode[2];
+		Thread[] threads = new Thread[2];
+		for (int i=0; i<2; i++) {
+			final int which = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					results[which] = a.get();
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread: threads)
+			thread.join();
+		
+		assert results[0] != null && results[0] == results[1];
+		assert results[0].path(0).path("name").asText().equals("A");
+		
+		// The query sharing the name still has its claim
+		assert multiquery.claimResult("a").path(0).path("name").asText().equals("A");
+	}
+	
+	/** */
+	@Test
+	public void queryStreamHandsOverRows() throws Exception {
+		this.server.query("SELECT name FROM user WHERE uid IN (1, 2, 3)", "[{\"name\":\"A\"},{\"name\":\"B\"},{\"name\":\"C\"}]");
+		this.server.query("SELECT name FROM user WHERE uid = 0", "false");
+		
+		final List<String> names = new ArrayList<String>();
+		Request<Integer> rows = this.batcher.queryStream("SELECT name FROM user WHERE uid IN (1, 2, 3)", User.class, new RowHandler<User>() {
+			@Override
+			public void handle(User row) {
+				names.add(row.name);
+			}
+		});
+		Request<Integer> bad = this.batcher.queryStream("SELECT nonsense", User.class, new RowHandler<User>() {
+			@Override
+			public void handle(User row) {
+				assert false;
+			}
+		});
+		
+		assert rows.get() == 3;
+		assert names.equals(Arrays.asList("A", "B", "C"));
+		assert this.server.getRequestCount() == 1;
+		
+		// Asking again doesn't deliver the rows again
+		assert rows.get() == 3;
+		assert names.size() == 3;
+		
+		try {
+			bad.get();
+			assert false;
+		} catch (ErrorFacebookException ex) {}
+		
+		// A "false" body has no rows
+		Request<Integer> none = this.batcher.queryStream("SELECT name FROM user WHERE uid = 0", User.class, new RowHandler<User>() {
+			@Override
+			public void handle(User row) {
+				assert false;
+			}
+		});
+		assert none.get() == 0;
+	}
+
+	
+	/** */
+	@Test
+	public void idsMapToLongLists() throws Exception {
+		this.server.query("SELECT uid2 FROM friend WHERE uid1 = me()", "[{\"uid2\":\"3\"},{\"uid2\":\"1\"},{\"uid2\":\"2\"}]");
+		this.server.paged("9/members", "[{\"id\":\"2\"},{\"id\":\"3\"},{\"id\":\"4\"}]", 10);
+		
+		Request<LongList> friends = this.batcher.queryIds("SELECT uid2 FROM friend WHERE uid1 = me()");
+		GraphRequest<LongList> members = this.batcher.graph("9/members", LongList.class, new Param("fields", "id"));
+		
+		assert friends.get().equals(LongList.of(3, 1, 2));
+		assert members.get().equals(LongList.of(2, 3, 4));
+		assert friends.get().sort().intersect(members.get().sort()).equals(LongList.of(2, 3));
+		
+		// The ids came from their own fql.query, not the multiquery
+		assert this.server.getLastBatch().toString().indexOf("fql.query") >= 0;
+		assert this.server.getLastBatch().toString().indexOf("fql.multiquery") < 0;
+	}
+}
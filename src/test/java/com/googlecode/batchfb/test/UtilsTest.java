@@ -22,15 +22,28 @@
 
 package com.googlecode.batchfb.test;
 
+import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import com.googlecode.batchfb.test.util.TestBase;
 import org.testng.annotations.Test;
 
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.googlecode.batchfb.err.RateLimitedException;
+import com.googlecode.batchfb.test.util.SharedStore;
+import com.googlecode.batchfb.type.LongList;
+import com.googlecode.batchfb.util.EndpointSelector;
+import com.googlecode.batchfb.util.HedgePolicy;
+import com.googlecode.batchfb.util.HistogramListener.Histogram;
+import com.googlecode.batchfb.util.RateLimiter;
+import com.googlecode.batchfb.util.SharedMapper;
 import com.googlecode.batchfb.util.SplitterIterator;
+import com.googlecode.batchfb.util.StringUtils;
 
 /**
  * Tests of the utilities package
@@ -84,4 +97,201 @@ public class UtilsTest extends TestBase {
 		assert master.size() == 1;
 		assert master.get(0) == w1;
 	}
+	
+	/**
+	 */
+	@Test
+	public void endpointSelectorPrefersFastest() throws Exception {
+		EndpointSelector sel = new EndpointSelector("http://a/", "http://b/");
+		sel.setExploration(0);
+		
+		// Untried endpoints go first, in order
+		assert sel.select().equals("http://a/");
+		sel.success("http://a/", 120);
+		assert sel.select().equals("http://b/");
+		sel.success("http://b/", 100);
+		assert sel.select().equals("http://b/");
+		
+		// Errors count against an endpoint even if it is fast
+		sel.failure("http://b/");
+		sel.failure("http://b/");
+		sel.success("http://b/", 100);
+		assert sel.getErrorRate("http://b/") > 0.2;
+		assert sel.select().equals("http://a/");
+	}
+	
+	/**
+	 */
+	@Test
+	public void endpointSelectorEjects() throws Exception {
+		EndpointSelector sel = new EndpointSelector("http://a/", "http://b/");
+		sel.setExploration(0);
+		sel.setEjection(2, 50);
+		sel.success("http://a/", 10);
+		sel.success("http://b/", 1000);
+		
+		sel.failure("http://a/");
+		assert !sel.isEjected("http://a/");
+		sel.failure("http://a/");
+		assert sel.isEjected("http://a/");
+		assert sel.select().equals("http://b/");
+		
+		// With everything else excluded, an ejected endpoint beats nothing
+		assert sel.select(java.util.Collections.singleton("http://b/")).equals("http://a/");
+		
+		Thread.sleep(60);
+		assert !sel.isEjected("http://a/");
+		
+		// One more failure puts it straight back out
+		sel.failure("http://a/");
+		assert sel.isEjected("http://a/");
+	}
+	
+	/**
+	 */
+	@Test
+	public void readLongUtf8() throws Exception {
+		StringBuilder bld = new StringBuilder();
+		for (int i=0; i<5000; i++)
+			bld.append("h\u00e9llo \u4e16\u754c ");
+		
+		String text = bld.toString();
+		assert StringUtils.read(new ByteArrayInputStream(text.getBytes("utf-8"))).equals(text);
+	}
+	
+	/**
+	 */
+	@Test
+	public void histogramPercentiles() throws Exception {
+		Histogram hist = new Histogram();
+		for (int i=1; i<=100; i++)
+			hist.record(i);
+		
+		assert hist.getCount() == 100;
+		assert hist.getMax() == 100;
+		assert hist.getMean() == 50.5;
+		
+		// Buckets are powers of two, so these are upper bounds within 2x
+		assert hist.getPercentile(0.5) == 63;
+		assert hist.getPercentile(0.99) == 100;
+		
+		hist.record(-1);
+		assert hist.getCount() == 100;
+	}
+	
+	/** A limiter on a clock which only moves when it sleeps */
+	static class ManualLimiter extends RateLimiter {
+		long now = 1000000;
+		
+		ManualLimiter(Store store) { super(store); }
+		
+		@Override
+		protected long now() { return this.now; }
+		
+		@Override
+		protected void sleep(long millis) { this.now += millis; }
+	}
+	
+	/** */
+	@Test
+	public void rateLimiterSharesBucketsThroughStore() throws Exception {
+		SharedStore store = new SharedStore();
+		
+		// Two machines, 10 requests per second per token with bursts of 10
+		ManualLimiter one = new ManualLimiter(store);
+		ManualLimiter two = new ManualLimiter(store);
+		for (ManualLimiter limiter: new ManualLimiter[] { one, two }) {
+			limiter.setTokenLimit(10, 10);
+			limiter.setAppLimit(100, 100);
+			limiter.setMaxWait(0);
+		}
+		
+		one.acquire("app", "secret", 6);
+		two.acquire("app", "secret", 4);
+		
+		try {
+			one.acquire("app", "secret", 1);
+			assert false;
+		} catch (RateLimitedException ex) {
+			assert ex.getRetryAfterMillis() == 100;
+		}
+		
+		// The app bucket was refunded when the token bucket refused
+		assert store.getValues().get("batchfb:app:app").startsWith("90.0@");
+		for (String key: store.getValues().keySet())
+			assert !key.contains("secret");
+		
+		// Another token isn't affected
+		two.acquire("app", "other", 10);
+		
+		// After a second the bucket is full again; a batch bigger than the bucket leaves it in debt
+		one.now += 1000;
+		one.acquire("app", "secret", 30);
+		
+		// Blocking waits for the debt to be paid off plus one permit
+		one.setMaxWait(Long.MAX_VALUE);
+		long before = one.now;
+		one.acquire("app", "secret", 1);
+		assert one.now - before == 2100;
+		
+		assert one.getAdmittedCount() == 3;
+		assert one.getRejectedCount() == 1;
+		assert one.getWaitMillis() == 2100;
+	}
+	
+	/** */
+	@Test
+	public void hedgePolicyFollowsThePercentile() throws Exception {
+		HedgePolicy policy = new HedgePolicy(0.5, 1, 10);
+		policy.setMinSamples(3);
+		
+		policy.record(10);
+		policy.record(20);
+		assert policy.start() == -1;
+		
+		policy.record(30);
+		assert policy.start() == 20;
+		
+		// Once the window has turned over, the old latencies are forgotten
+		for (int i=0; i<10; i++)
+			policy.record(100 + i);
+		assert policy.start() == 104;
+	}
+	
+	/** */
+	@Test
+	public void sharedMapperOnlyPassesNodesThrough() throws Exception {
+		SharedMapper mapper = SharedMapper.instance();
+		JsonNode node = mapper.getMapper().readTree("{\"id\":\"1\"}");
+		
+		assert mapper.convert(node, mapper.constructType(JsonNode.class)) == node;
+		
+		Object plain = mapper.convert(node, mapper.constructType(Object.class));
+		assert plain instanceof Map;
+		assert ((Map<?, ?>)plain).get("id").equals("1");
+	}
+	
+	/** */
+	@Test
+	public void longListMapsIdsAndIntersects() throws Exception {
+		SharedMapper mapper = SharedMapper.instance();
+		
+		LongList bare = mapper.getMapper().readValue("[\"30\", 10, \"20\", \"10\"]", LongList.class);
+		assert bare.equals(LongList.of(30, 10, 20, 10));
+		
+		LongList rows = mapper.convert(mapper.getMapper().readTree("[{\"uid2\":\"20\",\"name\":{\"x\":1}},{\"uid2\":\"40\"}]"), mapper.constructType(LongList.class));
+		assert rows.equals(LongList.of(20, 40));
+		
+		LongList page = mapper.getMapper().readValue("{\"paging\":{\"next\":\"x\"},\"data\":[{\"id\":\"100000123456789\"}]}", LongList.class);
+		assert page.get(0) == 100000123456789L;
+		
+		assert bare.sort().equals(LongList.of(10, 20, 30));
+		assert bare.contains(20) && !bare.contains(25);
+		assert bare.intersect(rows.sort()).equals(LongList.of(20));
+		
+		try {
+			mapper.getMapper().readValue("[\"12ab\"]", LongList.class);
+			assert false;
+		} catch (JsonMappingException ex) {}
+	}
 }
\ No newline at end of file
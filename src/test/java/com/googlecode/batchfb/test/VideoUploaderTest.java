@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.googlecode.batchfb.Param;
+import com.googlecode.batchfb.VideoUploader;
+import com.googlecode.batchfb.err.ErrorFacebookException;
+import com.googlecode.batchfb.test.util.FakeGraphServer;
+
+/**
+ * Tests of resumable video upload against FakeGraphServer.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class VideoUploaderTest
+{
+	/** */
+	FakeGraphServer server;
+	File file;
+	byte[] video;
+	
+	@BeforeMethod
+	public void setUp() throws Exception {
+		this.server = new FakeGraphServer();
+		this.server.accessToken("token");
+		this.server.uploadChunkSize(10000);
+		
+		this.video = new byte[95000];
+		new Random(1).nextBytes(this.video);
+		
+		this.file = File.createTempFile("batchfb", ".mp4");
+		this.file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(this.file);
+		out.write(this.video);
+		out.close();
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		this.server.stop();
+		this.file.delete();
+	}
+	
+	/** */
+	private VideoUploader uploader() {
+		VideoUploader uploader = new VideoUploader("token", "me", this.file);
+		uploader.setGraphEndpoint(this.server.getEndpoint());
+		uploader.setApiVersion("v2.3");
+		uploader.addParam(new Param("title", "Vacation"));
+		return uploader;
+	}
+	
+	/** */
+	@Test
+	public void uploadsInChunks() throws Exception {
+		String videoId = this.uploader().upload();
+		
+		assert Arrays.equals(this.server.getVideo(videoId), this.video);
+		assert this.server.getTransferCount() == 10;
+	}
+	
+	/** */
+	@Test
+	public void resumesFromLastAcknowledgedOffset() throws Exception {
+		VideoUploader uploader = this.uploader();
+		uploader.setRetries(0);
+		
+		// Fails partway through
+		this.server.failTransfers(3, 1);
+		try {
+			uploader.upload();
+			assert false;
+		} catch (ErrorFacebookException ex) {}
+		
+		assert uploader.getOffset() == 30000;
+		
+		// Pick up in a fresh uploader, as if in another process
+		VideoUploader resumed = this.uploader();
+		resumed.resume(uploader.getUploadSessionId(), uploader.getVideoId(), uploader.getOffset());
+		String videoId = resumed.upload();
+		
+		assert videoId.equals(uploader.getVideoId());
+		assert Arrays.equals(this.server.getVideo(videoId), this.video);
+		
+		// The fresh uploader doesn't know the server's chunk size, so sends the rest at once
+		assert this.server.getTransferCount() == 5;
+	}
+	
+	/** */
+	@Test
+	public void retriesTransientFailures() throws Exception {
+		this.server.failTransfers(2);
+		
+		String videoId = this.uploader().upload();
+		
+		assert Arrays.equals(this.server.getVideo(videoId), this.video);
+		assert this.server.getTransferCount() == 12;
+	}
+	
+	/** */
+	@Test
+	public void transfersInParallel() throws Exception {
+		VideoUploader uploader = this.uploader();
+		uploader.setParallelism(4);
+		uploader.setChunkSize(7000);
+		
+		String videoId = uploader.upload();
+		
+		assert Arrays.equals(this.server.getVideo(videoId), this.video);
+		assert this.server.getTransferCount() == 14;
+	}
+}
@@ -0,0 +1,781 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.googlecode.batchfb.test.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.googlecode.batchfb.util.StringUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>An in-process imitation of the parts of the Graph API that BatchFB talks to: the batch
+ * endpoint, fql.multiquery, paged connections, and the three error formats that
+ * ErrorDetectingWrapper knows about.  Point a batcher at it with:</p>
+ * 
+ * <pre>
+ * FakeGraphServer server = new FakeGraphServer();
+ * server.graph("me", "{\"id\":\"1\",\"name\":\"Bob\"}");
+ * 
+ * FacebookBatcher batcher = new FacebookBatcher("token");
+ * batcher.setGraphEndpoint(server.getEndpoint());
+ * </pre>
+ * 
+ * <p>Responses are gzipped for clients which accept it, and gzipped request bodies are
+ * understood.</p>
+ * 
+ * <p>Latency can be scripted for the whole server and per path; a batch takes the server
+ * latency plus the slowest of its parts, like the real thing.  Every response carries
+ * an X-App-Usage header, as does every batch part.</p>
+ * 
+ * <p>Resumable video uploads ({target}/videos with upload_phase start, transfer and finish)
+ * are accepted outside of batches.  Chunks may arrive in any order; the server always asks
+ * for the lowest offset it hasn't received.</p>
+ * 
+ * <p>Requests are handled on a thread pool so it can be used as a load test target.</p>
+ * 
+ * @author Jeff Schnitzer
+ */
+public class FakeGraphServer {
+	
+	/**
+	 * A distribution of response delays, in milliseconds.
+	 */
+	abstract public static class Latency {
+		/** */
+		abstract public long next(Random rnd);
+		
+		/** Always the same delay */
+		public static Latency fixed(final long millis) {
+			return new Latency() {
+				public long next(Random rnd) { return millis; }
+			};
+		}
+		
+		/** Evenly distributed between min and max */
+		public static Latency uniform(final long min, final long max) {
+			return new Latency() {
+				public long next(Random rnd) { return min + (long)(rnd.nextDouble() * (max - min)); }
+			};
+		}
+		
+		/** Cycles through the delays in order, eg to make exactly one request slow */
+		public static Latency sequence(final long... millis) {
+			final AtomicInteger next = new AtomicInteger();
+			return new Latency() {
+				public long next(Random rnd) { return millis[next.getAndIncrement() % millis.length]; }
+			};
+		}
+		
+		/** Mostly fast with a long tail, like real network calls */
+		public static Latency exponential(final long min, final double mean) {
+			return new Latency() {
+				public long next(Random rnd) { return min + (long)(-Math.log(1 - rnd.nextDouble()) * mean); }
+			};
+		}
+	}
+	
+	/** A canned response for a graph path */
+	static class Fixture {
+		int code;
+		String body;
+		Latency latency;
+		
+		/** If not null, this is a paged connection; body is ignored */
+		ArrayNode items;
+		int pageSize;
+	}
+	
+	/** A resumable upload session */
+	static class Upload {
+		String videoId;
+		byte[] data;
+		BitSet received;
+	}
+	
+	/** Strips a version like v2.0/ off the front of relative urls */
+	private static final Pattern VERSION = Pattern.compile("^v\\d+\\.\\d+/");
+	
+	/** */
+	private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+	
+	/** */
+	private ObjectMapper mapper = new ObjectMapper();
+	
+	/** */
+	private HttpServer server;
+	private ExecutorService executor;
+	
+	/** Keyed by "METHOD path" */
+	private Map<String, Fixture> graph = new ConcurrentHashMap<String, Fixture>();
+	
+	/** Keyed by fql, values are result sets */
+	private Map<String, JsonNode> queries = new ConcurrentHashMap<String, JsonNode>();
+	
+	/** If set, the whole batch fails with this */
+	private volatile Fixture batchFailure;
+	
+	/** If set, requests with any other token fail */
+	private volatile String accessToken;
+	
+	/** */
+	private volatile Latency latency = Latency.fixed(0);
+	
+	/** Value of the X-App-Usage header */
+	private volatile String appUsage = "{\"call_count\":0,\"total_cputime\":0,\"total_time\":0}";
+	
+	/** */
+	private Random random = new Random();
+	
+	/** */
+	private volatile boolean compressResponses = true;
+	
+	/** Keyed by upload session id */
+	private Map<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+	
+	/** Finished uploads, keyed by video id */
+	private Map<String, byte[]> videos = new ConcurrentHashMap<String, byte[]>();
+	
+	/** */
+	private volatile long uploadChunkSize = 64 * 1024;
+	private AtomicInteger passTransfers = new AtomicInteger();
+	private AtomicInteger failTransfers = new AtomicInteger();
+	private AtomicInteger transfers = new AtomicInteger();
+	private AtomicInteger nextId = new AtomicInteger(1000);
+	
+	/** */
+	private AtomicInteger requestCount = new AtomicInteger();
+	private AtomicInteger compressedRequests = new AtomicInteger();
+	private AtomicInteger compressedResponses = new AtomicInteger();
+	private volatile JsonNode lastBatch;
+	private volatile Map<String, byte[]> lastAttachments = Collections.emptyMap();
+	private volatile long lastContentLength = -1;
+	
+	/**
+	 * Starts a server on an ephemeral port on the loopback interface.
+	 */
+	public FakeGraphServer() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.executor = Executors.newCachedThreadPool();
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					FakeGraphServer.this.handle(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		this.server.start();
+	}
+	
+	/** Shuts down immediately */
+	public void stop() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+	
+	/** The url to pass to FacebookBatcher.setGraphEndpoint() */
+	public String getEndpoint() {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort() + "/";
+	}
+	
+	/** Number of http requests received so far */
+	public int getRequestCount() {
+		return this.requestCount.get();
+	}
+	
+	/** Number of requests which came with a gzipped body */
+	public int getCompressedRequestCount() {
+		return this.compressedRequests.get();
+	}
+	
+	/** Number of responses which were sent gzipped */
+	public int getCompressedResponseCount() {
+		return this.compressedResponses.get();
+	}
+	
+	/** Whether to gzip responses for clients which accept it; default true */
+	public FakeGraphServer compressResponses(boolean value) {
+		this.compressResponses = value;
+		return this;
+	}
+	
+	/** The batch parameter of the most recent request, parsed */
+	public JsonNode getLastBatch() {
+		return this.lastBatch;
+	}
+	
+	/** File parts of the most recent multipart request, by part name */
+	public Map<String, byte[]> getLastAttachments() {
+		return this.lastAttachments;
+	}
+	
+	/** Content-Length of the most recent request, or -1 if it was chunked or had no body */
+	public long getLastContentLength() {
+		return this.lastContentLength;
+	}
+	
+	/** The chunk size the server asks video uploaders for; default 64k */
+	public FakeGraphServer uploadChunkSize(long bytes) {
+		this.uploadChunkSize = bytes;
+		return this;
+	}
+	
+	/** The next count video chunk transfers fail with a transient error */
+	public FakeGraphServer failTransfers(int count) {
+		return this.failTransfers(0, count);
+	}
+	
+	/** After the next pass video chunk transfers succeed, count of them fail with a transient error */
+	public FakeGraphServer failTransfers(int pass, int count) {
+		this.passTransfers.set(pass);
+		this.failTransfers.set(count);
+		return this;
+	}
+	
+	/** Number of video chunk transfers attempted, including failures */
+	public int getTransferCount() {
+		return this.transfers.get();
+	}
+	
+	/** The contents of a finished video upload, or null if there isn't one */
+	public byte[] getVideo(String videoId) {
+		return this.videos.get(videoId);
+	}
+	
+	/** Answers GET requests for the path */
+	public FakeGraphServer graph(String path, String json) {
+		return this.graph("GET", path, 200, json);
+	}
+	
+	/** Answers requests for the path with the specified http method */
+	public FakeGraphServer graph(String method, String path, int code, String body) {
+		Fixture fix = new Fixture();
+		fix.code = code;
+		fix.body = body;
+		this.graph.put(method + " " + path, fix);
+		return this;
+	}
+	
+	/**
+	 * Serves the items as a paged connection; clients get pages of pageSize (or the limit they
+	 * ask for) along with next and previous links.
+	 * 
+	 * @param items must be a json array
+	 */
+	public FakeGraphServer paged(String path, String items, int pageSize) {
+		Fixture fix = new Fixture();
+		fix.code = 200;
+		fix.items = (ArrayNode)this.parse(items);
+		fix.pageSize = pageSize;
+		this.graph.put("GET " + path, fix);
+		return this;
+	}
+	
+	/** A standard graph error: {"error":{"message":..., "type":..., "code":...}} */
+	public FakeGraphServer graphError(String path, int httpCode, String type, int code, Integer subcode, String message) {
+		ObjectNode root = NODES.objectNode();
+		ObjectNode error = root.putObject("error");
+		error.put("message", message);
+		error.put("type", type);
+		error.put("code", code);
+		if (subcode != null)
+			error.put("error_subcode", subcode);
+		
+		return this.graph("GET", path, httpCode, root.toString());
+	}
+	
+	/** An old rest-style error, which comes back with a 200: {"error_code":..., "error_msg":...} */
+	public FakeGraphServer restError(String path, int code, String message) {
+		return this.graph("GET", path, 200, this.restErrorBody(code, message).toString());
+	}
+	
+	/**
+	 * Makes the whole batch fail in the funky batch-level format:
+	 * {"error":190,"error_description":"..."}.  Pass 0 to stop failing.
+	 */
+	public FakeGraphServer batchError(int code, String description) {
+		if (code == 0) {
+			this.batchFailure = null;
+		} else {
+			ObjectNode root = NODES.objectNode();
+			root.put("error", code);
+			root.put("error_description", description);
+			
+			Fixture fix = new Fixture();
+			fix.code = 400;
+			fix.body = root.toString();
+			this.batchFailure = fix;
+		}
+		return this;
+	}
+	
+	/** Requests with any other access token will fail at the batch level, like an expired token */
+	public FakeGraphServer accessToken(String token) {
+		this.accessToken = token;
+		return this;
+	}
+	
+	/** Results for an fql query, which must match exactly */
+	public FakeGraphServer query(String fql, String resultSet) {
+		this.queries.put(fql, this.parse(resultSet));
+		return this;
+	}
+	
+	/** Delay applied to every http request */
+	public FakeGraphServer latency(Latency value) {
+		this.latency = value;
+		return this;
+	}
+	
+	/** Additional delay whenever a batch includes the path; only the slowest part counts */
+	public FakeGraphServer latency(String path, Latency value) {
+		for (String method: new String[] { "GET", "POST", "DELETE" }) {
+			Fixture fix = this.graph.get(method + " " + path);
+			if (fix != null)
+				fix.latency = value;
+		}
+		return this;
+	}
+	
+	/** Sets what the X-App-Usage header reports, in percent of the app's limits */
+	public FakeGraphServer appUsage(int callCount, int totalCputime, int totalTime) {
+		this.appUsage = "{\"call_count\":" + callCount + ",\"total_cputime\":" + totalCputime + ",\"total_time\":" + totalTime + "}";
+		return this;
+	}
+	
+	/** */
+	private void handle(HttpExchange exchange) throws IOException {
+		this.requestCount.incrementAndGet();
+		
+		String path = exchange.getRequestURI().getPath();
+		boolean upload = path.endsWith("/videos");
+		if (!path.equals("/") && !upload && !VERSION.matcher(path.substring(1)).matches()) {
+			this.respond(exchange, 404, this.graphErrorBody("GraphMethodException", 100, "Unsupported request: " + path).toString(), 0);
+			return;
+		}
+		
+		Map<String, String> params = parseForm(exchange.getRequestURI().getRawQuery());
+		Map<String, byte[]> attachments = Collections.emptyMap();
+		if (exchange.getRequestMethod().equals("POST")) {
+			String length = exchange.getRequestHeaders().getFirst("Content-Length");
+			this.lastContentLength = (length == null) ? -1 : Long.parseLong(length);
+			
+			InputStream body = exchange.getRequestBody();
+			if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+				this.compressedRequests.incrementAndGet();
+				body = new GZIPInputStream(body);
+			}
+			
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			if (contentType != null && contentType.startsWith("multipart/form-data")) {
+				attachments = new LinkedHashMap<String, byte[]>();
+				parseMultipart(readAll(body), contentType.substring(contentType.indexOf("boundary=") + "boundary=".length()), params, attachments);
+			} else {
+				params.putAll(parseForm(new String(readAll(body), "utf-8")));
+			}
+		}
+		this.lastAttachments = attachments;
+		
+		Fixture failure = this.batchFailure;
+		if (failure == null && this.accessToken != null && !this.accessToken.equals(params.get("access_token"))) {
+			failure = new Fixture();
+			failure.code = 400;
+			failure.body = "{\"error\":190,\"error_description\":\"Invalid OAuth access token.\"}";
+		}
+		
+		if (failure != null) {
+			this.respond(exchange, failure.code, failure.body, 0);
+			return;
+		}
+		
+		if (upload) {
+			this.upload(exchange, params, attachments);
+			return;
+		}
+		
+		String batchParam = params.get("batch");
+		if (batchParam == null) {
+			this.respond(exchange, 400, this.graphErrorBody("GraphMethodException", 100, "Only batch requests are supported").toString(), 0);
+			return;
+		}
+		
+		JsonNode batch = this.parse(batchParam);
+		this.lastBatch = batch;
+		
+		ArrayNode result = NODES.arrayNode();
+		long slowest = 0;
+		
+		for (JsonNode part: batch) {
+			String method = part.has("method") ? part.get("method").asText() : "GET";
+			String body = part.has("body") ? part.get("body").asText() : null;
+			Fixture fix = this.answer(method, part.path("relative_url").asText(), body);
+			
+			if (part.has("attached_files")) {
+				for (String file: part.get("attached_files").asText().split(",")) {
+					if (!attachments.containsKey(file)) {
+						fix = new Fixture();
+						fix.code = 400;
+						fix.body = this.graphErrorBody("OAuthException", 324, "Missing or invalid image file").toString();
+					}
+				}
+			}
+			
+			if (fix.latency != null)
+				slowest = Math.max(slowest, fix.latency.next(this.random));
+			
+			if (fix.code / 100 == 2 && part.path("omit_response_on_success").asBoolean(false)) {
+				result.addNull();
+			} else {
+				ObjectNode out = result.addObject();
+				out.put("code", fix.code);
+				ArrayNode headers = out.putArray("headers");
+				this.header(headers, "Content-Type", "text/javascript; charset=UTF-8");
+				this.header(headers, "X-App-Usage", this.appUsage);
+				out.put("body", fix.body);
+			}
+		}
+		
+		this.respond(exchange, 200, result.toString(), slowest);
+	}
+	
+	/**
+	 * Handles one phase of a resumable video upload.
+	 */
+	private void upload(HttpExchange exchange, Map<String, String> params, Map<String, byte[]> attachments) throws IOException {
+		String phase = params.get("upload_phase");
+		ObjectNode result = NODES.objectNode();
+		
+		if ("start".equals(phase)) {
+			Upload up = new Upload();
+			up.videoId = Integer.toString(this.nextId.getAndIncrement());
+			up.data = new byte[Integer.parseInt(params.get("file_size"))];
+			up.received = new BitSet(up.data.length);
+			
+			String sessionId = Integer.toString(this.nextId.getAndIncrement());
+			this.uploads.put(sessionId, up);
+			
+			result.put("video_id", up.videoId);
+			result.put("upload_session_id", sessionId);
+			this.offsets(up, result);
+		} else {
+			Upload up = this.uploads.get(params.get("upload_session_id"));
+			if (up == null) {
+				this.respond(exchange, 400, this.graphErrorBody("OAuthException", 6001, "Invalid upload session").toString(), 0);
+				return;
+			}
+			
+			if ("transfer".equals(phase)) {
+				this.transfers.incrementAndGet();
+				
+				if (this.passTransfers.getAndDecrement() <= 0 && this.failTransfers.getAndDecrement() > 0) {
+					this.respond(exchange, 500, this.graphErrorBody("FacebookApiException", 2, "Service temporarily unavailable").toString(), 0);
+					return;
+				}
+				
+				int start = Integer.parseInt(params.get("start_offset"));
+				byte[] chunk = attachments.get("video_file_chunk");
+				synchronized (up) {
+					System.arraycopy(chunk, 0, up.data, start, chunk.length);
+					up.received.set(start, start + chunk.length);
+					this.offsets(up, result);
+				}
+			} else if ("finish".equals(phase)) {
+				synchronized (up) {
+					if (up.received.nextClearBit(0) < up.data.length) {
+						this.respond(exchange, 400, this.graphErrorBody("OAuthException", 6001, "Upload incomplete").toString(), 0);
+						return;
+					}
+				}
+				
+				this.uploads.remove(params.get("upload_session_id"));
+				this.videos.put(up.videoId, up.data);
+				result.put("success", true);
+			} else {
+				this.respond(exchange, 400, this.graphErrorBody("OAuthException", 100, "Bad upload_phase").toString(), 0);
+				return;
+			}
+		}
+		
+		this.respond(exchange, 200, result.toString(), 0);
+	}
+	
+	/** Asks for the lowest range not yet received; offsets are strings, as Facebook sends them */
+	private void offsets(Upload up, ObjectNode result) {
+		long start = Math.min(up.received.nextClearBit(0), up.data.length);
+		long end = Math.min(start + this.uploadChunkSize, up.data.length);
+		result.put("start_offset", Long.toString(start));
+		result.put("end_offset", Long.toString(end));
+	}
+	
+	/**
+	 * Works out the response to a single batch part.
+	 */
+	private Fixture answer(String method, String relativeURL, String body) {
+		String path = relativeURL;
+		String query = null;
+		int q = relativeURL.indexOf('?');
+		if (q >= 0) {
+			path = relativeURL.substring(0, q);
+			query = relativeURL.substring(q + 1);
+		}
+		
+		path = VERSION.matcher(path.startsWith("/") ? path.substring(1) : path).replaceFirst("");
+		
+		Map<String, String> params = parseForm(query);
+		params.putAll(parseForm(body));
+		
+		if (path.equals("method/fql.multiquery"))
+			return this.multiquery(params.get("queries"));
+		
+		if (path.equals("method/fql.query"))
+			return this.query(params.get("query"));
+		
+		Fixture fix = this.graph.get(method + " " + path);
+		if (fix == null) {
+			fix = new Fixture();
+			fix.code = 404;
+			fix.body = this.graphErrorBody("OAuthException", 803, "(#803) Some of the aliases you requested do not exist: " + path).toString();
+		} else if (fix.items != null) {
+			fix = this.page(path, fix, params);
+		}
+		
+		return fix;
+	}
+	
+	/** */
+	private Fixture page(String path, Fixture paged, Map<String, String> params) {
+		int offset = params.containsKey("offset") ? Integer.parseInt(params.get("offset")) : 0;
+		int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : paged.pageSize;
+		
+		ObjectNode root = NODES.objectNode();
+		ArrayNode data = root.putArray("data");
+		for (int i=offset; i<Math.min(offset + limit, paged.items.size()); i++)
+			data.add(paged.items.get(i));
+		
+		ObjectNode paging = root.putObject("paging");
+		if (offset > 0)
+			paging.put("previous", this.getEndpoint() + path + "?limit=" + limit + "&offset=" + Math.max(0, offset - limit));
+		if (offset + limit < paged.items.size())
+			paging.put("next", this.getEndpoint() + path + "?limit=" + limit + "&offset=" + (offset + limit));
+		
+		Fixture fix = new Fixture();
+		fix.code = 200;
+		fix.body = root.toString();
+		fix.latency = paged.latency;
+		return fix;
+	}
+	
+	/** A single query answers with the bare result set */
+	private Fixture query(String fql) {
+		Fixture fix = new Fixture();
+		fix.code = 200;
+		
+		JsonNode resultSet = this.queries.get(fql);
+		if (resultSet == null)
+			fix.body = this.restErrorBody(601, "Parser error: unexpected query: " + fql).toString();
+		else
+			fix.body = resultSet.toString();
+		
+		return fix;
+	}
+	
+	/** Unknown queries fail the whole multiquery, like a parse error would */
+	private Fixture multiquery(String queriesParam) {
+		Fixture fix = new Fixture();
+		fix.code = 200;
+		
+		ArrayNode result = NODES.arrayNode();
+		Iterator<Map.Entry<String, JsonNode>> it = this.parse(queriesParam).fields();
+		while (it.hasNext()) {
+			Map.Entry<String, JsonNode> query = it.next();
+			
+			JsonNode resultSet = this.queries.get(query.getValue().asText());
+			if (resultSet == null) {
+				fix.body = this.restErrorBody(601, "Parser error: unexpected query: " + query.getValue().asText()).toString();
+				return fix;
+			}
+			
+			ObjectNode named = result.addObject();
+			named.put("name", query.getKey());
+			named.set("fql_result_set", resultSet);
+		}
+		
+		fix.body = result.toString();
+		return fix;
+	}
+	
+	/** */
+	private void respond(HttpExchange exchange, int code, String body, long partDelay) throws IOException {
+		long delay = this.latency.next(this.random) + partDelay;
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		
+		byte[] bytes = body.getBytes("utf-8");
+		
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (this.compressResponses && accept != null && accept.contains("gzip")) {
+			ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+			GZIPOutputStream zipper = new GZIPOutputStream(zipped);
+			zipper.write(bytes);
+			zipper.close();
+			
+			bytes = zipped.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			this.compressedResponses.incrementAndGet();
+		}
+		
+		exchange.getResponseHeaders().set("Content-Type", "text/javascript; charset=UTF-8");
+		exchange.getResponseHeaders().set("X-App-Usage", this.appUsage);
+		exchange.sendResponseHeaders(code, bytes.length);
+		
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+	
+	/** */
+	private ObjectNode graphErrorBody(String type, int code, String message) {
+		ObjectNode root = NODES.objectNode();
+		ObjectNode error = root.putObject("error");
+		error.put("message", message);
+		error.put("type", type);
+		error.put("code", code);
+		return root;
+	}
+	
+	/** */
+	private ObjectNode restErrorBody(int code, String message) {
+		ObjectNode root = NODES.objectNode();
+		root.put("error_code", code);
+		root.put("error_msg", message);
+		root.putArray("request_args");
+		return root;
+	}
+	
+	/** */
+	private void header(ArrayNode headers, String name, String value) {
+		ObjectNode header = headers.addObject();
+		header.put("name", name);
+		header.put("value", value);
+	}
+	
+	/** */
+	private JsonNode parse(String json) {
+		try {
+			return this.mapper.readTree(json);
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Not json: " + json, ex);
+		}
+	}
+	
+	/** Tolerates missing values, unlike URLParser */
+	private static Map<String, String> parseForm(String form) {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		if (form == null || form.isEmpty())
+			return result;
+		
+		for (String pair: form.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0)
+				result.put(StringUtils.urlDecode(pair), "");
+			else
+				result.put(StringUtils.urlDecode(pair.substring(0, eq)), StringUtils.urlDecode(pair.substring(eq + 1)));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Splits a multipart/form-data body; parts with a filename go in files, the rest in params.
+	 */
+	private static void parseMultipart(byte[] body, String boundary, Map<String, String> params, Map<String, byte[]> files) throws IOException {
+		// Latin-1 maps bytes to chars one for one, so binary parts survive
+		String all = new String(body, "ISO-8859-1");
+		String delimiter = "--" + boundary;
+		
+		for (String part: all.split(Pattern.quote(delimiter))) {
+			int split = part.indexOf("\r\n\r\n");
+			if (split < 0)
+				continue;	// the preamble or the closing --
+			
+			String headers = part.substring(0, split);
+			String content = part.substring(split + 4, part.length() - 2);	// strip the CRLF before the next delimiter
+			
+			Matcher name = Pattern.compile("name=\"([^\"]*)\"").matcher(headers);
+			if (!name.find())
+				continue;
+			
+			String partName = StringUtils.urlDecode(name.group(1));
+			if (headers.contains("filename="))
+				files.put(partName, content.getBytes("ISO-8859-1"));
+			else
+				params.put(partName, new String(content.getBytes("ISO-8859-1"), "utf-8"));
+		}
+	}
+	
+	/** */
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int read;
+		while ((read = in.read(buf)) >= 0)
+			bytes.write(buf, 0, read);
+		
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.test.util;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+
+import com.googlecode.batchfb.FacebookBatcher;
+
+/**
+ * Gives each test a fresh FakeGraphServer, which accepts the token "token", and a batcher
+ * pointed at it.  Tests built on this run without a token or network.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class FakeServerTestBase {
+	
+	/** */
+	public static class User {
+		public String id;
+		public String name;
+	}
+	
+	/** */
+	protected FakeGraphServer server;
+	protected FacebookBatcher batcher;
+	
+	@BeforeMethod
+	public void setUp() throws Exception {
+		this.server = new FakeGraphServer();
+		this.server.accessToken("token");
+		
+		this.batcher = new FacebookBatcher("token", "v2.0");
+		this.batcher.setGraphEndpoint(this.server.getEndpoint());
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		this.server.stop();
+	}
+}
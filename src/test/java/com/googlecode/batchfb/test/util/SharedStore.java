@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2010 Jeff Schnitzer.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.googlecode.batchfb.test.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.googlecode.batchfb.util.RateLimiter.Bucket;
+import com.googlecode.batchfb.util.RateLimiter.Store;
+
+/**
+ * Stands in for a cache shared between machines: buckets only exist as strings, so every
+ * limiter sees its own copies, and swaps compare what was read against what is there now.
+ * 
+ * @author Jeff Schnitzer
+ */
+public class SharedStore implements Store {
+	
+	/** */
+	private Map<String, String> values = new HashMap<String, String>();
+	private int swaps;
+	private int conflicts;
+	
+	@Override
+	public synchronized Bucket get(String key) {
+		String value = this.values.get(key);
+		if (value == null)
+			return null;
+		
+		int at = value.indexOf('@');
+		return new Bucket(Double.parseDouble(value.substring(0, at)), Long.parseLong(value.substring(at + 1)));
+	}
+	
+	@Override
+	public synchronized boolean compareAndSet(String key, Bucket expect, Bucket update, long ttlMillis) {
+		String current = this.values.get(key);
+		String expected = expect == null ? null : expect.toString();
+		
+		if (current == null ? expected != null : !current.equals(expected)) {
+			this.conflicts++;
+			return false;
+		}
+		
+		this.values.put(key, update.toString());
+		this.swaps++;
+		return true;
+	}
+	
+	/** Keys held, none of which should contain a raw token */
+	public synchronized Map<String, String> getValues() {
+		return new HashMap<String, String>(this.values);
+	}
+	
+	/** */
+	public synchronized int getSwapCount() {
+		return this.swaps;
+	}
+	
+	/** */
+	public synchronized int getConflictCount() {
+		return this.conflicts;
+	}
+}